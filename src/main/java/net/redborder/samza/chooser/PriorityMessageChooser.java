@@ -0,0 +1,128 @@
+package net.redborder.samza.chooser;
+
+import org.apache.samza.metrics.Counter;
+import org.apache.samza.metrics.MetricsRegistry;
+import org.apache.samza.system.IncomingMessageEnvelope;
+import org.apache.samza.system.chooser.BaseMessageChooser;
+
+import java.util.*;
+
+/**
+ * This chooser picks the waiting message of the stream with the highest priority,
+ * so the streams that populate the stores are consumed before the streams that
+ * are enriched with them.
+ * <p/>
+ * <p>To avoid starving the lower priorities, a waiting message is chosen anyway
+ * when higher priorities have been chosen instead of it "maxSkips" times in a
+ * row, or when it has waited for "maxWait" milliseconds.</p>
+ */
+
+public class PriorityMessageChooser extends BaseMessageChooser {
+    private final Map<String, Integer> priorities;
+    private final int defaultPriority;
+    private final int maxSkips;
+    private final long maxWait;
+
+    // The levels are sorted from the highest priority to the lowest one
+    private final TreeMap<Integer, Level> levels = new TreeMap<>(Collections.reverseOrder());
+    private final Counter chosen;
+    private final Counter starved;
+
+    /**
+     * Constructs a new priority chooser
+     *
+     * @param priorities      The priority of each stream
+     * @param defaultPriority The priority of the streams that aren't on the map
+     * @param maxSkips        The times a waiting message can be skipped by higher priorities
+     * @param maxWait         The time (in ms) that a waiting message can be skipped by higher priorities
+     * @param metricsRegistry The registry of the chooser metrics
+     */
+
+    public PriorityMessageChooser(Map<String, Integer> priorities, int defaultPriority, int maxSkips, long maxWait,
+                                  MetricsRegistry metricsRegistry) {
+        this.priorities = priorities;
+        this.defaultPriority = defaultPriority;
+        this.maxSkips = maxSkips;
+        this.maxWait = maxWait;
+
+        String group = PriorityMessageChooser.class.getName();
+        this.chosen = metricsRegistry.newCounter(group, "chooser-chosen");
+        this.starved = metricsRegistry.newCounter(group, "chooser-starvation-choices");
+    }
+
+    @Override
+    public void update(IncomingMessageEnvelope envelope) {
+        int priority = getPriority(envelope.getSystemStreamPartition().getStream());
+        Level level = levels.get(priority);
+
+        if (level == null) {
+            level = new Level();
+            levels.put(priority, level);
+        }
+
+        level.waiting.add(new Waiting(envelope, System.currentTimeMillis()));
+    }
+
+    @Override
+    public IncomingMessageEnvelope choose() {
+        Level first = null;
+        Level starving = null;
+        long now = System.currentTimeMillis();
+
+        for (Level level : levels.values()) {
+            if (!level.waiting.isEmpty()) {
+                if (first == null) {
+                    first = level;
+                } else if (level.skips >= maxSkips || now - level.waiting.peek().since >= maxWait) {
+                    // The lowest priority that is starving goes first, as it has been skipped the most
+                    starving = level;
+                }
+            }
+        }
+
+        if (first == null) {
+            return null;
+        }
+
+        Level selected = starving == null ? first : starving;
+
+        if (starving != null) {
+            starved.inc();
+        }
+
+        for (Level level : levels.values()) {
+            if (level != selected && !level.waiting.isEmpty()) {
+                level.skips++;
+            }
+        }
+
+        selected.skips = 0;
+        chosen.inc();
+        return selected.waiting.poll().envelope;
+    }
+
+    /**
+     * @param stream The stream name
+     * @return The priority of the stream
+     */
+
+    public int getPriority(String stream) {
+        Integer priority = priorities.get(stream);
+        return priority == null ? defaultPriority : priority;
+    }
+
+    private static class Level {
+        private final Queue<Waiting> waiting = new ArrayDeque<>();
+        private int skips = 0;
+    }
+
+    private static class Waiting {
+        private final IncomingMessageEnvelope envelope;
+        private final long since;
+
+        Waiting(IncomingMessageEnvelope envelope, long since) {
+            this.envelope = envelope;
+            this.since = since;
+        }
+    }
+}
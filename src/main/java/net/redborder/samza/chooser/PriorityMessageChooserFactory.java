@@ -0,0 +1,90 @@
+package net.redborder.samza.chooser;
+
+import net.redborder.samza.processors.JoinProcessor;
+import net.redborder.samza.processors.StoreWriterProcessor;
+import org.apache.samza.config.Config;
+import org.apache.samza.metrics.MetricsRegistry;
+import org.apache.samza.system.chooser.MessageChooser;
+import org.apache.samza.system.chooser.MessageChooserFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This factory builds a {@link PriorityMessageChooser}. It is enabled with
+ * "task.chooser.class=net.redborder.samza.chooser.PriorityMessageChooserFactory".
+ * <p/>
+ * <p>The priority of each input stream is read from "redborder.chooser.priority.streamName".
+ * If it isn't set, it is inferred from the processors of the stream: streams with
+ * processors that write stores (store writers and join builds) take the priority
+ * "redborder.chooser.priority.writers" (default 10), and the rest take
+ * "redborder.chooser.priority.default" (default 0).</p>
+ * <p/>
+ * <p>The starvation protection is set with "redborder.chooser.starvation.skips"
+ * (default 100) and "redborder.chooser.starvation.ms" (default 1000).</p>
+ */
+
+public class PriorityMessageChooserFactory implements MessageChooserFactory {
+    private static final Logger log = LoggerFactory.getLogger(PriorityMessageChooserFactory.class);
+
+    @Override
+    public MessageChooser getChooser(Config config, MetricsRegistry metricsRegistry) {
+        int defaultPriority = config.getInt("redborder.chooser.priority.default", 0);
+        int writersPriority = config.getInt("redborder.chooser.priority.writers", 10);
+        Map<String, Integer> priorities = new HashMap<>();
+
+        for (String input : config.getList("task.inputs", Collections.<String>emptyList())) {
+            // task.inputs are declared as system.stream
+            String stream = input.substring(input.indexOf('.') + 1).trim();
+            String priority = config.get("redborder.chooser.priority." + stream);
+
+            if (priority != null) {
+                priorities.put(stream, Integer.valueOf(priority));
+            } else if (writesStores(stream, config)) {
+                priorities.put(stream, writersPriority);
+            } else {
+                priorities.put(stream, defaultPriority);
+            }
+        }
+
+        log.info("Choosing messages with the stream priorities {}", priorities);
+
+        return new PriorityMessageChooser(priorities, defaultPriority,
+                config.getInt("redborder.chooser.starvation.skips", 100),
+                config.getLong("redborder.chooser.starvation.ms", 1000L),
+                metricsRegistry);
+    }
+
+    /**
+     * @param stream The stream name
+     * @param config The job config
+     * @return True if any processor of the stream writes a store
+     */
+
+    static boolean writesStores(String stream, Config config) {
+        for (String processorName : config.getList("redborder.processors." + stream, Collections.<String>emptyList())) {
+            String prefix = "redborder.processors.types." + processorName + ".";
+            String className = config.get(prefix + "class");
+
+            if (className == null) {
+                continue;
+            }
+
+            try {
+                Class<?> processorClass = Class.forName(className);
+
+                if (StoreWriterProcessor.class.isAssignableFrom(processorClass)
+                        || JoinProcessor.class.isAssignableFrom(processorClass) && config.get(prefix + "role", "probe").equals("build")) {
+                    return true;
+                }
+            } catch (ClassNotFoundException e) {
+                log.warn("Couldn't find the class {} of the processor {}", className, processorName);
+            }
+        }
+
+        return false;
+    }
+}
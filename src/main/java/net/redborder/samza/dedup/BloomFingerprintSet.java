@@ -0,0 +1,75 @@
+package net.redborder.samza.dedup;
+
+import java.util.Arrays;
+
+/**
+ * This class is a Bloom filter of fingerprints. It uses much less memory
+ * than an exact set, but a small rate of fingerprints that were never added
+ * are reported as present.
+ */
+
+public class BloomFingerprintSet implements FingerprintSet {
+    private final long[] bits;
+    private final long numBits;
+    private final int numHashes;
+    private int size = 0;
+
+    /**
+     * Constructs a new Bloom filter
+     *
+     * @param maxEntries        The expected number of fingerprints
+     * @param falsePositiveRate The expected false positive rate with that number of fingerprints
+     */
+
+    public BloomFingerprintSet(int maxEntries, double falsePositiveRate) {
+        long optimalBits = (long) Math.ceil(-Math.max(maxEntries, 1) * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.bits = new long[(int) ((optimalBits + 63) / 64)];
+        this.numBits = bits.length * 64L;
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / Math.max(maxEntries, 1) * Math.log(2)));
+    }
+
+    @Override
+    public boolean contains(long fingerprint) {
+        int hash1 = (int) fingerprint;
+        int hash2 = (int) (fingerprint >>> 32);
+
+        for (int i = 1; i <= numHashes; i++) {
+            long bit = ((hash1 + (long) i * hash2) & Long.MAX_VALUE) % numBits;
+
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public void add(long fingerprint) {
+        int hash1 = (int) fingerprint;
+        int hash2 = (int) (fingerprint >>> 32);
+
+        for (int i = 1; i <= numHashes; i++) {
+            long bit = ((hash1 + (long) i * hash2) & Long.MAX_VALUE) % numBits;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+
+        size++;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(bits, 0L);
+        size = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long memoryBytes() {
+        return bits.length * 8L;
+    }
+}
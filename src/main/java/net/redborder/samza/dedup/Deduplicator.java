@@ -0,0 +1,284 @@
+package net.redborder.samza.dedup;
+
+import net.redborder.samza.util.Hashing;
+import org.apache.samza.config.Config;
+import org.apache.samza.metrics.Counter;
+import org.apache.samza.metrics.Gauge;
+import org.apache.samza.metrics.MetricsRegistry;
+import org.apache.samza.storage.kv.KeyValueStore;
+import org.apache.samza.task.TaskContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * This class drops the messages of a stream that have already been seen
+ * recently, like the messages replayed from the last checkpoint after a restart.
+ * <p/>
+ * <p>Each message is reduced to a 64-bit fingerprint of the fields set on
+ * "redborder.dedup.streamName.fields" (or all of them), and the fingerprints
+ * are kept on a ring of generations that covers the time set on
+ * "redborder.dedup.streamName.window.ms". When the current generation gets
+ * too old or full, the oldest one is cleared and reused, so memory is bounded by
+ * "redborder.dedup.streamName.maxEntries". Generations are exact hash sets, or
+ * Bloom filters if "redborder.dedup.streamName.mode" is bloom.</p>
+ * <p/>
+ * <p>If "redborder.dedup.streamName.store" is set, the new fingerprints are saved
+ * to that KV store on every window, and loaded again when the task starts. A message
+ * is remembered before it is processed, so its fingerprint must only be saved after
+ * its output has been flushed, or a restart would drop it as a duplicate without
+ * it ever being sent. The task saves them after flushing its pending work.</p>
+ */
+
+public class Deduplicator {
+    private static final Logger log = LoggerFactory.getLogger(Deduplicator.class);
+    private static final int CHUNK_SIZE = 10000;
+
+    private String stream;
+    private List<String> fields;
+    private long generationMs;
+    private int entriesPerGeneration;
+    private FingerprintSet[] generations;
+    private long[] generationStarts;
+    private int[] generationChunks;
+    private int current = 0;
+
+    private KeyValueStore<String, Map<String, Object>> store;
+    private List<List<Long>> unsaved = new ArrayList<>();
+
+    private Counter messages;
+    private Counter duplicates;
+    private Gauge<Double> duplicateRate;
+    private Gauge<Long> memoryBytes;
+    private long lastMessages = 0;
+    private long lastDuplicates = 0;
+
+    public Deduplicator(String stream, Config config, TaskContext context) {
+        String prefix = "redborder.dedup." + stream + ".";
+        int numGenerations = config.getInt(prefix + "generations", 4);
+        long windowMs = config.getLong(prefix + "window.ms", 600000L);
+        int maxEntries = config.getInt(prefix + "maxEntries", 1000000);
+        String mode = config.get(prefix + "mode", "exact");
+
+        this.stream = stream;
+        this.fields = config.getList(prefix + "fields", Collections.<String>emptyList());
+        this.generationMs = windowMs / numGenerations;
+        this.entriesPerGeneration = Math.max(1, maxEntries / numGenerations);
+        this.generations = new FingerprintSet[numGenerations];
+        this.generationStarts = new long[numGenerations];
+        this.generationChunks = new int[numGenerations];
+
+        for (int i = 0; i < numGenerations; i++) {
+            unsaved.add(new ArrayList<Long>());
+
+            if (mode.equals("bloom")) {
+                generations[i] = new BloomFingerprintSet(entriesPerGeneration, config.getDouble(prefix + "bloom.fpp", 0.001));
+            } else {
+                generations[i] = new ExactFingerprintSet(entriesPerGeneration);
+            }
+        }
+
+        generationStarts[current] = System.currentTimeMillis();
+
+        MetricsRegistry metricsRegistry = context.getMetricsRegistry();
+        String group = Deduplicator.class.getName();
+        this.messages = metricsRegistry.newCounter(group, "dedup-" + stream + "-messages");
+        this.duplicates = metricsRegistry.newCounter(group, "dedup-" + stream + "-duplicates");
+        this.duplicateRate = metricsRegistry.newGauge(group, "dedup-" + stream + "-duplicate-rate", 0.0);
+        this.memoryBytes = metricsRegistry.newGauge(group, "dedup-" + stream + "-memory-bytes", 0L);
+
+        String storeName = config.get(prefix + "store");
+        if (storeName != null) {
+            this.store = (KeyValueStore<String, Map<String, Object>>) context.getStore(storeName);
+            restore();
+        }
+
+        log.info("Deduplicating stream {} with " + numGenerations + " generations of " + generationMs + " ms, mode {}", stream, mode);
+    }
+
+    /**
+     * Checks if a message has been seen recently, and remembers it if it hasn't.
+     *
+     * @param message The message to check
+     * @return True if the message is a duplicate
+     */
+
+    public boolean isDuplicate(Map<String, Object> message) {
+        long fingerprint = fingerprint(message);
+        long now = System.currentTimeMillis();
+
+        if (now - generationStarts[current] >= generationMs || generations[current].size() >= entriesPerGeneration) {
+            rotate(now);
+        }
+
+        messages.inc();
+        for (FingerprintSet generation : generations) {
+            if (generation.contains(fingerprint)) {
+                duplicates.inc();
+                return true;
+            }
+        }
+
+        generations[current].add(fingerprint);
+        if (store != null) {
+            unsaved.get(current).add(fingerprint);
+        }
+
+        return false;
+    }
+
+    /**
+     * Saves the new fingerprints and updates the metrics. It must be called on every task window,
+     * after the outputs of the messages that have been checked are flushed.
+     */
+
+    public void window() {
+        save();
+
+        long messagesCount = messages.getCount();
+        long duplicatesCount = duplicates.getCount();
+        long newMessages = messagesCount - lastMessages;
+
+        duplicateRate.set(newMessages > 0 ? (double) (duplicatesCount - lastDuplicates) / newMessages : 0.0);
+        lastMessages = messagesCount;
+        lastDuplicates = duplicatesCount;
+
+        long memory = 0;
+        for (FingerprintSet generation : generations) {
+            memory += generation.memoryBytes();
+        }
+
+        memoryBytes.set(memory);
+    }
+
+    /**
+     * Saves the fingerprints that were added since the last save. It must only be
+     * called when the outputs of those messages have been flushed.
+     */
+
+    public void save() {
+        if (store == null) {
+            return;
+        }
+
+        boolean saved = false;
+
+        for (int generation = 0; generation < generations.length; generation++) {
+            List<Long> pending = unsaved.get(generation);
+
+            for (int from = 0; from < pending.size(); from += CHUNK_SIZE) {
+                List<Long> chunk = new ArrayList<>(pending.subList(from, Math.min(from + CHUNK_SIZE, pending.size())));
+                Map<String, Object> value = new HashMap<>();
+                value.put("fingerprints", chunk);
+                store.put(chunkKey(generation, generationChunks[generation]), value);
+                generationChunks[generation]++;
+                saved = true;
+            }
+
+            pending.clear();
+        }
+
+        if (saved) {
+            saveState();
+        }
+    }
+
+    // The unsaved fingerprints are kept with their generation, so they are saved on the next window
+    private void rotate(long now) {
+        current = (current + 1) % generations.length;
+        generations[current].clear();
+        unsaved.get(current).clear();
+        generationStarts[current] = now;
+
+        if (store != null) {
+            List<String> chunkKeys = new ArrayList<>();
+            for (int i = 0; i < generationChunks[current]; i++) {
+                chunkKeys.add(chunkKey(current, i));
+            }
+
+            if (!chunkKeys.isEmpty()) {
+                store.deleteAll(chunkKeys);
+            }
+
+            generationChunks[current] = 0;
+            saveState();
+        }
+    }
+
+    private void saveState() {
+        List<Long> starts = new ArrayList<>();
+        List<Integer> chunks = new ArrayList<>();
+
+        for (int i = 0; i < generations.length; i++) {
+            starts.add(generationStarts[i]);
+            chunks.add(generationChunks[i]);
+        }
+
+        Map<String, Object> state = new HashMap<>();
+        state.put("current", current);
+        state.put("starts", starts);
+        state.put("chunks", chunks);
+        store.put(stream + ":state", state);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void restore() {
+        Map<String, Object> state = store.get(stream + ":state");
+
+        if (state != null) {
+            List<Number> starts = (List<Number>) state.get("starts");
+            List<Number> chunks = (List<Number>) state.get("chunks");
+            int restored = 0;
+
+            if (starts.size() == generations.length) {
+                current = ((Number) state.get("current")).intValue();
+
+                for (int i = 0; i < generations.length; i++) {
+                    generationStarts[i] = starts.get(i).longValue();
+                    generationChunks[i] = chunks.get(i).intValue();
+
+                    for (int chunk = 0; chunk < generationChunks[i]; chunk++) {
+                        Map<String, Object> value = store.get(chunkKey(i, chunk));
+
+                        if (value != null) {
+                            for (Number fingerprint : (List<Number>) value.get("fingerprints")) {
+                                generations[i].add(fingerprint.longValue());
+                                restored++;
+                            }
+                        }
+                    }
+                }
+
+                log.info("Restored {} fingerprints of the stream {}", restored, stream);
+            } else {
+                log.warn("The number of generations of the stream {} has changed, its fingerprints are discarded", stream);
+            }
+        }
+    }
+
+    private String chunkKey(int generation, int chunk) {
+        return stream + ":" + generation + ":" + chunk;
+    }
+
+    private long fingerprint(Map<String, Object> message) {
+        long fingerprint = 0L;
+
+        if (fields.isEmpty()) {
+            // The sum doesn't depend on the order of the fields on the map
+            for (Map.Entry<String, Object> entry : message.entrySet()) {
+                long keyHash = Hashing.hash64(entry.getKey());
+                long valueHash = Hashing.hash64(String.valueOf(entry.getValue()));
+                fingerprint += Hashing.mix64(keyHash * 31 + valueHash);
+            }
+        } else {
+            for (String field : fields) {
+                fingerprint = fingerprint * 31 + Hashing.hash64(String.valueOf(message.get(field)));
+            }
+
+            fingerprint = Hashing.mix64(fingerprint);
+        }
+
+        return fingerprint;
+    }
+}
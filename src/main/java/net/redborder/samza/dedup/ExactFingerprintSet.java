@@ -0,0 +1,77 @@
+package net.redborder.samza.dedup;
+
+import java.util.Arrays;
+
+/**
+ * This class is an open-addressing hash set of fingerprints, stored on a
+ * primitive array that is sized once for the maximum number of entries.
+ */
+
+public class ExactFingerprintSet implements FingerprintSet {
+    // Zero marks the empty slots, so the fingerprint zero is stored as one
+    private static final long EMPTY = 0L;
+
+    private final long[] slots;
+    private final int mask;
+    private int size = 0;
+
+    public ExactFingerprintSet(int maxEntries) {
+        int capacity = Integer.highestOneBit(Math.max(maxEntries, 1) * 2 - 1) << 1;
+        this.slots = new long[capacity];
+        this.mask = capacity - 1;
+    }
+
+    @Override
+    public boolean contains(long fingerprint) {
+        long value = fingerprint == EMPTY ? 1L : fingerprint;
+        int slot = (int) value & mask;
+
+        while (slots[slot] != EMPTY) {
+            if (slots[slot] == value) {
+                return true;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        return false;
+    }
+
+    @Override
+    public void add(long fingerprint) {
+        long value = fingerprint == EMPTY ? 1L : fingerprint;
+        int slot = (int) value & mask;
+
+        // Never fill the table over half its capacity
+        if (size >= slots.length / 2) {
+            return;
+        }
+
+        while (slots[slot] != EMPTY) {
+            if (slots[slot] == value) {
+                return;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        slots[slot] = value;
+        size++;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(slots, EMPTY);
+        size = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long memoryBytes() {
+        return slots.length * 8L;
+    }
+}
@@ -0,0 +1,42 @@
+package net.redborder.samza.dedup;
+
+/**
+ * This interface defines a set of 64-bit message fingerprints
+ * with a bounded amount of memory.
+ */
+
+public interface FingerprintSet {
+
+    /**
+     * @param fingerprint The fingerprint to check
+     * @return True if the fingerprint may have been added to the set
+     */
+
+    boolean contains(long fingerprint);
+
+    /**
+     * Adds a fingerprint to the set
+     *
+     * @param fingerprint The fingerprint to add
+     */
+
+    void add(long fingerprint);
+
+    /**
+     * Removes every fingerprint from the set
+     */
+
+    void clear();
+
+    /**
+     * @return The number of fingerprints added to the set
+     */
+
+    int size();
+
+    /**
+     * @return The memory used by the set, in bytes
+     */
+
+    long memoryBytes();
+}
@@ -0,0 +1,30 @@
+package net.redborder.samza.enrichments;
+
+import net.redborder.samza.store.StoreManager;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class is the base of the enrichments that write only the fields they
+ * add into the message that is being built, so the message isn't copied by
+ * every enrichment. They implement #enrichInto, and #enrich is built from it.
+ */
+
+public abstract class DeltaEnrich extends Enrich {
+
+    public DeltaEnrich(StoreManager storeManager) {
+        super(storeManager);
+    }
+
+    @Override
+    public final Map<String, Object> enrich(Map<String, Object> message) {
+        Map<String, Object> enriched = new HashMap<>();
+        enriched.putAll(message);
+        enrichInto(message, enriched);
+        return enriched;
+    }
+
+    @Override
+    public abstract void enrichInto(Map<String, Object> message, Map<String, Object> sink);
+}
@@ -9,6 +9,10 @@ import java.util.Map;
  * to create an Enrichment class. An enrichment class implements a method
  * #enrich that, given a message, enriches it with some information, modifying or
  * adding new fields to the message, and returns it.
+ * <p/>
+ * <p>The enrichments that only add a few fields can extend {@link DeltaEnrich}
+ * instead, implementing #enrichInto, so the message isn't copied by every
+ * enrichment.</p>
  */
 
 public abstract class Enrich {
@@ -28,5 +32,15 @@ public abstract class Enrich {
 
     public abstract Map<String, Object> enrich(Map<String, Object> message);
 
+    /**
+     * Enriches a given message, writing only the modified or new fields into
+     * a sink. This implementation adds the whole result of #enrich.
+     *
+     * @param message The message to enrich
+     * @param sink    The map where the fields are written
+     */
 
+    public void enrichInto(Map<String, Object> message, Map<String, Object> sink) {
+        sink.putAll(enrich(message));
+    }
 }
@@ -1,5 +1,7 @@
 package net.redborder.samza.enrichments;
 
+import net.redborder.samza.recorder.EventRecorder;
+
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -31,11 +33,19 @@ public class EnrichManager {
         enrichments.add(enrich);
     }
 
+    /**
+     * @return True if there is at least one enrichment
+     */
+
+    public boolean hasEnrichments() {
+        return !enrichments.isEmpty();
+    }
+
     /**
      * Enriches a given message.
-     * This method calls the #enrich method from every stored IEnrich
+     * This method calls the #enrichInto method from every stored IEnrich
      * class that were added with the #addEnrichment method and returns
-     * the enriched message.
+     * the enriched message. The message is copied only once.
      * @param message The message to enrich
      * @return The given message enriched
      */
@@ -45,7 +55,11 @@ public class EnrichManager {
         enrichments.putAll(message);
 
         for (Enrich enrich : this.enrichments) {
-            enrichments.putAll(enrich.enrich(message));
+            long start = EventRecorder.start();
+            int fields = enrichments.size();
+            enrich.enrichInto(message, enrichments);
+            EventRecorder.end(EventRecorder.Type.ENRICH, enrich.getClass().getName(), enrichments.size() > fields,
+                    enrichments.size() - fields, start);
         }
 
         return enrichments;
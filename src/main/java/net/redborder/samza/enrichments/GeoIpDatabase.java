@@ -0,0 +1,500 @@
+package net.redborder.samza.enrichments;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This class is an immutable IP range database, compiled from a CSV file to a
+ * binary file that is memory-mapped off-heap. The ranges are kept sorted by their
+ * start address on parallel arrays, so a lookup is a binary search on the mapped
+ * memory. The addresses are stored with their sign bit flipped, so the unsigned
+ * addresses can be compared as signed numbers.
+ * <p/>
+ * <p>Each line of the CSV file is "start,end,location..." or "network/prefix,location...",
+ * where the location is any number of columns. Equal locations are stored once, and
+ * the ranges that overlap a previous range are skipped.</p>
+ * <p/>
+ * File layout:
+ * <pre>
+ *   int magic, int version, int v4Count, int v6Count, int locationCount
+ *   int[v4Count] v4 starts, int[v4Count] v4 ends, int[v4Count] v4 location ids
+ *   long[v6Count * 2] v6 starts, long[v6Count * 2] v6 ends, int[v6Count] v6 location ids
+ *   int[locationCount] offsets of each location
+ *   locations: short columns, and for each column: short length, byte[] value (UTF-8)
+ * </pre>
+ */
+
+public class GeoIpDatabase {
+    private static final int MAGIC = 0x52424749;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final MappedByteBuffer buffer;
+    private final int v4Count;
+    private final int v6Count;
+    private final int locationCount;
+    private final int v4Starts;
+    private final int v4Ends;
+    private final int v4Locations;
+    private final int v6Starts;
+    private final int v6Ends;
+    private final int v6Locations;
+    private final int locationOffsets;
+    private final int locationData;
+    private final AtomicReferenceArray<String[]> locations;
+
+    private GeoIpDatabase(File file, MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("The file " + file + " isn't a valid GeoIP database");
+        }
+
+        this.v4Count = buffer.getInt(8);
+        this.v6Count = buffer.getInt(12);
+        this.locationCount = buffer.getInt(16);
+
+        if (v4Count < 0 || v6Count < 0 || locationCount < 0 ||
+                HEADER_SIZE + v4Count * 12L + v6Count * 36L + locationCount * 4L > buffer.capacity()) {
+            throw new IOException("The file " + file + " is truncated, it doesn't fit its header counts");
+        }
+
+        this.v4Starts = HEADER_SIZE;
+        this.v4Ends = v4Starts + v4Count * 4;
+        this.v4Locations = v4Ends + v4Count * 4;
+        this.v6Starts = v4Locations + v4Count * 4;
+        this.v6Ends = v6Starts + v6Count * 16;
+        this.v6Locations = v6Ends + v6Count * 16;
+        this.locationOffsets = v6Locations + v6Count * 4;
+        this.locationData = locationOffsets + locationCount * 4;
+        // The locations are decoded when they are first found
+        this.locations = new AtomicReferenceArray<>(locationCount);
+        validate(file);
+    }
+
+    // Checks that the location ids and the locations are inside the file, so the lookups can't fail
+    private void validate(File file) throws IOException {
+        for (int i = 0; i < v4Count; i++) {
+            int locationId = buffer.getInt(v4Locations + i * 4);
+
+            if (locationId < 0 || locationId >= locationCount) {
+                throw new IOException("The file " + file + " has an IPv4 range with an invalid location " + locationId);
+            }
+        }
+
+        for (int i = 0; i < v6Count; i++) {
+            int locationId = buffer.getInt(v6Locations + i * 4);
+
+            if (locationId < 0 || locationId >= locationCount) {
+                throw new IOException("The file " + file + " has an IPv6 range with an invalid location " + locationId);
+            }
+        }
+
+        for (int i = 0; i < locationCount; i++) {
+            long position = locationData + (long) buffer.getInt(locationOffsets + i * 4);
+
+            if (position < locationData || position + 2 > buffer.capacity()) {
+                throw new IOException("The file " + file + " has the location " + i + " out of its bounds");
+            }
+
+            int columns = buffer.getShort((int) position) & 0xffff;
+            position += 2;
+
+            for (int j = 0; j < columns; j++) {
+                if (position + 2 > buffer.capacity()) {
+                    throw new IOException("The file " + file + " has the location " + i + " out of its bounds");
+                }
+
+                position += 2 + (buffer.getShort((int) position) & 0xffff);
+            }
+
+            if (position > buffer.capacity()) {
+                throw new IOException("The file " + file + " has the location " + i + " out of its bounds");
+            }
+        }
+    }
+
+    /**
+     * Maps a compiled database file.
+     *
+     * @param file The database file
+     * @return The database
+     * @throws IOException If the file can't be read or it isn't a database
+     */
+
+    public static GeoIpDatabase open(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            // The mapping stays valid after the channel is closed
+            return new GeoIpDatabase(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Compiles a CSV file of IP ranges to a database file. The database is written
+     * to a temporary file that atomically replaces the previous one, so the readers
+     * of the previous mapping are never affected.
+     *
+     * @param csv    The CSV file
+     * @param output The database file
+     * @return The number of lines that couldn't be parsed or overlap a previous range
+     * @throws IOException If the files can't be read or written
+     */
+
+    public static int compile(File csv, File output) throws IOException {
+        List<long[]> v4Ranges = new ArrayList<>();
+        List<long[]> v6Ranges = new ArrayList<>();
+        Map<List<String>, Integer> locationIds = new HashMap<>();
+        List<List<String>> locationsList = new ArrayList<>();
+        int invalid = 0;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(csv), "UTF-8"))) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                List<String> columns = splitCsv(line);
+                long[] range = parseRange(columns);
+
+                if (range == null) {
+                    invalid++;
+                    continue;
+                }
+
+                List<String> location = columns.subList(columns.get(0).indexOf('/') >= 0 ? 1 : 2, columns.size());
+                Integer locationId = locationIds.get(location);
+
+                if (locationId == null) {
+                    locationId = locationsList.size();
+                    locationIds.put(location, locationId);
+                    locationsList.add(location);
+                }
+
+                range[range.length - 1] = locationId;
+
+                if (range.length == 3) {
+                    v4Ranges.add(range);
+                } else {
+                    v6Ranges.add(range);
+                }
+            }
+        }
+
+        invalid += sortRanges(v4Ranges) + sortRanges(v6Ranges);
+
+        // A unique file on the same directory, so concurrent compilations don't mix and the move is atomic
+        File tmpFile = File.createTempFile(output.getName() + ".", ".tmp", output.getAbsoluteFile().getParentFile());
+        boolean moved = false;
+
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(v4Ranges.size());
+                out.writeInt(v6Ranges.size());
+                out.writeInt(locationsList.size());
+
+                for (int field = 0; field < 3; field++) {
+                    for (long[] range : v4Ranges) {
+                        out.writeInt(field < 2 ? (int) range[field] ^ Integer.MIN_VALUE : (int) range[field]);
+                    }
+                }
+
+                for (int field = 0; field < 2; field++) {
+                    for (long[] range : v6Ranges) {
+                        out.writeLong(range[field * 2] ^ Long.MIN_VALUE);
+                        out.writeLong(range[field * 2 + 1] ^ Long.MIN_VALUE);
+                    }
+                }
+
+                for (long[] range : v6Ranges) {
+                    out.writeInt((int) range[4]);
+                }
+
+                List<byte[]> encoded = new ArrayList<>(locationsList.size());
+                int offset = 0;
+
+                for (List<String> location : locationsList) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    DataOutputStream locationOut = new DataOutputStream(bytes);
+                    locationOut.writeShort(location.size());
+
+                    for (String column : location) {
+                        byte[] value = column.getBytes(UTF8);
+                        locationOut.writeShort(value.length);
+                        locationOut.write(value);
+                    }
+
+                    encoded.add(bytes.toByteArray());
+                    out.writeInt(offset);
+                    offset += bytes.size();
+                }
+
+                for (byte[] location : encoded) {
+                    out.write(location);
+                }
+            }
+
+            Files.move(tmpFile.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            moved = true;
+        } finally {
+            if (!moved) {
+                tmpFile.delete();
+            }
+        }
+
+        return invalid;
+    }
+
+    // Sorts the ranges by their start, and removes the ones that overlap the previous range
+    private static int sortRanges(List<long[]> ranges) {
+        final int words = ranges.isEmpty() ? 0 : (ranges.get(0).length - 1) / 2;
+
+        Collections.sort(ranges, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return compareAddresses(a, 0, b, 0, words);
+            }
+        });
+
+        int removed = 0;
+        Iterator<long[]> iterator = ranges.iterator();
+        long[] previous = null;
+
+        while (iterator.hasNext()) {
+            long[] range = iterator.next();
+
+            if (previous != null && compareAddresses(range, 0, previous, words, words) <= 0) {
+                iterator.remove();
+                removed++;
+            } else {
+                previous = range;
+            }
+        }
+
+        return removed;
+    }
+
+    private static int compareAddresses(long[] a, int aOffset, long[] b, int bOffset, int words) {
+        for (int i = 0; i < words; i++) {
+            int comparison = compareUnsigned(a[aOffset + i], b[bOffset + i]);
+
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+
+        return 0;
+    }
+
+    private static int compareUnsigned(long a, long b) {
+        long flippedA = a ^ Long.MIN_VALUE;
+        long flippedB = b ^ Long.MIN_VALUE;
+        return flippedA < flippedB ? -1 : (flippedA == flippedB ? 0 : 1);
+    }
+
+    /**
+     * @return {start, end, locationId} for IPv4, {startHigh, startLow, endHigh, endLow, locationId}
+     * for IPv6, or null if the range isn't valid
+     */
+
+    private static long[] parseRange(List<String> columns) {
+        String first = columns.get(0);
+        int slash = first.indexOf('/');
+
+        if (slash >= 0) {
+            long[] network = GeoIpEnrich.parseAddress(first.substring(0, slash));
+            int prefix;
+
+            try {
+                prefix = Integer.parseInt(first.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            if (network == null || prefix < 0 || prefix > (network.length == 1 ? 32 : 128)) {
+                return null;
+            }
+
+            if (network.length == 1) {
+                long mask = prefix == 0 ? 0L : (0xffffffffL << (32 - prefix)) & 0xffffffffL;
+                return new long[]{network[0] & mask, (network[0] & mask) | (~mask & 0xffffffffL), 0};
+            }
+
+            long highMask = prefix >= 64 ? -1L : (prefix == 0 ? 0L : -1L << (64 - prefix));
+            long lowMask = prefix <= 64 ? 0L : (prefix == 128 ? -1L : -1L << (128 - prefix));
+            return new long[]{network[0] & highMask, network[1] & lowMask,
+                    network[0] | ~highMask, network[1] | ~lowMask, 0};
+        }
+
+        if (columns.size() < 2) {
+            return null;
+        }
+
+        long[] start = GeoIpEnrich.parseAddress(first);
+        long[] end = GeoIpEnrich.parseAddress(columns.get(1));
+
+        if (start == null || end == null || start.length != end.length) {
+            return null;
+        }
+
+        if (start.length == 1) {
+            return start[0] <= end[0] ? new long[]{start[0], end[0], 0} : null;
+        }
+
+        long[] range = {start[0], start[1], end[0], end[1], 0};
+        return compareAddresses(range, 0, range, 2, 2) <= 0 ? range : null;
+    }
+
+    private static List<String> splitCsv(String line) {
+        List<String> columns = new ArrayList<>();
+        StringBuilder column = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+
+            if (c == '"') {
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    column.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                columns.add(column.toString().trim());
+                column.setLength(0);
+            } else {
+                column.append(c);
+            }
+        }
+
+        columns.add(column.toString().trim());
+        return columns;
+    }
+
+    /**
+     * Finds the range of an IPv4 address
+     *
+     * @param ip The address, as an unsigned 32-bit number
+     * @return The location id, or -1 if the address isn't on any range
+     */
+
+    public int findV4(long ip) {
+        int key = (int) ip ^ Integer.MIN_VALUE;
+        int low = 0;
+        int high = v4Count - 1;
+
+        // Finds the last range that starts before the address
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+
+            if (buffer.getInt(v4Starts + middle * 4) <= key) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        if (high >= 0 && buffer.getInt(v4Ends + high * 4) >= key) {
+            return buffer.getInt(v4Locations + high * 4);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Finds the range of an IPv6 address
+     *
+     * @param ipHigh The 64 high bits of the address
+     * @param ipLow  The 64 low bits of the address
+     * @return The location id, or -1 if the address isn't on any range
+     */
+
+    public int findV6(long ipHigh, long ipLow) {
+        long keyHigh = ipHigh ^ Long.MIN_VALUE;
+        long keyLow = ipLow ^ Long.MIN_VALUE;
+        int low = 0;
+        int high = v6Count - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+
+            if (compareV6(v6Starts + middle * 16, keyHigh, keyLow) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        if (high >= 0 && compareV6(v6Ends + high * 16, keyHigh, keyLow) >= 0) {
+            return buffer.getInt(v6Locations + high * 4);
+        }
+
+        return -1;
+    }
+
+    private int compareV6(int position, long keyHigh, long keyLow) {
+        long high = buffer.getLong(position);
+
+        if (high != keyHigh) {
+            return high < keyHigh ? -1 : 1;
+        }
+
+        long low = buffer.getLong(position + 8);
+        return low < keyLow ? -1 : (low == keyLow ? 0 : 1);
+    }
+
+    /**
+     * @param locationId The location id returned by a lookup
+     * @return The columns of the location
+     */
+
+    public String[] getLocation(int locationId) {
+        String[] location = locations.get(locationId);
+
+        if (location == null) {
+            int position = locationData + buffer.getInt(locationOffsets + locationId * 4);
+            location = new String[buffer.getShort(position) & 0xffff];
+            position += 2;
+
+            for (int i = 0; i < location.length; i++) {
+                byte[] value = new byte[buffer.getShort(position) & 0xffff];
+                position += 2;
+
+                for (int j = 0; j < value.length; j++) {
+                    value[j] = buffer.get(position + j);
+                }
+
+                position += value.length;
+                location[i] = new String(value, UTF8);
+            }
+
+            locations.set(locationId, location);
+        }
+
+        return location;
+    }
+
+    public int getV4Count() {
+        return v4Count;
+    }
+
+    public int getV6Count() {
+        return v6Count;
+    }
+
+    public int getLocationCount() {
+        return locationCount;
+    }
+}
@@ -0,0 +1,336 @@
+package net.redborder.samza.enrichments;
+
+import net.redborder.samza.store.StoreManager;
+import net.redborder.samza.util.Hashing;
+import org.apache.samza.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This enrichment adds the location of the IP addresses of a message, looked up on
+ * a database of IP ranges.
+ * <p/>
+ * <p>Its properties are read from "redborder.enrichments.types.enrichName.*":</p>
+ * <ul>
+ * <li>file: The CSV file with the ranges (default /opt/rb/etc/geoip/ranges.csv)</li>
+ * <li>compiled: The compiled database (default the CSV file followed by .bin)</li>
+ * <li>ips: The fields with IP addresses (default src,dst)</li>
+ * <li>columns: The names of the location columns of the CSV (default country_code).
+ * Each one is written on the field "ip_column", like src_country_code</li>
+ * <li>cache: The number of IPv4 lookups that are cached by each task (default 4096)</li>
+ * <li>check.ms: How often the CSV file is checked for changes (default 60000)</li>
+ * </ul>
+ * <p/>
+ * <p>The CSV file is compiled to a {@link GeoIpDatabase}, which is memory-mapped, so
+ * the ranges don't use heap space. The database of a file is shared by all the
+ * instances, and when the file is modified it is compiled again and replaced
+ * without blocking the readers, which just see the new database on their next lookup.</p>
+ */
+
+public class GeoIpEnrich extends DeltaEnrich {
+    private static final Logger log = LoggerFactory.getLogger(GeoIpEnrich.class);
+    private static final Map<String, Source> sources = new HashMap<>();
+    private static ScheduledExecutorService watcher;
+
+    private final Source source;
+    private final String[] ips;
+    private final String[] columns;
+    private final String[][] outputs;
+
+    // Direct-mapped cache of IPv4 lookups, valid for cachedDatabase
+    private final long[] cachedIps;
+    private final int[] cachedLocations;
+    private final int cacheMask;
+    private GeoIpDatabase cachedDatabase;
+
+    public GeoIpEnrich(String name, StoreManager storeManager, Config config) {
+        super(storeManager);
+        String prefix = "redborder.enrichments.types." + name + ".";
+        String file = config.get(prefix + "file", "/opt/rb/etc/geoip/ranges.csv");
+
+        this.ips = config.get(prefix + "ips", "src,dst").split(",");
+        this.columns = config.get(prefix + "columns", "country_code").split(",");
+        this.outputs = new String[ips.length][columns.length];
+
+        for (int i = 0; i < ips.length; i++) {
+            ips[i] = ips[i].trim();
+
+            for (int j = 0; j < columns.length; j++) {
+                outputs[i][j] = ips[i] + "_" + columns[j].trim();
+            }
+        }
+
+        int cacheSize = 1;
+        while (cacheSize < config.getInt(prefix + "cache", 4096)) {
+            cacheSize <<= 1;
+        }
+
+        this.cachedIps = new long[cacheSize];
+        this.cachedLocations = new int[cacheSize];
+        this.cacheMask = cacheSize - 1;
+        Arrays.fill(cachedIps, -1L);
+
+        this.source = getSource(file, config.get(prefix + "compiled", file + ".bin"),
+                config.getLong(prefix + "check.ms", 60000L));
+    }
+
+    private static synchronized Source getSource(String file, String compiled, long checkMs) {
+        Source source = sources.get(file);
+
+        if (source == null) {
+            source = new Source(new File(file), new File(compiled));
+            source.check();
+            sources.put(file, source);
+
+            if (checkMs > 0) {
+                if (watcher == null) {
+                    watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "geoip-watcher");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+
+                final Source watched = source;
+                watcher.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        watched.check();
+                    }
+                }, checkMs, checkMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        return source;
+    }
+
+    @Override
+    public void enrichInto(Map<String, Object> message, Map<String, Object> sink) {
+        GeoIpDatabase database = source.database;
+
+        if (database == null) {
+            return;
+        }
+
+        for (int i = 0; i < ips.length; i++) {
+            Object ip = message.get(ips[i]);
+
+            if (ip instanceof String) {
+                int locationId = find(database, (String) ip);
+
+                if (locationId >= 0) {
+                    String[] location = database.getLocation(locationId);
+
+                    for (int j = 0; j < columns.length && j < location.length; j++) {
+                        if (!location[j].isEmpty()) {
+                            sink.put(outputs[i][j], location[j]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param ip The IP address
+     * @return The location columns of the address, or null if it isn't on the database
+     */
+
+    public String[] getLocation(String ip) {
+        GeoIpDatabase database = source.database;
+
+        if (database == null) {
+            return null;
+        }
+
+        int locationId = find(database, ip);
+        return locationId >= 0 ? database.getLocation(locationId) : null;
+    }
+
+    /**
+     * Checks if the CSV file has changed, and replaces the database if it has.
+     * It is called periodically, but it can also be called to reload the file now.
+     */
+
+    public void checkForUpdates() {
+        source.check();
+    }
+
+    private int find(GeoIpDatabase database, String ip) {
+        long ipv4 = parseIpv4(ip);
+
+        if (ipv4 >= 0) {
+            if (database != cachedDatabase) {
+                Arrays.fill(cachedIps, -1L);
+                cachedDatabase = database;
+            }
+
+            int slot = (int) Hashing.mix64(ipv4) & cacheMask;
+
+            if (cachedIps[slot] != ipv4) {
+                cachedLocations[slot] = database.findV4(ipv4);
+                cachedIps[slot] = ipv4;
+            }
+
+            return cachedLocations[slot];
+        }
+
+        long[] address = parseAddress(ip);
+
+        if (address == null) {
+            return -1;
+        }
+
+        return address.length == 1 ? database.findV4(address[0]) : database.findV6(address[0], address[1]);
+    }
+
+    /**
+     * Parses a dotted IPv4 address without allocating
+     *
+     * @param ip The IP address
+     * @return The address as an unsigned 32-bit number, or -1 if it isn't a dotted IPv4 address
+     */
+
+    public static long parseIpv4(CharSequence ip) {
+        long address = 0;
+        int octet = 0;
+        int digits = 0;
+        int dots = 0;
+
+        for (int i = 0; i < ip.length(); i++) {
+            char c = ip.charAt(i);
+
+            if (c >= '0' && c <= '9') {
+                octet = octet * 10 + (c - '0');
+
+                if (++digits > 3 || octet > 255) {
+                    return -1L;
+                }
+            } else if (c == '.' && digits > 0 && dots < 3) {
+                address = (address << 8) | octet;
+                octet = 0;
+                digits = 0;
+                dots++;
+            } else {
+                return -1L;
+            }
+        }
+
+        if (dots != 3 || digits == 0) {
+            return -1L;
+        }
+
+        return (address << 8) | octet;
+    }
+
+    /**
+     * Parses an IPv4 or IPv6 address. IPv4-mapped IPv6 addresses are returned as IPv4.
+     *
+     * @param ip The IP address
+     * @return {address} for IPv4, {high, low} for IPv6, or null if it isn't an address
+     */
+
+    public static long[] parseAddress(String ip) {
+        long ipv4 = parseIpv4(ip);
+
+        if (ipv4 >= 0) {
+            return new long[]{ipv4};
+        }
+
+        // Only IPv6 literals are parsed, so the host names are never resolved
+        if (ip.indexOf(':') < 0) {
+            return null;
+        }
+
+        for (int i = 0; i < ip.length(); i++) {
+            char c = ip.charAt(i);
+
+            if (Character.digit(c, 16) < 0 && c != ':' && c != '.' && c != '[' && c != ']') {
+                return null;
+            }
+        }
+
+        try {
+            InetAddress address = InetAddress.getByName(ip);
+
+            if (address instanceof Inet4Address) {
+                return new long[]{ByteBuffer.wrap(address.getAddress()).getInt() & 0xffffffffL};
+            }
+
+            ByteBuffer bytes = ByteBuffer.wrap(address.getAddress());
+            return new long[]{bytes.getLong(), bytes.getLong()};
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A CSV file and its current compiled database
+     */
+
+    static class Source {
+        private final File csv;
+        private final File compiled;
+        private long lastModified = -1L;
+        volatile GeoIpDatabase database;
+
+        Source(File csv, File compiled) {
+            this.csv = csv;
+            this.compiled = compiled;
+        }
+
+        synchronized void check() {
+            try {
+                if (csv.exists()) {
+                    long modified = csv.lastModified();
+
+                    if (modified == lastModified) {
+                        return;
+                    }
+
+                    // A database compiled after the last change of the CSV is reused
+                    if (!compiled.exists() || compiled.lastModified() < modified || database != null) {
+                        int invalid = GeoIpDatabase.compile(csv, compiled);
+
+                        if (invalid > 0) {
+                            log.warn("Skipped {} invalid or overlapping ranges of {}", invalid, csv);
+                        }
+                    }
+
+                    lastModified = modified;
+                } else if (database == null && compiled.exists()) {
+                    // Without the CSV, the last compiled database is used
+                    lastModified = 0L;
+                } else {
+                    if (database == null && lastModified != 0L) {
+                        log.error("The GeoIP file {} doesn't exist", csv);
+                        lastModified = 0L;
+                    }
+
+                    return;
+                }
+
+                GeoIpDatabase newDatabase = GeoIpDatabase.open(compiled);
+                log.info("Loaded {} GeoIP ranges from {}", newDatabase.getV4Count() + newDatabase.getV6Count(), compiled);
+                database = newDatabase;
+            } catch (IOException e) {
+                log.error("Couldn't load the GeoIP file " + csv, e);
+            }
+        }
+    }
+}
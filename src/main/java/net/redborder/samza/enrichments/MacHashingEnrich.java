@@ -0,0 +1,179 @@
+package net.redborder.samza.enrichments;
+
+import net.redborder.samza.store.StoreManager;
+import net.redborder.samza.util.Hashing;
+import org.apache.samza.config.Config;
+import org.apache.samza.config.ConfigException;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This enrichment pseudonymizes the MAC addresses of a message, replacing them with
+ * a keyed SipHash-2-4 hash of the address. The hash is formatted as a locally
+ * administered unicast MAC, so the processors that expect MACs keep working, and
+ * the same MAC always gets the same pseudonym on the same namespace.
+ * <p/>
+ * <p>Its properties are read from "redborder.enrichments.types.enrichName.*":</p>
+ * <ul>
+ * <li>salt: The secret used to derive the keys (required, the task fails to start without it,
+ * so the MACs are never sent without pseudonymizing them)</li>
+ * <li>salt.namespace: The secret of a namespace, instead of deriving it from the salt</li>
+ * <li>fields: The fields with MAC addresses (default client_mac)</li>
+ * <li>namespace.field: The field with the namespace of the message (default namespace_uuid)</li>
+ * <li>cache: The number of pseudonyms that are cached (default 65536)</li>
+ * </ul>
+ * <p/>
+ * <p>The MACs are parsed and hashed from the chars of the field, without intermediate
+ * strings, and the recent pseudonyms are kept on a direct-mapped cache, as the same
+ * MACs repeat constantly. The values that aren't MACs are left unchanged.</p>
+ */
+
+public class MacHashingEnrich extends DeltaEnrich {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String prefix;
+    private final Config config;
+    private final String[] fields;
+    private final String namespaceField;
+    private final Key defaultKey;
+    private final Map<String, Key> namespaceKeys = new HashMap<>();
+
+    // Direct-mapped cache of the pseudonyms
+    private final long[] cachedMacs;
+    private final Key[] cachedKeys;
+    private final String[] cachedPseudonyms;
+    private final int cacheMask;
+
+    public MacHashingEnrich(String name, StoreManager storeManager, Config config) {
+        super(storeManager);
+        this.prefix = "redborder.enrichments.types." + name + ".";
+        this.config = config;
+
+        String salt = config.get(prefix + "salt");
+        if (salt == null || salt.isEmpty()) {
+            throw new ConfigException("Missing the property " + prefix + "salt");
+        }
+
+        List<String> fieldsList = config.getList(prefix + "fields", Arrays.asList("client_mac"));
+        this.fields = fieldsList.toArray(new String[fieldsList.size()]);
+        this.namespaceField = config.get(prefix + "namespace.field", "namespace_uuid");
+        this.defaultKey = Key.fromSecret(salt);
+
+        int cacheSize = 1;
+        while (cacheSize < config.getInt(prefix + "cache", 65536)) {
+            cacheSize <<= 1;
+        }
+
+        this.cachedMacs = new long[cacheSize];
+        this.cachedKeys = new Key[cacheSize];
+        this.cachedPseudonyms = new String[cacheSize];
+        this.cacheMask = cacheSize - 1;
+    }
+
+    @Override
+    public void enrichInto(Map<String, Object> message, Map<String, Object> sink) {
+        Key key = null;
+
+        for (String field : fields) {
+            Object value = message.get(field);
+
+            if (value instanceof String) {
+                long mac = MacVendorEnrich.parseMac((String) value);
+
+                if (mac >= 0) {
+                    if (key == null) {
+                        key = getKey(message.get(namespaceField));
+                    }
+
+                    sink.put(field, pseudonym(key, mac));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param mac       The MAC address
+     * @param namespace The namespace, or null for the default one
+     * @return The pseudonym of the MAC, or null if it isn't a MAC
+     */
+
+    public String getPseudonym(String mac, String namespace) {
+        long value = MacVendorEnrich.parseMac(mac);
+        return value >= 0 ? pseudonym(getKey(namespace), value) : null;
+    }
+
+    private Key getKey(Object namespace) {
+        if (!(namespace instanceof String)) {
+            return defaultKey;
+        }
+
+        Key key = namespaceKeys.get(namespace);
+
+        if (key == null) {
+            String secret = config.get(prefix + "salt." + namespace);
+            key = secret != null ? Key.fromSecret(secret) : defaultKey.derive((String) namespace);
+            namespaceKeys.put((String) namespace, key);
+        }
+
+        return key;
+    }
+
+    private String pseudonym(Key key, long mac) {
+        int slot = (int) Hashing.mix64(mac ^ key.k0) & cacheMask;
+
+        if (cachedKeys[slot] == key && cachedMacs[slot] == mac) {
+            return cachedPseudonyms[slot];
+        }
+
+        String pseudonym = format(Hashing.sipHash24(key.k0, key.k1, mac));
+        cachedMacs[slot] = mac;
+        cachedKeys[slot] = key;
+        cachedPseudonyms[slot] = pseudonym;
+
+        return pseudonym;
+    }
+
+    // Formats the low 48 bits as a locally administered unicast MAC
+    private static String format(long hash) {
+        long mac = (hash & 0xfeffffffffffL) | 0x020000000000L;
+        char[] chars = new char[17];
+
+        for (int i = 0; i < 6; i++) {
+            int octet = (int) (mac >>> (40 - i * 8)) & 0xff;
+            chars[i * 3] = HEX[octet >>> 4];
+            chars[i * 3 + 1] = HEX[octet & 0xf];
+
+            if (i < 5) {
+                chars[i * 3 + 2] = ':';
+            }
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * A 128-bit SipHash key
+     */
+
+    static class Key {
+        final long k0;
+        final long k1;
+
+        Key(long k0, long k1) {
+            this.k0 = k0;
+            this.k1 = k1;
+        }
+
+        static Key fromSecret(String secret) {
+            return new Key(Hashing.sipHash24(0x0706050403020100L, 0x0f0e0d0c0b0a0908L, secret),
+                    Hashing.sipHash24(0x0f0e0d0c0b0a0908L, 0x0706050403020100L, secret));
+        }
+
+        Key derive(String namespace) {
+            return new Key(Hashing.sipHash24(k0, k1, namespace), Hashing.sipHash24(k1, k0, namespace));
+        }
+    }
+}
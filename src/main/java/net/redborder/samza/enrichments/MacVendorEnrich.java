@@ -0,0 +1,273 @@
+package net.redborder.samza.enrichments;
+
+import net.redborder.samza.store.StoreManager;
+import net.redborder.samza.util.LongObjectMap;
+import org.apache.samza.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This enrichment adds the vendor of a MAC address, looked up by its OUI prefix.
+ * <p/>
+ * <p>Its properties are read from "redborder.enrichments.types.enrichName.*":</p>
+ * <ul>
+ * <li>file: The OUI file (default /opt/rb/etc/objects/mac_vendors)</li>
+ * <li>field: The field with the MAC address (default client_mac)</li>
+ * <li>output: The field where the vendor is written (default client_mac_vendor)</li>
+ * </ul>
+ * <p/>
+ * <p>The OUI file has a prefix and a vendor on each line, separated by tabs, like
+ * the Wireshark manuf file: "00:1B:C5" for 24-bit prefixes or "00:1B:C5:00:00:00/36"
+ * for 28 and 36-bit prefixes. If there are several names, the last one is used.
+ * Lines starting with # are ignored.</p>
+ * <p/>
+ * <p>The MACs are parsed to a long without allocating, and each prefix length has
+ * its own primitive hash table, so the longest prefix is found with at most three
+ * probes. The tables of a file are shared by all the instances, and each vendor
+ * name is kept only once.</p>
+ */
+
+public class MacVendorEnrich extends DeltaEnrich {
+    private static final Logger log = LoggerFactory.getLogger(MacVendorEnrich.class);
+    private static final Map<String, VendorTable> tables = new HashMap<>();
+
+    private final VendorTable table;
+    private final String field;
+    private final String output;
+
+    public MacVendorEnrich(String name, StoreManager storeManager, Config config) {
+        super(storeManager);
+        String prefix = "redborder.enrichments.types." + name + ".";
+
+        this.field = config.get(prefix + "field", "client_mac");
+        this.output = config.get(prefix + "output", "client_mac_vendor");
+        this.table = getTable(config.get(prefix + "file", "/opt/rb/etc/objects/mac_vendors"));
+    }
+
+    private static synchronized VendorTable getTable(String fileName) {
+        VendorTable table = tables.get(fileName);
+
+        if (table == null) {
+            table = new VendorTable();
+
+            try {
+                table.load(new File(fileName));
+                log.info("Loaded {} MAC vendor prefixes from {}", table.size(), fileName);
+            } catch (IOException e) {
+                log.error("Couldn't load the MAC vendors file " + fileName, e);
+            }
+
+            tables.put(fileName, table);
+        }
+
+        return table;
+    }
+
+    @Override
+    public void enrichInto(Map<String, Object> message, Map<String, Object> sink) {
+        Object mac = message.get(field);
+
+        if (mac instanceof String) {
+            String vendor = table.lookup(parseMac((String) mac));
+
+            if (vendor != null) {
+                sink.put(output, vendor);
+            }
+        }
+    }
+
+    /**
+     * @param mac The MAC address
+     * @return The vendor of the MAC, or null if it isn't known
+     */
+
+    public String getVendor(String mac) {
+        return table.lookup(parseMac(mac));
+    }
+
+    /**
+     * Parses a MAC address with any of the usual separators (':', '-' or '.')
+     * or without them.
+     *
+     * @param mac The MAC address
+     * @return The 48-bit MAC address, or -1 if it isn't valid
+     */
+
+    public static long parseMac(CharSequence mac) {
+        long value = 0;
+        int digits = 0;
+
+        for (int i = 0; i < mac.length(); i++) {
+            char c = mac.charAt(i);
+            int digit;
+
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                digit = c - 'a' + 10;
+            } else if (c >= 'A' && c <= 'F') {
+                digit = c - 'A' + 10;
+            } else if (c == ':' || c == '-' || c == '.') {
+                continue;
+            } else {
+                return -1L;
+            }
+
+            if (++digits > 12) {
+                return -1L;
+            }
+
+            value = (value << 4) | digit;
+        }
+
+        return digits == 12 ? value : -1L;
+    }
+
+    /**
+     * The vendors of the 24, 28 and 36-bit prefixes
+     */
+
+    static class VendorTable {
+        private final LongObjectMap<String> prefixes24 = new LongObjectMap<>(32768);
+        private final LongObjectMap<String> prefixes28 = new LongObjectMap<>(8192);
+        private final LongObjectMap<String> prefixes36 = new LongObjectMap<>(8192);
+
+        /**
+         * @param mac The 48-bit MAC address
+         * @return The vendor of the longest prefix of the MAC, or null if there isn't any
+         */
+
+        String lookup(long mac) {
+            if (mac < 0) {
+                return null;
+            }
+
+            String vendor = null;
+
+            if (!prefixes36.isEmpty()) {
+                vendor = prefixes36.get(mac >>> 12);
+            }
+
+            if (vendor == null && !prefixes28.isEmpty()) {
+                vendor = prefixes28.get(mac >>> 20);
+            }
+
+            if (vendor == null) {
+                vendor = prefixes24.get(mac >>> 24);
+            }
+
+            return vendor;
+        }
+
+        void load(File file) throws IOException {
+            Map<String, String> vendors = new HashMap<>();
+            int skipped = 0;
+
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+                String line;
+
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+
+                    if (!add(line, vendors)) {
+                        skipped++;
+                    }
+                }
+            }
+
+            if (skipped > 0) {
+                log.warn("Skipped {} invalid lines of the MAC vendors file {}", skipped, file);
+            }
+        }
+
+        private boolean add(String line, Map<String, String> vendors) {
+            String[] columns = line.split("\t");
+
+            if (columns.length < 2) {
+                return false;
+            }
+
+            String prefixColumn = columns[0].trim();
+            int bits = -1;
+            int slash = prefixColumn.indexOf('/');
+
+            if (slash >= 0) {
+                try {
+                    bits = Integer.parseInt(prefixColumn.substring(slash + 1));
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+
+                prefixColumn = prefixColumn.substring(0, slash);
+            }
+
+            long value = 0;
+            int digits = 0;
+
+            for (int i = 0; i < prefixColumn.length(); i++) {
+                int digit = Character.digit(prefixColumn.charAt(i), 16);
+
+                if (digit >= 0) {
+                    value = (value << 4) | digit;
+                    digits++;
+                } else if (":-.".indexOf(prefixColumn.charAt(i)) < 0) {
+                    return false;
+                }
+            }
+
+            if (bits < 0) {
+                bits = digits * 4;
+            }
+
+            if (digits > 12 || bits > digits * 4) {
+                return false;
+            }
+
+            String vendor = null;
+            for (int i = columns.length - 1; i > 0 && vendor == null; i--) {
+                String name = columns[i].trim();
+
+                if (!name.isEmpty()) {
+                    vendor = name;
+                }
+            }
+
+            if (vendor == null) {
+                return false;
+            }
+
+            // Each vendor name is kept only once
+            String interned = vendors.get(vendor);
+            if (interned == null) {
+                interned = vendor;
+                vendors.put(vendor, vendor);
+            }
+
+            long mac = value << (48 - digits * 4);
+
+            if (bits == 24) {
+                prefixes24.put(mac >>> 24, interned);
+            } else if (bits == 28) {
+                prefixes28.put(mac >>> 20, interned);
+            } else if (bits == 36) {
+                prefixes36.put(mac >>> 12, interned);
+            } else {
+                return false;
+            }
+
+            return true;
+        }
+
+        int size() {
+            return prefixes24.size() + prefixes28.size() + prefixes36.size();
+        }
+    }
+}
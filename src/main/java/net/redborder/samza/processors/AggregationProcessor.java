@@ -0,0 +1,392 @@
+package net.redborder.samza.processors;
+
+import net.redborder.samza.enrichments.EnrichManager;
+import net.redborder.samza.store.StoreManager;
+import net.redborder.samza.util.HyperLogLog;
+import org.apache.samza.config.Config;
+import org.apache.samza.config.ConfigException;
+import org.apache.samza.metrics.Counter;
+import org.apache.samza.storage.kv.Entry;
+import org.apache.samza.storage.kv.KeyValueIterator;
+import org.apache.samza.storage.kv.KeyValueStore;
+import org.apache.samza.system.OutgoingMessageEnvelope;
+import org.apache.samza.system.SystemStream;
+import org.apache.samza.task.MessageCollector;
+import org.apache.samza.task.TaskContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * This processor aggregates messages by a group of dimensions over tumbling or
+ * sliding time windows, and emits one message for each group when its window closes.
+ * <p/>
+ * <p>Its properties are read from "redborder.processors.types.processorName.*":</p>
+ * <ul>
+ * <li>output: The stream where the aggregates are sent, as system.stream</li>
+ * <li>dimensions: The fields used to group the messages</li>
+ * <li>aggregations: A list of aggregations like count, sum:field, min:field,
+ * max:field or distinct:field. An optional third element sets the output field name.</li>
+ * <li>timestamp: The field with the message time in seconds (default timestamp)</li>
+ * <li>window.ms: The size of the windows (default 60000)</li>
+ * <li>slide.ms: The interval between windows. If it is the same as the size, the windows are tumbling</li>
+ * <li>lateness.ms: How long a window waits for late messages after it ends (default 0)</li>
+ * <li>skew.ms: How far ahead of the clock the message times can move the time (default 60000)</li>
+ * <li>distinct.precision: The precision of the distinct count estimations (default 10)</li>
+ * <li>store: The KV store where the open windows are saved, so they survive restarts</li>
+ * </ul>
+ * <p/>
+ * <p>Open windows are aggregated in memory and saved to the store on every task window,
+ * when the windows that have been closed are also emitted. The time advances with
+ * the time of the messages, up to the clock plus the allowed skew, or with the clock
+ * if no messages are received. The messages that arrive after their windows have
+ * been emitted are dropped and counted as late.</p>
+ */
+
+public class AggregationProcessor extends Processor {
+    private static final Logger log = LoggerFactory.getLogger(AggregationProcessor.class);
+
+    private String name;
+    private SystemStream output;
+    private List<String> dimensions;
+    private List<Aggregation> aggregations = new ArrayList<>();
+    private String timestampField;
+    private long windowSize;
+    private long slide;
+    private long lateness;
+    private long maxSkew;
+    private int distinctPrecision;
+    private KeyValueStore<String, Map<String, Object>> store;
+
+    private Map<String, Aggregate> aggregates = new HashMap<>();
+    private long watermark = 0;
+    private long lastMessageTime = System.currentTimeMillis();
+    private Counter lateMessages;
+
+    public AggregationProcessor(String name, StoreManager storeManager, EnrichManager enrichManager, Config config, TaskContext context) {
+        super(storeManager, enrichManager, config, context);
+        String prefix = "redborder.processors.types." + name + ".";
+
+        this.name = name;
+        String outputName = config.get(prefix + "output");
+        if (outputName == null) {
+            throw new ConfigException("Missing the property " + prefix + "output");
+        }
+
+        int dot = outputName.indexOf('.');
+        this.output = new SystemStream(outputName.substring(0, dot), outputName.substring(dot + 1));
+        this.dimensions = config.getList(prefix + "dimensions", Collections.<String>emptyList());
+        this.timestampField = config.get(prefix + "timestamp", "timestamp");
+        this.windowSize = config.getLong(prefix + "window.ms", 60000L);
+        this.slide = config.getLong(prefix + "slide.ms", windowSize);
+        this.lateness = config.getLong(prefix + "lateness.ms", 0L);
+        this.maxSkew = config.getLong(prefix + "skew.ms", 60000L);
+        this.lateMessages = context.getMetricsRegistry().newCounter(AggregationProcessor.class.getName(),
+                "aggregation-" + name + "-late");
+        this.distinctPrecision = config.getInt(prefix + "distinct.precision", 10);
+
+        for (String aggregation : config.getList(prefix + "aggregations", Collections.singletonList("count"))) {
+            String[] parts = aggregation.trim().split(":");
+            Operation operation;
+
+            try {
+                operation = Operation.valueOf(parts[0].toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new ConfigException("The property " + prefix + "aggregations must use the operations count, sum, min, max or distinct, not " + parts[0]);
+            }
+
+            String field = parts.length > 1 ? parts[1] : null;
+            String outputField;
+
+            if (parts.length > 2) {
+                outputField = parts[2];
+            } else if (field != null) {
+                outputField = parts[0] + "_" + field;
+            } else {
+                outputField = parts[0];
+            }
+
+            aggregations.add(new Aggregation(operation, field, outputField));
+        }
+
+        String storeName = config.get(prefix + "store");
+        if (storeName != null) {
+            this.store = (KeyValueStore<String, Map<String, Object>>) context.getStore(storeName);
+            restore();
+        }
+
+        log.info("Aggregation processor {} with windows of " + windowSize + " ms every " + slide + " ms, dimensions {}",
+                name, dimensions);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void process(Map<String, Object> message, MessageCollector collector) {
+        if (enrichManager.hasEnrichments()) {
+            message = enrichManager.enrich(message);
+        }
+
+        long time;
+        Object timestamp = message.get(timestampField);
+
+        if (timestamp instanceof Number) {
+            time = ((Number) timestamp).longValue() * 1000L;
+        } else {
+            time = System.currentTimeMillis();
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (String dimension : dimensions) {
+            Object value = message.get(dimension);
+            builder.append(':');
+
+            if (value != null) {
+                builder.append(value);
+            }
+        }
+
+        String groupKey = builder.toString();
+        long lastStart = time - (time % slide);
+        boolean added = false;
+
+        for (long start = lastStart; start > time - windowSize; start -= slide) {
+            String key = start + groupKey;
+            Aggregate aggregate = aggregates.get(key);
+
+            // The closed windows that aren't open anymore have already been emitted
+            if (aggregate == null && start + windowSize + lateness <= watermark) {
+                continue;
+            }
+
+            if (aggregate == null) {
+                Map<String, Object> dimensionValues = new HashMap<>();
+
+                for (String dimension : dimensions) {
+                    Object value = message.get(dimension);
+
+                    if (value != null) {
+                        dimensionValues.put(dimension, value);
+                    }
+                }
+
+                aggregate = new Aggregate(start, dimensionValues);
+                aggregates.put(key, aggregate);
+            }
+
+            aggregate.add(message);
+            added = true;
+        }
+
+        if (!added) {
+            lateMessages.inc();
+            log.debug("Dropping a late message of the aggregation {} with time {}", name, time);
+        }
+
+        // A message from the future can't close the open windows early
+        long now = System.currentTimeMillis();
+        watermark = Math.max(watermark, Math.min(time, now + maxSkew));
+        lastMessageTime = now;
+    }
+
+    /**
+     * @return The number of messages dropped because their windows had been emitted
+     */
+
+    public long getLateMessages() {
+        return lateMessages.getCount();
+    }
+
+    @Override
+    public void window(MessageCollector collector) {
+        long now = System.currentTimeMillis();
+
+        // Without messages the time advances with the clock
+        if (now - lastMessageTime > windowSize + lateness) {
+            watermark = Math.max(watermark, now);
+        }
+
+        List<String> closed = new ArrayList<>();
+        List<Entry<String, Map<String, Object>>> dirty = new ArrayList<>();
+        Iterator<Map.Entry<String, Aggregate>> iterator = aggregates.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            Map.Entry<String, Aggregate> entry = iterator.next();
+            Aggregate aggregate = entry.getValue();
+
+            if (aggregate.start + windowSize + lateness <= watermark) {
+                collector.send(new OutgoingMessageEnvelope(output, aggregate.toMessage()));
+                closed.add(entry.getKey());
+                iterator.remove();
+            } else if (aggregate.dirty) {
+                dirty.add(new Entry<>(entry.getKey(), aggregate.toStoreValue()));
+                aggregate.dirty = false;
+            }
+        }
+
+        if (store != null) {
+            if (!dirty.isEmpty()) {
+                store.putAll(dirty);
+            }
+
+            if (!closed.isEmpty()) {
+                store.deleteAll(closed);
+            }
+        }
+    }
+
+    private void restore() {
+        KeyValueIterator<String, Map<String, Object>> iterator = store.all();
+
+        if (iterator != null) {
+            while (iterator.hasNext()) {
+                Entry<String, Map<String, Object>> entry = iterator.next();
+                Aggregate aggregate = restoreAggregate(entry.getValue());
+                aggregates.put(entry.getKey(), aggregate);
+                watermark = Math.max(watermark, aggregate.start);
+            }
+
+            iterator.close();
+            log.info("Aggregation processor {} restored {} open windows", name, aggregates.size());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Aggregate restoreAggregate(Map<String, Object> value) {
+        Aggregate aggregate = new Aggregate(((Number) value.get("start")).longValue(),
+                (Map<String, Object>) value.get("dimensions"));
+        List<Object> storedValues = (List<Object>) value.get("values");
+        List<String> storedSketches = (List<String>) value.get("sketches");
+
+        for (int i = 0; i < aggregate.values.length && i < storedValues.size(); i++) {
+            aggregate.values[i] = (Number) storedValues.get(i);
+
+            if (storedSketches.get(i) != null) {
+                aggregate.sketches[i] = HyperLogLog.fromHex(storedSketches.get(i));
+            }
+        }
+
+        aggregate.dirty = false;
+        return aggregate;
+    }
+
+    private static Number sum(Number a, Number b) {
+        if (a == null) {
+            return b;
+        } else if (isIntegral(a) && isIntegral(b)) {
+            return a.longValue() + b.longValue();
+        } else {
+            return a.doubleValue() + b.doubleValue();
+        }
+    }
+
+    private static boolean isIntegral(Number number) {
+        return number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte;
+    }
+
+    private enum Operation {
+        COUNT, SUM, MIN, MAX, DISTINCT
+    }
+
+    private static class Aggregation {
+        final Operation operation;
+        final String field;
+        final String outputField;
+
+        Aggregation(Operation operation, String field, String outputField) {
+            this.operation = operation;
+            this.field = field;
+            this.outputField = outputField;
+        }
+    }
+
+    private class Aggregate {
+        final long start;
+        final Map<String, Object> dimensionValues;
+        final Number[] values = new Number[aggregations.size()];
+        final HyperLogLog[] sketches = new HyperLogLog[aggregations.size()];
+        boolean dirty = true;
+
+        Aggregate(long start, Map<String, Object> dimensionValues) {
+            this.start = start;
+            this.dimensionValues = dimensionValues;
+        }
+
+        void add(Map<String, Object> message) {
+            for (int i = 0; i < values.length; i++) {
+                Aggregation aggregation = aggregations.get(i);
+
+                if (aggregation.operation == Operation.COUNT) {
+                    values[i] = sum(values[i], 1L);
+                    continue;
+                }
+
+                Object value = message.get(aggregation.field);
+                if (value == null) {
+                    continue;
+                }
+
+                if (aggregation.operation == Operation.DISTINCT) {
+                    if (sketches[i] == null) {
+                        sketches[i] = new HyperLogLog(distinctPrecision);
+                    }
+
+                    sketches[i].offer(value);
+                } else if (value instanceof Number) {
+                    Number number = (Number) value;
+
+                    if (aggregation.operation == Operation.SUM) {
+                        values[i] = sum(values[i], number);
+                    } else if (aggregation.operation == Operation.MIN) {
+                        if (values[i] == null || number.doubleValue() < values[i].doubleValue()) {
+                            values[i] = number;
+                        }
+                    } else if (values[i] == null || number.doubleValue() > values[i].doubleValue()) {
+                        values[i] = number;
+                    }
+                }
+            }
+
+            dirty = true;
+        }
+
+        Map<String, Object> toMessage() {
+            Map<String, Object> message = new HashMap<>();
+            message.putAll(dimensionValues);
+            message.put("timestamp", start / 1000L);
+
+            for (int i = 0; i < values.length; i++) {
+                Aggregation aggregation = aggregations.get(i);
+
+                if (aggregation.operation == Operation.DISTINCT) {
+                    message.put(aggregation.outputField, sketches[i] == null ? 0L : sketches[i].cardinality());
+                } else if (values[i] != null) {
+                    message.put(aggregation.outputField, values[i]);
+                }
+            }
+
+            return message;
+        }
+
+        Map<String, Object> toStoreValue() {
+            List<Object> storedValues = new ArrayList<>();
+            List<String> storedSketches = new ArrayList<>();
+
+            for (int i = 0; i < values.length; i++) {
+                storedValues.add(values[i]);
+                storedSketches.add(sketches[i] == null ? null : sketches[i].toHex());
+            }
+
+            Map<String, Object> value = new HashMap<>();
+            value.put("start", start);
+            value.put("dimensions", dimensionValues);
+            value.put("values", storedValues);
+            value.put("sketches", storedSketches);
+            return value;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package net.redborder.samza.processors;
+
+import net.redborder.samza.enrichments.EnrichManager;
+import net.redborder.samza.store.CompositeKey;
+import net.redborder.samza.store.StoreManager;
+import org.apache.samza.config.Config;
+import org.apache.samza.config.ConfigException;
+import org.apache.samza.storage.kv.Entry;
+import org.apache.samza.storage.kv.KeyValueIterator;
+import org.apache.samza.storage.kv.KeyValueStore;
+import org.apache.samza.system.OutgoingMessageEnvelope;
+import org.apache.samza.system.SystemStream;
+import org.apache.samza.task.MessageCollector;
+import org.apache.samza.task.TaskContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * This processor joins two streams by a key, like the flows with the latest
+ * location of their client. It has two roles, each one configured as its own
+ * processor type and assigned to one of the streams:
+ * <ul>
+ * <li>build: Saves the latest message of each key on the join store.</li>
+ * <li>probe: Enriches each message with the saved message of its key, and sends it.</li>
+ * </ul>
+ * <p/>
+ * <p>Its properties are read from "redborder.processors.types.processorName.*":</p>
+ * <ul>
+ * <li>role: build or probe</li>
+ * <li>store: The KV store shared by both roles</li>
+ * <li>keys: The fields of the join key, which must be the same on both roles</li>
+ * <li>timestamp: The field with the message time in seconds (default timestamp)</li>
+ * <li>ttl.ms: How long a saved message can be joined (default 600000)</li>
+ * <li>fields (build): The fields that are saved (default all of them)</li>
+ * <li>skew.ms (build): How far ahead of the clock the message times can move the time (default 60000)</li>
+ * <li>output (probe): The stream where the joined messages are sent, as system.stream</li>
+ * <li>overwrite (probe): If the saved fields overwrite the fields of the message (default false)</li>
+ * <li>holdback.ms (probe): How long a message without match waits for its key (default 0)</li>
+ * <li>holdback.max (probe): The maximum number of messages waiting (default 10000)</li>
+ * <li>holdback.store (probe): A KV store where the waiting messages are saved, so they survive
+ * restarts (required with holdback.ms)</li>
+ * </ul>
+ * <p/>
+ * <p>Both streams must be partitioned by the join key, so the messages of a key
+ * reach the same task. The waiting messages are retried on every task window, and
+ * sent without join when they have waited too long.</p>
+ * <p/>
+ * <p>The saved messages are expired on the window against the time of the build
+ * messages, the same time that the joins compare, so replaying old messages doesn't
+ * expire them before they are joined.</p>
+ */
+
+public class JoinProcessor extends Processor {
+    private static final Logger log = LoggerFactory.getLogger(JoinProcessor.class);
+    private static final String TIME_FIELD = "time";
+    private static final String FIELDS_FIELD = "fields";
+
+    private String name;
+    private boolean build;
+    private KeyValueStore<String, Map<String, Object>> store;
+    private String[] keys;
+    private String timestampField;
+    private long ttl;
+
+    // Build role
+    private List<String> fields;
+    private LinkedHashMap<String, Long> written = new LinkedHashMap<>();
+    private long maxSkew;
+    private long watermark = 0;
+
+    // Probe role
+    private SystemStream output;
+    private boolean overwrite;
+    private long holdback;
+    private int maxHeld;
+    private KeyValueStore<String, Map<String, Object>> holdbackStore;
+    private LinkedHashMap<String, Held> held = new LinkedHashMap<>();
+    private long heldSequence = 0;
+
+    public JoinProcessor(String name, StoreManager storeManager, EnrichManager enrichManager, Config config, TaskContext context) {
+        super(storeManager, enrichManager, config, context);
+        String prefix = "redborder.processors.types." + name + ".";
+
+        this.name = name;
+        this.build = config.get(prefix + "role", "probe").equals("build");
+        this.keys = config.getList(prefix + "keys").toArray(new String[0]);
+        this.timestampField = config.get(prefix + "timestamp", "timestamp");
+        this.ttl = config.getLong(prefix + "ttl.ms", 600000L);
+
+        String storeName = config.get(prefix + "store");
+        if (storeName == null) {
+            throw new ConfigException("Missing the property " + prefix + "store");
+        }
+
+        this.store = (KeyValueStore<String, Map<String, Object>>) context.getStore(storeName);
+
+        if (build) {
+            this.fields = config.getList(prefix + "fields", Collections.<String>emptyList());
+            this.maxSkew = config.getLong(prefix + "skew.ms", 60000L);
+            restoreWritten();
+        } else {
+            String outputName = config.get(prefix + "output");
+            if (outputName == null) {
+                throw new ConfigException("Missing the property " + prefix + "output");
+            }
+
+            int dot = outputName.indexOf('.');
+            this.output = new SystemStream(outputName.substring(0, dot), outputName.substring(dot + 1));
+            this.overwrite = config.getBoolean(prefix + "overwrite", false);
+            this.holdback = config.getLong(prefix + "holdback.ms", 0L);
+            this.maxHeld = config.getInt(prefix + "holdback.max", 10000);
+
+            String holdbackStoreName = config.get(prefix + "holdback.store");
+            if (holdback > 0 && holdbackStoreName == null) {
+                // The offsets of the waiting messages are committed, so they would be lost on a restart
+                throw new ConfigException("The property " + prefix + "holdback.ms needs " + prefix + "holdback.store");
+            }
+
+            if (holdbackStoreName != null) {
+                this.holdbackStore = (KeyValueStore<String, Map<String, Object>>) context.getStore(holdbackStoreName);
+                restoreHeld();
+            }
+        }
+
+        log.info("Join processor {} with role " + (build ? "build" : "probe") + " on the store {}", name, storeName);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void process(Map<String, Object> message, MessageCollector collector) {
+        if (enrichManager.hasEnrichments()) {
+            message = enrichManager.enrich(message);
+        }
+
+        String key = CompositeKey.encode(message, keys);
+
+        if (build) {
+            if (key != null) {
+                save(key, message);
+            }
+        } else if (key == null || !join(key, message, collector)) {
+            if (key != null && holdback > 0) {
+                hold(key, message, collector);
+            } else {
+                collector.send(new OutgoingMessageEnvelope(output, message));
+            }
+        }
+    }
+
+    @Override
+    public void window(MessageCollector collector) {
+        if (build) {
+            expireWritten();
+        } else {
+            retryHeld(collector);
+        }
+    }
+
+    private void save(String key, Map<String, Object> message) {
+        Map<String, Object> saved = new HashMap<>();
+
+        if (fields.isEmpty()) {
+            saved.putAll(message);
+        } else {
+            for (String field : fields) {
+                Object value = message.get(field);
+
+                if (value != null) {
+                    saved.put(field, value);
+                }
+            }
+        }
+
+        long time = messageTime(message);
+        Map<String, Object> value = new HashMap<>();
+        value.put(TIME_FIELD, time);
+        value.put(FIELDS_FIELD, saved);
+        store.put(key, value);
+
+        written.remove(key);
+        written.put(key, time);
+        // The future times are limited, so a wrong clock can't expire all the keys
+        watermark = Math.max(watermark, Math.min(time, System.currentTimeMillis() + maxSkew));
+    }
+
+    // The keys are kept in write order, so the expired ones are at the head
+    private void expireWritten() {
+        long limit = watermark - ttl;
+        List<String> expired = new ArrayList<>();
+        Iterator<Map.Entry<String, Long>> iterator = written.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+
+            if (entry.getValue() >= limit) {
+                break;
+            }
+
+            expired.add(entry.getKey());
+            iterator.remove();
+        }
+
+        if (!expired.isEmpty()) {
+            store.deleteAll(expired);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean join(String key, Map<String, Object> message, MessageCollector collector) {
+        Map<String, Object> value = store.get(key);
+
+        if (value == null || Math.abs(messageTime(message) - ((Number) value.get(TIME_FIELD)).longValue()) > ttl) {
+            return false;
+        }
+
+        Map<String, Object> joined = new HashMap<>();
+        Map<String, Object> saved = (Map<String, Object>) value.get(FIELDS_FIELD);
+
+        if (overwrite) {
+            joined.putAll(message);
+            joined.putAll(saved);
+        } else {
+            joined.putAll(saved);
+            joined.putAll(message);
+        }
+
+        collector.send(new OutgoingMessageEnvelope(output, joined));
+        return true;
+    }
+
+    private void hold(String key, Map<String, Object> message, MessageCollector collector) {
+        // When too many messages are waiting, the oldest one is sent without join
+        if (held.size() >= maxHeld) {
+            Iterator<Map.Entry<String, Held>> iterator = held.entrySet().iterator();
+            Map.Entry<String, Held> oldest = iterator.next();
+            collector.send(new OutgoingMessageEnvelope(output, oldest.getValue().message));
+            iterator.remove();
+
+            if (holdbackStore != null) {
+                holdbackStore.delete(oldest.getKey());
+            }
+        }
+
+        String heldKey = CompositeKey.encode(String.format("%019d", heldSequence++), key);
+        Held waiting = new Held(key, message, System.currentTimeMillis() + holdback);
+        held.put(heldKey, waiting);
+
+        if (holdbackStore != null) {
+            holdbackStore.put(heldKey, waiting.toStoreValue());
+        }
+    }
+
+    private void retryHeld(MessageCollector collector) {
+        long now = System.currentTimeMillis();
+        List<String> released = new ArrayList<>();
+        Iterator<Map.Entry<String, Held>> iterator = held.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            Map.Entry<String, Held> entry = iterator.next();
+            Held waiting = entry.getValue();
+
+            if (join(waiting.key, waiting.message, collector)) {
+                released.add(entry.getKey());
+                iterator.remove();
+            } else if (waiting.deadline <= now) {
+                collector.send(new OutgoingMessageEnvelope(output, waiting.message));
+                released.add(entry.getKey());
+                iterator.remove();
+            }
+        }
+
+        if (holdbackStore != null && !released.isEmpty()) {
+            holdbackStore.deleteAll(released);
+        }
+    }
+
+    private long messageTime(Map<String, Object> message) {
+        Object timestamp = message.get(timestampField);
+
+        if (timestamp instanceof Number) {
+            return ((Number) timestamp).longValue() * 1000L;
+        } else {
+            return System.currentTimeMillis();
+        }
+    }
+
+    private void restoreWritten() {
+        KeyValueIterator<String, Map<String, Object>> iterator = store.all();
+        List<Map.Entry<String, Long>> entries = new ArrayList<>();
+
+        try {
+            while (iterator.hasNext()) {
+                Entry<String, Map<String, Object>> entry = iterator.next();
+                entries.add(new AbstractMap.SimpleEntry<>(entry.getKey(), ((Number) entry.getValue().get(TIME_FIELD)).longValue()));
+            }
+        } finally {
+            iterator.close();
+        }
+
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                return Long.compare(a.getValue(), b.getValue());
+            }
+        });
+
+        for (Map.Entry<String, Long> entry : entries) {
+            written.put(entry.getKey(), entry.getValue());
+            watermark = Math.max(watermark, Math.min(entry.getValue(), System.currentTimeMillis() + maxSkew));
+        }
+
+        log.info("Join processor {} restored {} keys", name, written.size());
+    }
+
+    @SuppressWarnings("unchecked")
+    private void restoreHeld() {
+        KeyValueIterator<String, Map<String, Object>> iterator = holdbackStore.all();
+
+        try {
+            // The held keys start with a sequence, so they are read in order
+            while (iterator.hasNext()) {
+                Entry<String, Map<String, Object>> entry = iterator.next();
+                Map<String, Object> value = entry.getValue();
+                held.put(entry.getKey(), new Held((String) value.get("key"), (Map<String, Object>) value.get("message"),
+                        ((Number) value.get("deadline")).longValue()));
+            }
+        } finally {
+            iterator.close();
+        }
+
+        if (!held.isEmpty()) {
+            String lastKey = null;
+            for (String heldKey : held.keySet()) {
+                lastKey = heldKey;
+            }
+
+            heldSequence = Long.parseLong(lastKey.substring(0, 19)) + 1;
+            log.info("Join processor {} restored {} waiting messages", name, held.size());
+        }
+    }
+
+    private static class Held {
+        final String key;
+        final Map<String, Object> message;
+        final long deadline;
+
+        Held(String key, Map<String, Object> message, long deadline) {
+            this.key = key;
+            this.message = message;
+            this.deadline = deadline;
+        }
+
+        Map<String, Object> toStoreValue() {
+            Map<String, Object> value = new HashMap<>();
+            value.put("key", key);
+            value.put("message", message);
+            value.put("deadline", deadline);
+            return value;
+        }
+    }
+}
@@ -16,12 +16,25 @@ import java.util.*;
 
 public abstract class Processor {
     private static final Logger log = LoggerFactory.getLogger(Processor.class);
-    private static Map<String, List<Processor>> processors = new HashMap<>();
+    // The processors of each task, as they keep the stores and the state of their task
+    private static Map<TaskContext, Map<String, List<Processor>>> processors = new IdentityHashMap<>();
 
     protected StoreManager storeManager;
     protected EnrichManager enrichManager;
     protected Config config;
     protected TaskContext context;
+    protected int priority = 0;
+    protected Degradation degradation = Degradation.NONE;
+
+    /**
+     * How a processor degrades while the task is shedding load:
+     * NONE keeps processing everything, PARTIAL enriches only with the local
+     * stores (no extensions), and SAMPLE only processes a sample of the messages.
+     */
+
+    public enum Degradation {
+        NONE, PARTIAL, SAMPLE
+    }
 
     public Processor(StoreManager storeManager, EnrichManager enrichManager, Config config, TaskContext context) {
         this.storeManager = storeManager;
@@ -31,7 +44,14 @@ public abstract class Processor {
     }
 
     public static List<Processor> getProcessors(String streamName, Config config, TaskContext context, StoreManager storeManager) {
-        if (!processors.containsKey(streamName)) {
+        Map<String, List<Processor>> taskProcessors = processors.get(context);
+
+        if (taskProcessors == null) {
+            taskProcessors = new HashMap<>();
+            processors.put(context, taskProcessors);
+        }
+
+        if (!taskProcessors.containsKey(streamName)) {
             List<String> processorNames = config.getList("redborder.processors." + streamName);
             List<Processor> processorsList = new ArrayList<>();
 
@@ -53,9 +73,17 @@ public abstract class Processor {
                         String className = config.get("redborder.enrichments.types." + enrichment + ".class");
 
                         if (className != null) {
-                            Class enrichClass = Class.forName(className);
-                            Constructor constructor = enrichClass.getConstructor(StoreManager.class);
-                            Enrich enrich = (Enrich)  constructor.newInstance(storeManager);
+                            Class<?> enrichClass = Class.forName(className);
+                            Enrich enrich;
+
+                            try {
+                                // Configurable enrichments receive the name of their type to read their properties
+                                Constructor<?> constructor = enrichClass.getConstructor(String.class, StoreManager.class, Config.class);
+                                enrich = (Enrich) constructor.newInstance(enrichment, storeManager, config);
+                            } catch (NoSuchMethodException e) {
+                                Constructor<?> constructor = enrichClass.getConstructor(StoreManager.class);
+                                enrich = (Enrich) constructor.newInstance(storeManager);
+                            }
 
                             enrichManager.addEnrichment(enrich);
                         } else {
@@ -63,33 +91,169 @@ public abstract class Processor {
                         }
                     } catch (ClassNotFoundException e) {
                         log.error("Couldn't find the class associated with the enrichment " + enrichment);
-                    } catch (InstantiationException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
+                    } catch (InvocationTargetException e) {
+                        // A misconfigured enrichment, like a pseudonymization without its secret, must not be skipped
+                        if (e.getCause() instanceof ConfigException) {
+                            throw (ConfigException) e.getCause();
+                        }
+
+                        log.error("Couldn't create the instance associated with the enrichment " + enrichment, e);
+                    } catch (InstantiationException | IllegalAccessException | NoSuchMethodException e) {
                         log.error("Couldn't create the instance associated with the enrichment " + enrichment, e);
                     }
                 }
 
                 try {
                     String className = config.get("redborder.processors.types." + processorName + ".class");
-                    Class foundClass = Class.forName(className);
-                    Constructor constructor = foundClass.getConstructor(StoreManager.class, EnrichManager.class, Config.class, TaskContext.class);
-                    Processor processor = (Processor) constructor.newInstance(storeManager, enrichManager, config, context);
+                    Class<?> foundClass = Class.forName(className);
+                    Processor processor;
+
+                    try {
+                        // Configurable processors receive the name of their type to read their properties
+                        Constructor<?> constructor = foundClass.getConstructor(String.class, StoreManager.class, EnrichManager.class, Config.class, TaskContext.class);
+                        processor = (Processor) constructor.newInstance(processorName, storeManager, enrichManager, config, context);
+                    } catch (NoSuchMethodException e) {
+                        Constructor<?> constructor = foundClass.getConstructor(StoreManager.class, EnrichManager.class, Config.class, TaskContext.class);
+                        processor = (Processor) constructor.newInstance(storeManager, enrichManager, config, context);
+                    }
+
+                    processor.setPriority(config.getInt("redborder.processors.types." + processorName + ".priority", 0));
+                    processor.setDegradation(parseDegradation(config, "redborder.processors.types." + processorName + ".degradation"));
                     processorsList.add(processor);
                 } catch (ClassNotFoundException e) {
                     log.error("Couldn't find the class associated with the stream " + processorName);
                     processorsList.add(new DummyProcessor());
-                } catch (NoSuchMethodException | InstantiationException | InvocationTargetException | IllegalAccessException e) {
+                } catch (InvocationTargetException e) {
+                    // A misconfigured processor must fail the task, instead of leaving its stream unprocessed
+                    if (e.getCause() instanceof ConfigException) {
+                        throw (ConfigException) e.getCause();
+                    }
+
+                    log.error("Couldn't create the instance associated with the stream " + processorName, e);
+                    processorsList.add(new DummyProcessor());
+                } catch (NoSuchMethodException | InstantiationException | IllegalAccessException e) {
                     log.error("Couldn't create the instance associated with the stream " + processorName, e);
                     processorsList.add(new DummyProcessor());
                 }
             }
 
-            processors.put(streamName, processorsList);
+            taskProcessors.put(streamName, processorsList);
+        }
+
+        return taskProcessors.get(streamName);
+    }
+
+    /**
+     * Returns every processor that has been created for a task, from all the streams
+     *
+     * @param context The task context
+     * @return The list of processors
+     */
+
+    public static List<Processor> getAllProcessors(TaskContext context) {
+        List<Processor> allProcessors = new ArrayList<>();
+        Map<String, List<Processor>> taskProcessors = processors.get(context);
+
+        if (taskProcessors != null) {
+            for (List<Processor> processorsList : taskProcessors.values()) {
+                allProcessors.addAll(processorsList);
+            }
+        }
+
+        return allProcessors;
+    }
+
+    /**
+     * Forgets the processors of a task, when it is closed
+     *
+     * @param context The task context
+     */
+
+    public static void removeProcessors(TaskContext context) {
+        processors.remove(context);
+    }
+
+    /**
+     * Checks that the task only commits from the window, after the pending messages are
+     * flushed. Samza's periodic commits would checkpoint the offsets of messages that are
+     * still pending, and they would be lost on a crash.
+     *
+     * @param config  The task config
+     * @param feature The property or processor that keeps messages pending
+     */
+
+    public static void requireWindowCommits(Config config, String feature) {
+        if (config.getLong("task.commit.ms", 60000L) != -1L) {
+            throw new ConfigException(feature + " requires task.commit.ms=-1, so the commits are only made after flushing");
+        }
+
+        if (config.getLong("task.window.ms", -1L) <= 0L) {
+            throw new ConfigException(feature + " requires task.window.ms, to flush and commit periodically");
         }
+    }
+
+    private static Degradation parseDegradation(Config config, String property) {
+        String value = config.get(property, "none");
+
+        try {
+            return Degradation.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new ConfigException("The property " + property + " must be one of none, partial or sample, not " + value);
+        }
+    }
+
+    public int getPriority() {
+        return priority;
+    }
 
-        return processors.get(streamName);
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public Degradation getDegradation() {
+        return degradation;
+    }
+
+    public void setDegradation(Degradation degradation) {
+        this.degradation = degradation;
     }
 
     public abstract void process(Map<String, Object> message, MessageCollector collector);
 
+    /**
+     * Processes a batch of messages of the same stream, in order. The default
+     * implementation processes them one by one. Processors can override it to
+     * amortize the work of each call, like making batched store reads.
+     *
+     * @param messages  The messages to process
+     * @param collector The collector to send messages
+     */
+
+    public void processBatch(List<Map<String, Object>> messages, MessageCollector collector) {
+        for (Map<String, Object> message : messages) {
+            process(message, collector);
+        }
+    }
+
+    /**
+     * This method is called on every task window. Processors that keep
+     * state between messages can override it to flush or emit that state.
+     *
+     * @param collector The collector to send messages
+     */
+
+    public void window(MessageCollector collector) {
+        // Nothing to do by default
+    }
+
+    /**
+     * This method is called when the task is closed. Processors that buffer
+     * writes can override it to flush them.
+     */
+
+    public void close() {
+        // Nothing to do by default
+    }
+
     public abstract String getName();
 }
@@ -0,0 +1,178 @@
+package net.redborder.samza.processors;
+
+import net.redborder.samza.enrichments.EnrichManager;
+import net.redborder.samza.store.StoreManager;
+import org.apache.samza.config.Config;
+import org.apache.samza.config.ConfigException;
+import org.apache.samza.storage.kv.Entry;
+import org.apache.samza.storage.kv.KeyValueStore;
+import org.apache.samza.task.MessageCollector;
+import org.apache.samza.task.TaskContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * This processor populates a store with the messages of a stream, like the
+ * location store with rb_loc. The key of each entry is built from the message
+ * with the key fields of the store, so the entries are found by the enrichments.
+ * <p/>
+ * <p>Its properties are read from "redborder.processors.types.processorName.*":</p>
+ * <ul>
+ * <li>store: The store that is written, one of "redborder.stores"</li>
+ * <li>fields: The fields of the message that are saved (default all of them)</li>
+ * <li>buffer.max: The number of buffered keys that makes a flush (default 10000)</li>
+ * </ul>
+ * <p/>
+ * <p>The writes are buffered in memory, keeping only the latest value of each
+ * key, and written with a single putAll on every task window or when the buffer
+ * is full. So the enrichments can see a value up to one window late, and a
+ * client that reports every second makes one store write per window instead of
+ * one per message.</p>
+ * <p/>
+ * <p>The buffered writes are only flushed on window, so this processor requires
+ * task.commit.ms=-1 and task.window.ms, and the task commits after flushing them.
+ * They are also flushed when the task is closed.</p>
+ * <p/>
+ * <p>Before writing, the buffered values are compared with the values on the store,
+ * read with a single getAll, and the ones that haven't changed aren't written. The
+ * comparison is made with the store itself, so it stays right when other processors
+ * or tasks also write the store.</p>
+ */
+
+public class StoreWriterProcessor extends Processor {
+    private static final Logger log = LoggerFactory.getLogger(StoreWriterProcessor.class);
+
+    private String name;
+    private String storeName;
+    private KeyValueStore<String, Map<String, Object>> store;
+    private List<String> fields;
+    private int maxBuffered;
+
+    private Map<String, Map<String, Object>> buffer = new LinkedHashMap<>();
+    private long messages = 0;
+    private long writes = 0;
+    private long unchanged = 0;
+
+    public StoreWriterProcessor(String name, StoreManager storeManager, EnrichManager enrichManager, Config config, TaskContext context) {
+        super(storeManager, enrichManager, config, context);
+        String prefix = "redborder.processors.types." + name + ".";
+
+        this.name = name;
+        this.storeName = config.get(prefix + "store");
+        if (storeName == null) {
+            throw new ConfigException("Missing the property " + prefix + "store");
+        }
+
+        this.store = storeManager.getStore(storeName);
+        if (store == null) {
+            throw new ConfigException("The store " + storeName + " of the processor " + name + " isn't on redborder.stores");
+        }
+
+        this.fields = config.getList(prefix + "fields", Collections.<String>emptyList());
+        this.maxBuffered = config.getInt(prefix + "buffer.max", 10000);
+        requireWindowCommits(config, "The store writer " + name);
+
+        log.info("Store writer {} on the store {}", name, storeName);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void process(Map<String, Object> message, MessageCollector collector) {
+        if (enrichManager.hasEnrichments()) {
+            message = enrichManager.enrich(message);
+        }
+
+        String key = storeManager.getStoreKey(storeName, message);
+
+        if (key != null) {
+            messages++;
+            buffer.put(key, value(message));
+
+            if (buffer.size() >= maxBuffered) {
+                flush();
+            }
+        }
+    }
+
+    @Override
+    public void window(MessageCollector collector) {
+        flush();
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+    /**
+     * Writes the buffered values that have changed to the store
+     */
+
+    public void flush() {
+        if (buffer.isEmpty()) {
+            return;
+        }
+
+        List<Entry<String, Map<String, Object>>> entries = new ArrayList<>(buffer.size());
+        Map<String, Map<String, Object>> stored = store.getAll(new ArrayList<>(buffer.keySet()));
+
+        for (Map.Entry<String, Map<String, Object>> buffered : buffer.entrySet()) {
+            Map<String, Object> value = buffered.getValue();
+
+            if (value.equals(stored.get(buffered.getKey()))) {
+                unchanged++;
+            } else {
+                entries.add(new Entry<>(buffered.getKey(), value));
+            }
+        }
+
+        buffer.clear();
+
+        if (!entries.isEmpty()) {
+            store.putAll(entries);
+            writes += entries.size();
+        }
+
+        log.debug("Store writer {} wrote {} entries", name, entries.size());
+    }
+
+    private Map<String, Object> value(Map<String, Object> message) {
+        if (fields.isEmpty()) {
+            return new HashMap<>(message);
+        }
+
+        Map<String, Object> value = new HashMap<>();
+
+        for (String field : fields) {
+            Object fieldValue = message.get(field);
+
+            if (fieldValue != null) {
+                value.put(field, fieldValue);
+            }
+        }
+
+        return value;
+    }
+
+    public int buffered() {
+        return buffer.size();
+    }
+
+    public long messages() {
+        return messages;
+    }
+
+    public long writes() {
+        return writes;
+    }
+
+    public long unchanged() {
+        return unchanged;
+    }
+}
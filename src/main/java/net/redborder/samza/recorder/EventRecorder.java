@@ -0,0 +1,234 @@
+package net.redborder.samza.recorder;
+
+import org.apache.samza.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This class records the slow calls of the processing path, like the calls to
+ * the processors, the enrichments, the stores, the extensions and the window
+ * stores, so the source of a lag can be found without attaching a profiler.
+ * <p/>
+ * <p>A call is timed with #start and #end. Calls faster than the threshold of their
+ * type ("redborder.recorder.threshold.type.us", or "redborder.recorder.threshold.us"
+ * for all of them) are discarded, and the rest are kept on a ring buffer of
+ * "redborder.recorder.size" events, so the recording is always on with a bounded
+ * memory. While "redborder.recorder.enabled" is false, #start only reads a flag and
+ * #end returns right away.</p>
+ * <p/>
+ * <p>The recording is dumped with the JMX operations of {@link EventRecorderMBean}.</p>
+ */
+
+public class EventRecorder implements EventRecorderMBean {
+    private static final Logger log = LoggerFactory.getLogger(EventRecorder.class);
+    private static final String OBJECT_NAME = "net.redborder.samza:type=EventRecorder";
+    private static final EventRecorder instance = new EventRecorder();
+
+    private static volatile boolean enabled = false;
+    private static long[] thresholds = new long[Type.values().length];
+    private static AtomicReferenceArray<Event> events = new AtomicReferenceArray<>(1);
+    private static AtomicLong sequence = new AtomicLong();
+
+    /**
+     * The types of recorded calls
+     */
+
+    public enum Type {
+        PROCESS, ENRICH, STORE_GET, EXTENSION_GET, WINDOW_REFRESH
+    }
+
+    /**
+     * A recorded call
+     */
+
+    public static class Event {
+        public final long time;
+        public final Type type;
+        public final String name;
+        public final boolean hit;
+        public final long size;
+        public final long duration;
+
+        Event(long time, Type type, String name, boolean hit, long size, long duration) {
+            this.time = time;
+            this.type = type;
+            this.name = name;
+            this.hit = hit;
+            this.size = size;
+            this.duration = duration;
+        }
+
+        @Override
+        public String toString() {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS").format(new Date(time)) + " " + type + " " + name
+                    + (hit ? " hit" : " miss") + " size=" + size + " duration_us=" + duration / 1000L;
+        }
+    }
+
+    private EventRecorder() {
+    }
+
+    /**
+     * Configures the recorder and registers its MBean. The recorder is shared
+     * by all the tasks of the container, so the last configuration wins.
+     *
+     * @param config The task config
+     */
+
+    public static synchronized void configure(Config config) {
+        long defaultThreshold = config.getLong("redborder.recorder.threshold.us", 1000L);
+        long[] newThresholds = new long[Type.values().length];
+
+        for (Type type : Type.values()) {
+            newThresholds[type.ordinal()] = config.getLong("redborder.recorder.threshold." + type.name().toLowerCase() + ".us",
+                    defaultThreshold) * 1000L;
+        }
+
+        thresholds = newThresholds;
+        events = new AtomicReferenceArray<>(Math.max(1, config.getInt("redborder.recorder.size", 10000)));
+        sequence.set(0);
+        enabled = config.getBoolean("redborder.recorder.enabled", false);
+
+        if (config.getBoolean("redborder.recorder.jmx", true)) {
+            register();
+        }
+
+        log.info("Event recorder enabled: {}, size: {}", enabled, events.length());
+    }
+
+    private static void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(instance, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // Registered by another task of the container
+        } catch (Exception e) {
+            log.warn("Couldn't register the event recorder MBean", e);
+        }
+    }
+
+    public static EventRecorder getInstance() {
+        return instance;
+    }
+
+    /**
+     * Starts timing a call
+     *
+     * @return The start time, or 0 if the recorder is disabled
+     */
+
+    public static long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Ends timing a call, and records it if it is slower than the threshold of its type
+     *
+     * @param type  The call type
+     * @param name  The name of the processor, enrichment, store or extension
+     * @param hit   True if the call found a value
+     * @param size  The number of fields or entries returned
+     * @param start The value returned by #start
+     */
+
+    public static void end(Type type, String name, boolean hit, long size, long start) {
+        if (start == 0L) {
+            return;
+        }
+
+        long duration = System.nanoTime() - start;
+
+        if (duration >= thresholds[type.ordinal()]) {
+            AtomicReferenceArray<Event> ring = events;
+            long position = sequence.getAndIncrement();
+            ring.set((int) (position % ring.length()), new Event(System.currentTimeMillis(), type, name, hit, size, duration));
+        }
+    }
+
+    /**
+     * @return The recorded events, from the oldest to the newest
+     */
+
+    public static List<Event> events() {
+        AtomicReferenceArray<Event> ring = events;
+        long last = sequence.get();
+        long first = Math.max(0, last - ring.length());
+        List<Event> recorded = new ArrayList<>();
+
+        for (long position = first; position < last; position++) {
+            Event event = ring.get((int) (position % ring.length()));
+
+            if (event != null) {
+                recorded.add(event);
+            }
+        }
+
+        return recorded;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        EventRecorder.enabled = enabled;
+    }
+
+    @Override
+    public long getRecorded() {
+        return sequence.get();
+    }
+
+    @Override
+    public long getThresholdMicros(String type) {
+        return thresholds[Type.valueOf(type.toUpperCase()).ordinal()] / 1000L;
+    }
+
+    @Override
+    public void setThresholdMicros(String type, long micros) {
+        thresholds[Type.valueOf(type.toUpperCase()).ordinal()] = micros * 1000L;
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+
+        for (Event event : events()) {
+            builder.append(event).append('\n');
+        }
+
+        return builder.toString();
+    }
+
+    @Override
+    public int dumpToFile(String path) throws IOException {
+        List<Event> recorded = events();
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(path), "UTF-8")) {
+            for (Event event : recorded) {
+                writer.write(event.toString());
+                writer.write('\n');
+            }
+        }
+
+        log.info("Dumped {} events to {}", recorded.size(), path);
+        return recorded.size();
+    }
+}
@@ -0,0 +1,35 @@
+package net.redborder.samza.recorder;
+
+import java.io.IOException;
+
+/**
+ * The JMX interface of the {@link EventRecorder}, registered as
+ * "net.redborder.samza:type=EventRecorder" to dump the recording on demand.
+ */
+
+public interface EventRecorderMBean {
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getRecorded();
+
+    long getThresholdMicros(String type);
+
+    void setThresholdMicros(String type, long micros);
+
+    /**
+     * @return The recorded events, from the oldest to the newest, one per line
+     */
+
+    String dump();
+
+    /**
+     * Writes the recorded events to a file
+     *
+     * @param path The file path
+     * @return The number of events written
+     */
+
+    int dumpToFile(String path) throws IOException;
+}
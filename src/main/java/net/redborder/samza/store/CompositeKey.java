@@ -0,0 +1,94 @@
+package net.redborder.samza.store;
+
+import java.util.Map;
+
+/**
+ * This class encodes store keys made of several message fields. Each
+ * component is escaped and followed by a separator, or by a terminator if it
+ * is the last one, so two different lists of components never produce the
+ * same key, and the keys keep the order of their components.
+ * <p/>
+ * <p>As the separator sorts before the terminator, every key that extends
+ * another one with more components sorts before it. For example, a range scan
+ * that starts on the key of [namespace, mac] and ends on the key of [namespace]
+ * finds both in that order, but it also goes through the keys of every other
+ * mac of the namespace that sorts after the first one.</p>
+ */
+
+public class CompositeKey {
+    public static final char SEPARATOR = '\u0000';
+    public static final char TERMINATOR = '\u0001';
+    public static final char ESCAPE = '\u0002';
+
+    private CompositeKey() {
+    }
+
+    /**
+     * Encodes the values of the given fields from a message
+     *
+     * @param message The message with the values
+     * @param fields  The fields that compose the key
+     * @return The encoded key, or null if the message doesn't have some of the fields
+     */
+
+    public static String encode(Map<String, Object> message, String[] fields) {
+        StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < fields.length; i++) {
+            Object value = message.get(fields[i]);
+
+            if (value == null) {
+                return null;
+            }
+
+            appendComponent(builder, value.toString());
+            builder.append(i == fields.length - 1 ? TERMINATOR : SEPARATOR);
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Encodes a list of components
+     *
+     * @param components The key components
+     * @return The encoded key
+     */
+
+    public static String encode(String... components) {
+        StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < components.length; i++) {
+            appendComponent(builder, components[i]);
+            builder.append(i == components.length - 1 ? TERMINATOR : SEPARATOR);
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Returns the smallest key that is greater than the given key,
+     * to be used as the exclusive end of a range scan.
+     *
+     * @param key The encoded key
+     * @return The key that follows it
+     */
+
+    public static String next(String key) {
+        return key + '\u0000';
+    }
+
+    private static void appendComponent(StringBuilder builder, String component) {
+        for (int i = 0; i < component.length(); i++) {
+            char c = component.charAt(i);
+
+            // The reserved chars are preceded by the escape, so they are read as part of the component.
+            // The escape sorts after the separators, so a component sorts before its extensions.
+            if (c <= ESCAPE) {
+                builder.append(ESCAPE);
+            }
+
+            builder.append(c);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package net.redborder.samza.store;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * This class encodes the store keys of the messages straight to UTF-8 bytes,
+ * on a buffer that is reused between keys, so no intermediate strings are
+ * built. The bytes are the same than encoding the keys built by {@link Store}
+ * with UTF-8, on both the concat and the composite encodings.
+ * <p/>
+ * <p>It isn't thread-safe, each store has its own encoder.</p>
+ */
+
+public class KeyEncoder {
+    private byte[] buffer = new byte[64];
+    private int length = 0;
+
+    /**
+     * Encodes the values of the given fields from a message
+     *
+     * @param message   The message with the values
+     * @param fields    The fields that compose the key
+     * @param composite True to use the {@link CompositeKey} encoding, false to concatenate the values
+     * @return The encoded key, or null if the composite key can't be built because a field is missing
+     */
+
+    public byte[] encode(Map<String, Object> message, String[] fields, boolean composite) {
+        length = 0;
+
+        for (int i = 0; i < fields.length; i++) {
+            Object value = message.get(fields[i]);
+
+            if (value == null) {
+                if (composite) {
+                    return null;
+                }
+            } else {
+                append(value.toString(), composite);
+
+                if (composite) {
+                    appendByte(i == fields.length - 1 ? CompositeKey.TERMINATOR : CompositeKey.SEPARATOR);
+                }
+            }
+        }
+
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private void append(String value, boolean escape) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c < 0x80) {
+                // The UTF-8 encoding of the reserved chars is a single byte, like on CompositeKey
+                if (escape && c <= CompositeKey.ESCAPE) {
+                    appendByte(CompositeKey.ESCAPE);
+                }
+
+                appendByte(c);
+            } else if (c < 0x800) {
+                appendByte(0xc0 | (c >> 6));
+                appendByte(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                appendByte(0xf0 | (codePoint >> 18));
+                appendByte(0x80 | ((codePoint >> 12) & 0x3f));
+                appendByte(0x80 | ((codePoint >> 6) & 0x3f));
+                appendByte(0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogates are replaced like String#getBytes does
+                appendByte('?');
+            } else {
+                appendByte(0xe0 | (c >> 12));
+                appendByte(0x80 | ((c >> 6) & 0x3f));
+                appendByte(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void appendByte(int b) {
+        if (length == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+
+        buffer[length++] = (byte) b;
+    }
+}
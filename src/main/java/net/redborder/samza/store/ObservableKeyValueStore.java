@@ -0,0 +1,85 @@
+package net.redborder.samza.store;
+
+import org.apache.samza.storage.kv.Entry;
+import org.apache.samza.storage.kv.KeyValueIterator;
+import org.apache.samza.storage.kv.KeyValueStore;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class wraps a key-value store and notifies a listener of every
+ * entry that is written or deleted through it.
+ */
+
+public class ObservableKeyValueStore implements KeyValueStore<String, Map<String, Object>> {
+    private String name;
+    private KeyValueStore<String, Map<String, Object>> store;
+    private StoreListener listener;
+
+    public ObservableKeyValueStore(String name, KeyValueStore<String, Map<String, Object>> store, StoreListener listener) {
+        this.name = name;
+        this.store = store;
+        this.listener = listener;
+    }
+
+    @Override
+    public Map<String, Object> get(String key) {
+        return store.get(key);
+    }
+
+    @Override
+    public Map<String, Map<String, Object>> getAll(List<String> keys) {
+        return store.getAll(keys);
+    }
+
+    @Override
+    public void put(String key, Map<String, Object> value) {
+        store.put(key, value);
+        listener.onWrite(name, key);
+    }
+
+    @Override
+    public void putAll(List<Entry<String, Map<String, Object>>> entries) {
+        store.putAll(entries);
+
+        for (Entry<String, Map<String, Object>> entry : entries) {
+            listener.onWrite(name, entry.getKey());
+        }
+    }
+
+    @Override
+    public void delete(String key) {
+        store.delete(key);
+        listener.onWrite(name, key);
+    }
+
+    @Override
+    public void deleteAll(List<String> keys) {
+        store.deleteAll(keys);
+
+        for (String key : keys) {
+            listener.onWrite(name, key);
+        }
+    }
+
+    @Override
+    public KeyValueIterator<String, Map<String, Object>> range(String from, String to) {
+        return store.range(from, to);
+    }
+
+    @Override
+    public KeyValueIterator<String, Map<String, Object>> all() {
+        return store.all();
+    }
+
+    @Override
+    public void close() {
+        store.close();
+    }
+
+    @Override
+    public void flush() {
+        store.flush();
+    }
+}
@@ -0,0 +1,274 @@
+package net.redborder.samza.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class keeps the locally cached data of an extension fresh without
+ * querying the extension on the processing thread.
+ * <p/>
+ * It remembers when each key was fetched. Keys older than the TTL are
+ * expired and must be fetched again. Keys that are served after a fraction of
+ * the TTL (the refresh-ahead ratio) are still served, but a background thread
+ * fetches them again. The results are queued until the task thread applies
+ * them with #poll, so the local store is only written from the task thread.
+ * The background fetches are limited with a token bucket, and the thread is
+ * stopped with #close.
+ */
+
+public class RefreshAhead {
+    private static final Logger log = LoggerFactory.getLogger(RefreshAhead.class);
+
+    private final String name;
+    private final long ttl;
+    private final long refreshAt;
+    private final double rate;
+    private final Fetcher fetcher;
+    private final Map<String, Long> fetched;
+    private final Set<String> pending = new HashSet<>();
+    private final Queue<Refresh> completed = new ConcurrentLinkedQueue<>();
+    private final ExecutorService executor;
+
+    private double tokens;
+    private long lastRefill = System.currentTimeMillis();
+    private long refreshes = 0;
+    private long throttled = 0;
+    private int running = 0;
+
+    /**
+     * Fetches the current value of a key from the extension
+     */
+
+    public interface Fetcher {
+        Map<String, Object> fetch(StoreExtensionKey extensionKey);
+    }
+
+    /**
+     * The result of a background fetch
+     */
+
+    public static class Refresh {
+        public final StoreExtensionKey extensionKey;
+        public final Map<String, Object> value;
+        public final boolean local;
+        public final boolean failed;
+
+        Refresh(StoreExtensionKey extensionKey, Map<String, Object> value, boolean local, boolean failed) {
+            this.extensionKey = extensionKey;
+            this.value = value;
+            this.local = local;
+            this.failed = failed;
+        }
+    }
+
+    /**
+     * Constructs a new refresh-ahead policy
+     *
+     * @param name    The extension name
+     * @param ttl     The time (in ms) that a fetched value can be served
+     * @param ratio   The fraction of the TTL after which a served value is refreshed
+     * @param rate    The maximum number of background fetches per second
+     * @param threads The number of threads that make the background fetches
+     * @param maxKeys The maximum number of keys whose fetch time is remembered
+     * @param fetcher The function that fetches the values from the extension
+     */
+
+    public RefreshAhead(String name, long ttl, double ratio, double rate, int threads, final int maxKeys, Fetcher fetcher) {
+        this.name = name;
+        this.ttl = ttl;
+        this.refreshAt = (long) (ttl * ratio);
+        this.rate = rate;
+        this.tokens = Math.max(1.0, rate);
+        this.fetcher = fetcher;
+        // A key without fetch time is refreshed when it is served, so forgetting the oldest ones is safe
+        this.fetched = new LinkedHashMap<String, Long>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxKeys;
+            }
+        };
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "refresh-ahead-" + RefreshAhead.this.name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param mergeKey The entry key
+     * @return True if the cached value of the key is older than the TTL
+     */
+
+    public boolean isExpired(String mergeKey) {
+        Long time = fetched.get(mergeKey);
+        return time != null && System.currentTimeMillis() - time > ttl;
+    }
+
+    /**
+     * Records that a key has just been fetched from the extension
+     *
+     * @param mergeKey The entry key
+     */
+
+    public void onFetched(String mergeKey) {
+        onFetched(mergeKey, System.currentTimeMillis());
+    }
+
+    /**
+     * Forgets a key that has been removed from the local tiers
+     *
+     * @param mergeKey The entry key
+     */
+
+    public void onRemoved(String mergeKey) {
+        fetched.remove(mergeKey);
+    }
+
+    /**
+     * Records that a key has been served from the local tiers, and schedules
+     * its refresh if it is close to its expiration or its fetch time is unknown.
+     *
+     * @param extensionKey The entry key
+     * @param local        True if the key was served from the local store
+     */
+
+    public void onServed(final StoreExtensionKey extensionKey, final boolean local) {
+        Long time = fetched.get(extensionKey.mergeKey);
+
+        if ((time == null || System.currentTimeMillis() - time >= refreshAt) && !pending.contains(extensionKey.mergeKey)) {
+            if (executor.isShutdown()) {
+                return;
+            }
+
+            if (tryAcquire()) {
+                pending.add(extensionKey.mergeKey);
+                started();
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            completed.add(new Refresh(extensionKey, fetcher.fetch(extensionKey), local, false));
+                        } catch (RuntimeException e) {
+                            log.warn("Couldn't refresh the key " + extensionKey + " of the extension " + name, e);
+                            completed.add(new Refresh(extensionKey, null, local, true));
+                        } finally {
+                            finished();
+                        }
+                    }
+                });
+            } else {
+                throttled++;
+            }
+        }
+    }
+
+    /**
+     * Takes the next finished refresh. It must be called from the task thread.
+     *
+     * @return The refresh, or null if there isn't any
+     */
+
+    public Refresh poll() {
+        Refresh refresh = completed.poll();
+
+        if (refresh != null) {
+            pending.remove(refresh.extensionKey.mergeKey);
+
+            if (!refresh.failed) {
+                refreshes++;
+
+                if (refresh.value != null) {
+                    onFetched(refresh.extensionKey.mergeKey);
+                } else {
+                    onRemoved(refresh.extensionKey.mergeKey);
+                }
+            }
+        }
+
+        return refresh;
+    }
+
+    /**
+     * Waits until the background fetches finish, so their results can be polled
+     *
+     * @param timeout The maximum time to wait, in ms
+     * @return True if all the fetches finished, false if the timeout expired
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+
+    public boolean awaitFetches(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        synchronized (completed) {
+            while (running > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+
+                if (remaining <= 0) {
+                    return false;
+                }
+
+                completed.wait(remaining);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Stops the background fetches. The served keys aren't refreshed anymore.
+     */
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    public int pending() {
+        return pending.size();
+    }
+
+    public long refreshes() {
+        return refreshes;
+    }
+
+    public long throttled() {
+        return throttled;
+    }
+
+    // Sets the fetch time of a key, so the tests don't depend on the clock
+    void onFetched(String mergeKey, long time) {
+        fetched.remove(mergeKey);
+        fetched.put(mergeKey, time);
+    }
+
+    private void started() {
+        synchronized (completed) {
+            running++;
+        }
+    }
+
+    private void finished() {
+        synchronized (completed) {
+            running--;
+            completed.notifyAll();
+        }
+    }
+
+    private boolean tryAcquire() {
+        long now = System.currentTimeMillis();
+        tokens = Math.min(Math.max(1.0, rate), tokens + (now - lastRefill) * rate / 1000.0);
+        lastRefill = now;
+
+        if (tokens >= 1.0) {
+            tokens -= 1.0;
+            return true;
+        }
+
+        return false;
+    }
+}
@@ -1,15 +1,34 @@
 package net.redborder.samza.store;
 
+import net.redborder.samza.store.cache.TransformCache;
+import org.apache.samza.storage.kv.Entry;
+import org.apache.samza.storage.kv.KeyValueIterator;
 import org.apache.samza.storage.kv.KeyValueStore;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-public class Store {
+public class Store implements StoreListener {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
     private List<String> keys;
+    private List<String[]> keyLevels;
+    private boolean compositeKeys = false;
+    private boolean hierarchical = false;
+    private int maxScan = 0;
     private boolean overwrite;
     private KeyValueStore<String, Map<String, Object>> store;
+    private KeyValueStore<byte[], Map<String, Object>> bytesStore;
+    private KeyEncoder encoder;
     private TransformProcess transformProcess;
+    private WindowStore windowStore;
+    private TransformCache transformCache;
+    private StoreListener listener;
 
     public void setTransformProcess(TransformProcess transformProcess) {
         this.transformProcess = transformProcess;
@@ -23,12 +42,372 @@ public class Store {
         }
     }
 
+    /**
+     * Transforms the value of a key, reusing the last result of that key
+     * if the transform cache is enabled and the value hasn't changed.
+     *
+     * @param key       The entry key
+     * @param cacheData The entry value
+     * @return The transformed value
+     */
+
+    public Map<String, Object> transform(String key, Map<String, Object> cacheData) {
+        return transformCached(cacheKey(key), cacheData);
+    }
+
+    private Map<String, Object> transformCached(Object key, Map<String, Object> cacheData) {
+        if (transformCache == null || cacheData == null || transformProcess == null) {
+            return transform(cacheData);
+        }
+
+        Map<String, Object> transformed = transformCache.get(key, cacheData);
+
+        if (transformed == null) {
+            transformed = transformProcess.transform(cacheData);
+            transformCache.put(key, cacheData, transformed);
+        }
+
+        return transformed;
+    }
+
+    public void setTransformCache(TransformCache transformCache) {
+        this.transformCache = transformCache;
+    }
+
+    public TransformCache getTransformCache() {
+        return transformCache;
+    }
+
+    /**
+     * Sets a listener that is also notified of the writes on this store
+     *
+     * @param listener The listener
+     */
+
+    public void setListener(StoreListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void onWrite(String store, String key) {
+        if (transformCache != null) {
+            transformCache.remove(cacheKey(key));
+        }
+
+        if (listener != null) {
+            listener.onWrite(store, key);
+        }
+    }
+
+    // The transforms of the lookups with byte keys are cached by the key bytes
+    private Object cacheKey(String key) {
+        return bytesStore == null ? key : ByteBuffer.wrap(key.getBytes(UTF8));
+    }
+
+    /**
+     * Discards the cached transforms, because the data of the store has been refreshed
+     */
+
+    public void onRefresh() {
+        if (transformCache != null) {
+            transformCache.clear();
+        }
+    }
+
     public void setStore(KeyValueStore<String, Map<String, Object>> store) {
         this.store = store;
     }
 
+    /**
+     * Sets the store with byte array keys that the lookups use. The keys are
+     * encoded straight from the message fields, without building strings.
+     * The store set with #setStore must be the same store with string keys.
+     *
+     * @param bytesStore The store with byte array keys
+     */
+
+    public void setBytesStore(KeyValueStore<byte[], Map<String, Object>> bytesStore) {
+        this.bytesStore = bytesStore;
+        this.encoder = new KeyEncoder();
+        updateHierarchical();
+    }
+
+    public void setWindowStore(WindowStore windowStore) {
+        this.windowStore = windowStore;
+        updateHierarchical();
+    }
+
+    /**
+     * Gets the value associated with a key. If the store is filled by a window store,
+     * the window store is queried, as it may keep its data out of the KV store.
+     *
+     * @param key The entry key
+     * @return The value, or null if it isn't present
+     */
+
+    public Map<String, Object> get(String key) {
+        if (windowStore != null) {
+            return windowStore.getData(key);
+        }
+
+        return store.get(key);
+    }
+
+    /**
+     * Looks up the value that matches a message. Each of the store keys is tried
+     * in order, from the most specific to the most general, and the first value
+     * found is returned.
+     * <p/>
+     * <p>When the keys are composite, each one is a prefix of the previous one
+     * (f.e. namespace_uuid:client_mac,namespace_uuid) and the max scan is set, they
+     * are resolved with a range scan from the most specific key to the most general
+     * one. The scan also goes through the sibling keys between them, like the other
+     * macs of the namespace, so after max scan entries the remaining keys are queried
+     * one by one. It is disabled by default, as it is only cheaper than the gets
+     * when the general levels have few entries.</p>
+     *
+     * @param message The message with the key fields
+     * @return The value, or null if no key matches
+     */
+
+    public Map<String, Object> lookup(Map<String, Object> message) {
+        Entry<Object, Map<String, Object>> entry = find(message);
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * Looks up the value that matches a message like #lookup, and transforms it
+     *
+     * @param message The message with the key fields
+     * @return The transformed value, or null if no key matches
+     */
+
+    public Map<String, Object> lookupTransformed(Map<String, Object> message) {
+        Entry<Object, Map<String, Object>> entry = find(message);
+        return entry == null ? null : transformCached(entry.getKey(), entry.getValue());
+    }
+
+    private Entry<Object, Map<String, Object>> find(Map<String, Object> message) {
+        if (bytesStore != null) {
+            return findBytes(message);
+        }
+
+        if (hierarchical) {
+            return findRange(message);
+        }
+
+        for (String[] level : keyLevels) {
+            String key = buildKey(message, level);
+
+            if (key != null) {
+                Map<String, Object> contents = get(key);
+
+                if (contents != null) {
+                    return new Entry<Object, Map<String, Object>>(key, contents);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private Entry<Object, Map<String, Object>> findBytes(Map<String, Object> message) {
+        boolean snapshot = windowStore != null && windowStore.hasSnapshot();
+
+        for (String[] level : keyLevels) {
+            byte[] key = encoder.encode(message, level, compositeKeys);
+
+            if (key != null) {
+                Map<String, Object> contents = snapshot ? windowStore.getData(key) : bytesStore.get(key);
+
+                if (contents != null) {
+                    return new Entry<Object, Map<String, Object>>(ByteBuffer.wrap(key), contents);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private Entry<Object, Map<String, Object>> findRange(Map<String, Object> message) {
+        String[] levelKeys = new String[keyLevels.size()];
+
+        for (int i = 0; i < levelKeys.length; i++) {
+            levelKeys[i] = buildKey(message, keyLevels.get(i));
+        }
+
+        // Start on the most specific level that can be built from the message
+        int first = 0;
+        while (first < levelKeys.length && levelKeys[first] == null) {
+            first++;
+        }
+
+        if (first == levelKeys.length) {
+            return null;
+        }
+
+        // The store iterates in the order of the UTF-8 bytes, which isn't the order of String#compareTo
+        byte[][] levelBytes = new byte[levelKeys.length][];
+        for (int i = first; i < levelKeys.length; i++) {
+            levelBytes[i] = levelKeys[i].getBytes(UTF8);
+        }
+
+        int next = first;
+        KeyValueIterator<String, Map<String, Object>> iterator =
+                store.range(levelKeys[first], CompositeKey.next(levelKeys[levelKeys.length - 1]));
+
+        try {
+            int scanned = 0;
+
+            while (iterator.hasNext() && scanned < maxScan) {
+                Entry<String, Map<String, Object>> entry = iterator.next();
+                String key = entry.getKey();
+                byte[] keyBytes = key.getBytes(UTF8);
+                scanned++;
+
+                // Levels are found in order, so the first one found is the most specific
+                while (next < levelKeys.length && WindowSnapshot.compareBytes(keyBytes, levelBytes[next]) >= 0) {
+                    if (key.equals(levelKeys[next])) {
+                        return new Entry<Object, Map<String, Object>>(key, entry.getValue());
+                    }
+
+                    next++;
+                }
+
+                if (next == levelKeys.length) {
+                    return null;
+                }
+            }
+
+            if (!iterator.hasNext()) {
+                return null;
+            }
+        } finally {
+            iterator.close();
+        }
+
+        // Too many entries between levels, the remaining ones are queried one by one
+        for (int i = next; i < levelKeys.length; i++) {
+            Map<String, Object> contents = store.get(levelKeys[i]);
+
+            if (contents != null) {
+                return new Entry<Object, Map<String, Object>>(levelKeys[i], contents);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Builds the most specific key of the store from a message. Processors
+     * that populate the store should use it, so the keys match the lookups.
+     *
+     * @param message The message with the key fields
+     * @return The key, or null if the message doesn't have the fields
+     */
+
+    public String buildKey(Map<String, Object> message) {
+        return buildKey(message, keyLevels.get(0));
+    }
+
+    /**
+     * Builds all the keys of the store that a lookup of the message may query
+     *
+     * @param message The message with the key fields
+     * @return The keys, from the most specific to the most general
+     */
+
+    public List<String> buildKeys(Map<String, Object> message) {
+        List<String> levelKeys = new ArrayList<>(keyLevels.size());
+
+        for (String[] level : keyLevels) {
+            String key = buildKey(message, level);
+
+            if (key != null) {
+                levelKeys.add(key);
+            }
+        }
+
+        return levelKeys;
+    }
+
+    /**
+     * @return The message fields that compose the keys of the store
+     */
+
+    public Set<String> getKeyFields() {
+        Set<String> fields = new LinkedHashSet<>();
+
+        for (String[] level : keyLevels) {
+            fields.addAll(Arrays.asList(level));
+        }
+
+        return fields;
+    }
+
+    private String buildKey(Map<String, Object> message, String[] fields) {
+        if (compositeKeys) {
+            return CompositeKey.encode(message, fields);
+        }
+
+        StringBuilder builder = new StringBuilder();
+
+        for (String field : fields) {
+            Object value = message.get(field);
+
+            if (value != null) {
+                builder.append(value);
+            }
+        }
+
+        return builder.toString();
+    }
+
     public void setKeys(List<String> keys) {
         this.keys = keys;
+        this.keyLevels = new ArrayList<>();
+
+        for (String key : keys) {
+            keyLevels.add(key.trim().split(":"));
+        }
+
+        updateHierarchical();
+    }
+
+    /**
+     * Sets the encoding of the keys: "concat" joins the fields values,
+     * while "composite" encodes them with {@link CompositeKey}
+     *
+     * @param keysEncoding The keys encoding
+     */
+
+    public void setKeysEncoding(String keysEncoding) {
+        this.compositeKeys = keysEncoding.equals("composite");
+        updateHierarchical();
+    }
+
+    /**
+     * Sets the max number of entries that a hierarchical lookup scans before
+     * querying the remaining keys one by one. 0 disables the range scans.
+     *
+     * @param maxScan The max number of scanned entries
+     */
+
+    public void setMaxScan(int maxScan) {
+        this.maxScan = maxScan;
+        updateHierarchical();
+    }
+
+    private void updateHierarchical() {
+        hierarchical = compositeKeys && maxScan > 0 && windowStore == null && bytesStore == null && keyLevels != null && keyLevels.size() > 1;
+
+        for (int i = 1; hierarchical && i < keyLevels.size(); i++) {
+            String[] specific = keyLevels.get(i - 1);
+            String[] general = keyLevels.get(i);
+
+            hierarchical = general.length < specific.length
+                    && Arrays.equals(general, Arrays.copyOf(specific, general.length));
+        }
     }
 
     public void setOverwrite(boolean overwrite) {
@@ -51,6 +430,9 @@ public class Store {
     public String toString() {
         return new StringBuffer()
                 .append("KEYS: ").append(keys).append(" ")
+                .append("COMPOSITE: ").append(compositeKeys).append(" ")
+                .append("HIERARCHICAL: ").append(hierarchical).append(" ")
+                .append("BYTES: ").append(bytesStore != null).append(" ")
                 .append("OVERWRITE: ").append(overwrite).toString();
     }
 }
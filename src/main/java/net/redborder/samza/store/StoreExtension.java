@@ -1,7 +1,15 @@
 package net.redborder.samza.store;
 
 import com.sun.org.apache.xpath.internal.operations.Bool;
+import net.redborder.samza.recorder.EventRecorder;
+import net.redborder.samza.store.cache.ClockIndex;
+import net.redborder.samza.store.cache.OffHeapCache;
+import net.redborder.samza.store.cache.TransformCache;
 import org.apache.samza.config.Config;
+import org.apache.samza.config.ConfigException;
+import org.apache.samza.serializers.JsonSerde;
+import org.apache.samza.storage.kv.Entry;
+import org.apache.samza.storage.kv.KeyValueIterator;
 import org.apache.samza.storage.kv.KeyValueStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,7 +32,15 @@ public abstract class StoreExtension<T> {
     private List<StoreExtensionKey> storeExtensionKeys;
     private static final Logger log = LoggerFactory.getLogger(StoreExtension.class);
     private KeyValueStore<String, Map<String, Object>> localStore;
+    private KeyValueStore<byte[], Map<String, Object>> localBytesStore;
     private TransformProcess transformProcess;
+    private OffHeapCache offHeapCache;
+    private StoreListener listener;
+    private ClockIndex localIndex;
+    private int evictionBatch;
+    private RefreshAhead refreshAhead;
+    private TransformCache transformCache;
+    private static final JsonSerde<Object> serde = new JsonSerde<>();
 
     public StoreExtension(String name, Config config) {
         this(name, config, null);
@@ -39,10 +55,56 @@ public abstract class StoreExtension<T> {
         this.name = name;
         this.overwrite = config.getBoolean("redborder.stores.extension." + name + ".overwrite", false);
         this.localStore = localStore;
+        if (localStore instanceof Utf8KeyValueStore) {
+            // The local store has byte keys, so the precomputed key bytes are used on the lookups
+            this.localBytesStore = ((Utf8KeyValueStore) localStore).getBytesStore();
+        }
         this.storeExtensionKeys = new LinkedList<>();
         this.transformProcess = transformProcess;
         List<String> extensionKeys = config.getList("redborder.stores.extension." + name + ".keys", Collections.EMPTY_LIST);
 
+        long offHeapCacheBytes = config.getLong("redborder.stores.extension." + name + ".offHeapCache.maxBytes", 0L);
+        if (offHeapCacheBytes > 0) {
+            // The writes of other containers don't invalidate the cache, so its values must expire
+            if (config.getLong("redborder.stores.extension." + name + ".refresh.ttl.ms", 0L) <= 0) {
+                throw new ConfigException("The property redborder.stores.extension." + name + ".offHeapCache.maxBytes needs "
+                        + "redborder.stores.extension." + name + ".refresh.ttl.ms");
+            }
+
+            int pageBytes = config.getInt("redborder.stores.extension." + name + ".offHeapCache.pageBytes", 1024 * 1024);
+            this.offHeapCache = new OffHeapCache(offHeapCacheBytes, pageBytes);
+            log.info("StoreExtension[{}] using an off-heap cache of {} bytes", name, offHeapCacheBytes);
+        }
+
+        long localStoreEntries = config.getLong("redborder.stores.extension." + name + ".localStore.maxEntries", 0L);
+        long localStoreBytes = config.getLong("redborder.stores.extension." + name + ".localStore.maxBytes", 0L);
+        if (localStore != null && (localStoreEntries > 0 || localStoreBytes > 0)) {
+            this.localIndex = new ClockIndex(localStoreEntries, localStoreBytes);
+            this.evictionBatch = config.getInt("redborder.stores.extension." + name + ".localStore.evictionBatch", 1000);
+            restoreLocalIndex();
+            log.info("StoreExtension[{}] bounding its local store to {} entries and " + localStoreBytes + " bytes", name, localStoreEntries);
+        }
+
+        int transformCacheEntries = config.getInt("redborder.stores.extension." + name + ".transform.cache", 0);
+        if (transformCacheEntries > 0) {
+            this.transformCache = new TransformCache(transformCacheEntries);
+        }
+
+        long refreshTtl = config.getLong("redborder.stores.extension." + name + ".refresh.ttl.ms", 0L);
+        if (refreshTtl > 0 && (localStore != null || offHeapCache != null)) {
+            this.refreshAhead = new RefreshAhead(name, refreshTtl,
+                    config.getDouble("redborder.stores.extension." + name + ".refresh.ahead", 0.8),
+                    config.getDouble("redborder.stores.extension." + name + ".refresh.rate", 100.0),
+                    config.getInt("redborder.stores.extension." + name + ".refresh.threads", 1),
+                    config.getInt("redborder.stores.extension." + name + ".refresh.maxKeys", 1000000),
+                    new RefreshAhead.Fetcher() {
+                        @Override
+                        public Map<String, Object> fetch(StoreExtensionKey extensionKey) {
+                            return get(extensionKey.namespace, extensionKey.collection, extensionKey.key);
+                        }
+                    });
+            log.info("StoreExtension[{}] refreshing its local data ahead of a TTL of {} ms", name, refreshTtl);
+        }
 
         for (String extensionKey : extensionKeys) {
             String[] keys = extensionKey.split(" ");
@@ -77,9 +139,18 @@ public abstract class StoreExtension<T> {
     public void put(StoreExtensionKey extensionKey, Map<String, Object> data, Boolean worksWithLocalStore) {
         if (worksWithLocalStore) {
             putOnLocalStore(extensionKey, data);
+
+            if (refreshAhead != null) {
+                refreshAhead.onFetched(extensionKey.mergeKey);
+            }
+        }
+
+        if (offHeapCache != null) {
+            offHeapCache.remove(extensionKey.mergeKey);
         }
 
         put(extensionKey.namespace, extensionKey.collection, extensionKey.key, data.keySet(), data.values());
+        notifyWrite(extensionKey);
     }
 
     public void put(StoreExtensionKey extensionKey, Map<String, Object> data) {
@@ -91,31 +162,75 @@ public abstract class StoreExtension<T> {
     }
 
     public Map<String, Object> get(StoreExtensionKey extensionKey, Boolean worksWithLocalStore) {
+        long start = EventRecorder.start();
+        Map<String, Object> result = getFromTiers(extensionKey, worksWithLocalStore);
+        EventRecorder.end(EventRecorder.Type.EXTENSION_GET, name, result != null, result == null ? 0 : result.size(), start);
+        return result;
+    }
+
+    private Map<String, Object> getFromTiers(StoreExtensionKey extensionKey, Boolean worksWithLocalStore) {
         Map<String, Object> result;
+        boolean fetched = false;
+
+        if (refreshAhead != null) {
+            applyRefreshes();
+
+            if (refreshAhead.isExpired(extensionKey.mergeKey)) {
+                expire(extensionKey);
+            }
+        }
+
+        if (offHeapCache != null) {
+            result = offHeapCache.get(extensionKey.mergeKey);
+
+            if (result != null) {
+                if (refreshAhead != null) {
+                    refreshAhead.onServed(extensionKey, worksWithLocalStore && localStore != null);
+                }
+
+                return result;
+            }
+        }
 
         if (localStore != null) {
             if (worksWithLocalStore) {
                 Map<String, Object> localResult = getFromLocalSore(extensionKey);
                 if (localResult == null) {
                     result = get(extensionKey.namespace, extensionKey.collection, extensionKey.key);
+                    fetched = true;
+
+                    if (result != null) {
+                        putOnLocalStore(extensionKey, result);
+                    }
                 } else {
                     result = localResult;
-                }
 
-                if (result != null) {
-                    putOnLocalStore(extensionKey, result);
+                    if (refreshAhead != null) {
+                        refreshAhead.onServed(extensionKey, true);
+                    }
                 }
             } else {
                 result = get(extensionKey.namespace, extensionKey.collection, extensionKey.key);
+                fetched = true;
             }
         } else {
             result = get(extensionKey.namespace, extensionKey.collection, extensionKey.key);
+            fetched = true;
 
             if (worksWithLocalStore) {
                 log.warn("You are trying use worksWithLocalStore but you localStore is disable!! StoreExtension[{}]", name);
             }
         }
 
+        if (offHeapCache != null && result != null) {
+            offHeapCache.put(extensionKey.mergeKey, result);
+        }
+
+        // The fetch time is only needed if the value is kept on a local tier
+        if (refreshAhead != null && fetched && result != null && (offHeapCache != null || worksWithLocalStore && localStore != null)) {
+            refreshAhead.onFetched(extensionKey.mergeKey);
+        }
+
         return result;
     }
 
@@ -127,13 +242,29 @@ public abstract class StoreExtension<T> {
         return overwrite;
     }
 
+    /**
+     * @return The off-heap cache of this extension, or null if it is disabled
+     */
+
+    public OffHeapCache getOffHeapCache() {
+        return offHeapCache;
+    }
+
     public List<StoreExtensionKey> getExtensionsKeys() {
         return storeExtensionKeys;
     }
 
     public void putOnLocalStore(StoreExtensionKey storeExtensionKey, Map<String, Object> data) {
         if (localStore != null) {
-            localStore.put(storeExtensionKey.mergeKey, data);
+            if (localBytesStore != null) {
+                localBytesStore.put(storeExtensionKey.mergeKeyBytes, data);
+            } else {
+                localStore.put(storeExtensionKey.mergeKey, data);
+            }
+
+            if (localIndex != null) {
+                localIndex.add(storeExtensionKey.mergeKey, entrySize(storeExtensionKey.mergeKey, data));
+            }
         } else {
             log.warn("You are trying use worksWithLocalStore but you localStore is disable!! StoreExtension[{}]", name);
         }
@@ -143,7 +274,11 @@ public abstract class StoreExtension<T> {
         Map<String, Object> result = null;
 
         if (localStore != null) {
-            result = localStore.get(storeExtensionKey.mergeKey);
+            result = localBytesStore != null ? localBytesStore.get(storeExtensionKey.mergeKeyBytes) : localStore.get(storeExtensionKey.mergeKey);
+
+            if (localIndex != null && result != null) {
+                localIndex.touch(storeExtensionKey.mergeKey);
+            }
         } else {
             log.warn("You are trying use worksWithLocalStore but you localStore is disable!! StoreExtension[{}]", name);
         }
@@ -154,8 +289,16 @@ public abstract class StoreExtension<T> {
     public void removeFromLocalSore(StoreExtensionKey storeExtensionKey) {
         Map<String, Object> result = null;
 
+        if (offHeapCache != null) {
+            offHeapCache.remove(storeExtensionKey.mergeKey);
+        }
+
         if (localStore != null) {
             localStore.delete(storeExtensionKey.mergeKey);
+
+            if (localIndex != null) {
+                localIndex.remove(storeExtensionKey.mergeKey);
+            }
         } else {
             log.warn("You are trying use worksWithLocalStore but you localStore is disable!! StoreExtension[{}]", name);
         }
@@ -169,6 +312,31 @@ public abstract class StoreExtension<T> {
         }
     }
 
+    /**
+     * Transforms the value of a key, reusing the last result of that key if
+     * "redborder.stores.extension.extensionName.transform.cache" is enabled
+     * and the value hasn't changed.
+     *
+     * @param mergeKey  The entry key
+     * @param cacheData The entry value
+     * @return The transformed value
+     */
+
+    public Map<String, Object> transform(String mergeKey, Map<String, Object> cacheData) {
+        if (transformCache == null || cacheData == null || transformProcess == null) {
+            return transform(cacheData);
+        }
+
+        Map<String, Object> transformed = transformCache.get(mergeKey, cacheData);
+
+        if (transformed == null) {
+            transformed = transformProcess.transform(cacheData);
+            transformCache.put(mergeKey, cacheData, transformed);
+        }
+
+        return transformed;
+    }
+
     /**
      * Adds an element to the store
      *
@@ -199,9 +367,191 @@ public abstract class StoreExtension<T> {
     public void remove(StoreExtensionKey storeExtensionKey, Boolean worksWithLocalStore) {
         if (worksWithLocalStore) {
             localStore.delete(storeExtensionKey.mergeKey);
+
+            if (localIndex != null) {
+                localIndex.remove(storeExtensionKey.mergeKey);
+            }
+        }
+
+        if (offHeapCache != null) {
+            offHeapCache.remove(storeExtensionKey.mergeKey);
         }
 
         remove(storeExtensionKey.namespace, storeExtensionKey.collection, storeExtensionKey.key);
+        notifyWrite(storeExtensionKey);
+    }
+
+    /**
+     * Evicts the least recently used entries of the local store while it is over
+     * its limits, up to "redborder.stores.extension.extensionName.localStore.evictionBatch"
+     * entries on each call. The entries are deleted from the local store, so their
+     * deletion is also written to its changelog.
+     *
+     * @return The number of evicted entries
+     */
+
+    public int evictLocalStore() {
+        if (localIndex == null || !localIndex.isOverLimits()) {
+            return 0;
+        }
+
+        List<String> evicted = localIndex.evict(evictionBatch);
+        if (!evicted.isEmpty()) {
+            localStore.deleteAll(evicted);
+
+            if (refreshAhead != null) {
+                for (String mergeKey : evicted) {
+                    refreshAhead.onRemoved(mergeKey);
+                }
+            }
+        }
+
+        return evicted.size();
+    }
+
+    /**
+     * Applies the refreshes and the evictions of the local data.
+     * It must be called on every task window.
+     *
+     * @return The number of entries evicted from the local store
+     */
+
+    public int window() {
+        if (refreshAhead != null) {
+            applyRefreshes();
+        }
+
+        return evictLocalStore();
+    }
+
+    /**
+     * @return The refresh-ahead policy of this extension, or null if it is disabled
+     */
+
+    public RefreshAhead getRefreshAhead() {
+        return refreshAhead;
+    }
+
+    // Writes the values fetched on background to the local tiers
+    private void applyRefreshes() {
+        RefreshAhead.Refresh refresh;
+
+        while ((refresh = refreshAhead.poll()) != null) {
+            StoreExtensionKey extensionKey = refresh.extensionKey;
+
+            if (!refresh.failed) {
+                Map<String, Object> previous = cachedValue(extensionKey, refresh.local);
+
+                if (refresh.value == null) {
+                    expire(extensionKey);
+                } else {
+                    if (refresh.local && localStore != null) {
+                        putOnLocalStore(extensionKey, refresh.value);
+                    }
+
+                    if (offHeapCache != null) {
+                        offHeapCache.put(extensionKey.mergeKey, refresh.value);
+                    }
+                }
+
+                // Most refreshes find the same value, and the listeners drop the data derived from the key
+                if (refresh.value == null ? previous != null : !refresh.value.equals(previous)) {
+                    notifyWrite(extensionKey);
+                }
+            }
+        }
+    }
+
+    private Map<String, Object> cachedValue(StoreExtensionKey extensionKey, boolean local) {
+        if (local && localStore != null) {
+            return localStore.get(extensionKey.mergeKey);
+        } else if (offHeapCache != null) {
+            return offHeapCache.get(extensionKey.mergeKey);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Stops the background work of this extension. It must be called when the
+     * extension isn't used anymore.
+     */
+
+    public void close() {
+        if (refreshAhead != null) {
+            refreshAhead.close();
+        }
+    }
+
+    // Removes a key from the local tiers, so it is fetched again
+    private void expire(StoreExtensionKey extensionKey) {
+        if (offHeapCache != null) {
+            offHeapCache.remove(extensionKey.mergeKey);
+        }
+
+        if (localStore != null) {
+            localStore.delete(extensionKey.mergeKey);
+
+            if (localIndex != null) {
+                localIndex.remove(extensionKey.mergeKey);
+            }
+        }
+
+        refreshAhead.onRemoved(extensionKey.mergeKey);
+    }
+
+    /**
+     * @return The recency index of the local store, or null if it isn't bounded
+     */
+
+    public ClockIndex getLocalIndex() {
+        return localIndex;
+    }
+
+    /**
+     * @return The local store of this extension, or null if it is disabled
+     */
+
+    public KeyValueStore<String, Map<String, Object>> getLocalStore() {
+        return localStore;
+    }
+
+    private void restoreLocalIndex() {
+        KeyValueIterator<String, Map<String, Object>> iterator = localStore.all();
+
+        try {
+            while (iterator.hasNext()) {
+                Entry<String, Map<String, Object>> entry = iterator.next();
+                localIndex.add(entry.getKey(), entrySize(entry.getKey(), entry.getValue()));
+            }
+        } finally {
+            iterator.close();
+        }
+    }
+
+    private int entrySize(String key, Map<String, Object> data) {
+        // The bytes are only measured when there is a bytes limit
+        return key.length() + (localIndex.isBytesBounded() ? serde.toBytes(data).length : 0);
+    }
+
+    /**
+     * Sets a listener that is notified of the entries written or removed through this extension
+     *
+     * @param listener The listener
+     */
+
+    public void setListener(StoreListener listener) {
+        this.listener = listener;
+    }
+
+    private void notifyWrite(StoreExtensionKey storeExtensionKey) {
+        if (transformCache != null) {
+            transformCache.remove(storeExtensionKey.mergeKey);
+        }
+
+        if (listener != null) {
+            listener.onWrite(name, storeExtensionKey.mergeKey);
+        }
     }
 
     /**
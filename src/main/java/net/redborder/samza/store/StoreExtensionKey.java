@@ -1,10 +1,15 @@
 package net.redborder.samza.store;
 
+import java.nio.charset.Charset;
+
 public class StoreExtensionKey {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     public final String namespace;
     public final String collection;
     public final String key;
     public final String mergeKey;
+    public final byte[] mergeKeyBytes;
     public final Boolean transform;
 
     private StoreExtensionKey(String namespace, String collection, String key, Boolean transform) {
@@ -12,6 +17,7 @@ public class StoreExtensionKey {
         this.collection = collection;
         this.key = key;
         this.mergeKey = namespace + collection + key;
+        this.mergeKeyBytes = mergeKey.getBytes(UTF8);
         this.transform = transform;
     }
 
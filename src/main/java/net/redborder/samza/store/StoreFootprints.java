@@ -0,0 +1,308 @@
+package net.redborder.samza.store;
+
+import net.redborder.samza.store.cache.ClockIndex;
+import net.redborder.samza.store.cache.EnrichmentMemo;
+import net.redborder.samza.store.cache.OffHeapCache;
+import net.redborder.samza.store.cache.TransformCache;
+import net.redborder.samza.store.extension.ShardedExtension;
+import org.apache.samza.config.Config;
+import org.apache.samza.metrics.Gauge;
+import org.apache.samza.metrics.MetricsRegistry;
+import org.apache.samza.storage.kv.KeyValueStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.*;
+
+/**
+ * This class exports the size of the stores, the window stores, the local stores
+ * of the extensions, the in-process caches and the writes dropped by the sharded
+ * extensions as gauges of the task metrics.
+ * <p/>
+ * <p>For the RocksDB stores it reports the bytes on disk and, when the RocksDB
+ * version supports them, the estimated number of keys, the estimated live data,
+ * the memtables and the block cache usage. These are read from the RocksDB
+ * properties, found by unwrapping the Samza store by reflection, so no store is
+ * scanned. The caches report their entries and bytes.</p>
+ * <p/>
+ * <p>The gauges are updated on the task window, at most every
+ * "redborder.footprint.interval.ms" (default 60000).</p>
+ */
+
+public class StoreFootprints {
+    private static final Logger log = LoggerFactory.getLogger(StoreFootprints.class);
+    private static final int MAX_WRAPPERS = 10;
+    private static final String[][] ROCKSDB_PROPERTIES = {
+            {"rocksdb.estimate-num-keys", "entries"},
+            {"rocksdb.estimate-live-data-size", "live-bytes"},
+            {"rocksdb.cur-size-all-mem-tables", "memtable-bytes"},
+            {"rocksdb.block-cache-usage", "block-cache-bytes"}
+    };
+
+    private StoreManager storeManager;
+    private MetricsRegistry metricsRegistry;
+    private String group = StoreFootprints.class.getName();
+    private Map<String, Gauge<Long>> gauges = new HashMap<>();
+    private Map<String, RocksDbStore> rocksDbStores = new LinkedHashMap<>();
+    private long interval;
+    private long lastUpdate = 0;
+
+    public StoreFootprints(StoreManager storeManager, Config config, MetricsRegistry metricsRegistry) {
+        this.storeManager = storeManager;
+        this.metricsRegistry = metricsRegistry;
+        this.interval = config.getLong("redborder.footprint.interval.ms", 60000L);
+
+        for (String store : storeManager.getStoreNames()) {
+            addRocksDbStore("store-" + store, storeManager.getStore(store));
+        }
+
+        for (String extension : storeManager.getAvailableExtensions()) {
+            addRocksDbStore("extension-" + extension + "-local", storeManager.getExtension(extension).getLocalStore());
+        }
+
+        log.info("Reporting the footprint of the RocksDB stores {}", rocksDbStores.keySet());
+    }
+
+    private void addRocksDbStore(String prefix, KeyValueStore<?, ?> store) {
+        RocksDbStore rocksDbStore = store == null ? null : RocksDbStore.find(store);
+
+        if (rocksDbStore != null) {
+            rocksDbStores.put(prefix, rocksDbStore);
+        }
+    }
+
+    /**
+     * Updates the gauges if the interval has passed since the last update.
+     * It must be called on every task window.
+     */
+
+    public void window() {
+        long now = System.currentTimeMillis();
+
+        if (now - lastUpdate >= interval) {
+            lastUpdate = now;
+            update();
+        }
+    }
+
+    /**
+     * Updates all the gauges
+     */
+
+    public void update() {
+        for (Map.Entry<String, RocksDbStore> entry : rocksDbStores.entrySet()) {
+            String prefix = entry.getKey();
+            RocksDbStore rocksDbStore = entry.getValue();
+
+            set(prefix + "-disk-bytes", rocksDbStore.diskBytes());
+
+            for (String[] property : ROCKSDB_PROPERTIES) {
+                Long value = rocksDbStore.property(property[0]);
+
+                if (value != null) {
+                    set(prefix + "-" + property[1], value);
+                }
+            }
+        }
+
+        for (String store : storeManager.getStoreNames()) {
+            TransformCache transformCache = storeManager.getTransformCache(store);
+
+            if (transformCache != null) {
+                set("store-" + store + "-transform-cache-entries", transformCache.size());
+            }
+        }
+
+        for (String windowStore : storeManager.getWindowStoreNames()) {
+            set("window-" + windowStore + "-snapshot-bytes", storeManager.getWindowStore(windowStore).getSnapshotBytes());
+        }
+
+        for (String extension : storeManager.getAvailableExtensions()) {
+            StoreExtension<?> storeExtension = storeManager.getExtension(extension);
+            OffHeapCache offHeapCache = storeExtension.getOffHeapCache();
+            ClockIndex localIndex = storeExtension.getLocalIndex();
+
+            if (offHeapCache != null) {
+                set("extension-" + extension + "-offheap-entries", offHeapCache.size());
+                set("extension-" + extension + "-offheap-bytes", offHeapCache.allocatedBytes());
+            }
+
+            if (localIndex != null) {
+                set("extension-" + extension + "-local-index-entries", localIndex.size());
+
+                if (localIndex.isBytesBounded()) {
+                    set("extension-" + extension + "-local-index-bytes", localIndex.bytes());
+                }
+            }
+
+            if (storeExtension instanceof ShardedExtension) {
+                set("extension-" + extension + "-dropped-writes", ((ShardedExtension) storeExtension).getDroppedWrites());
+            }
+        }
+
+        EnrichmentMemo memo = storeManager.getMemo();
+        if (memo != null) {
+            set("memo-entries", memo.size());
+        }
+    }
+
+    /**
+     * @param name The gauge name
+     * @return The current value of the gauge, or null if it hasn't been reported
+     */
+
+    public Long get(String name) {
+        Gauge<Long> gauge = gauges.get(name);
+        return gauge == null ? null : gauge.getValue();
+    }
+
+    private void set(String name, long value) {
+        Gauge<Long> gauge = gauges.get(name);
+
+        if (gauge == null) {
+            gauge = metricsRegistry.newGauge(group, name, 0L);
+            gauges.put(name, gauge);
+        }
+
+        gauge.set(value);
+    }
+
+    /**
+     * The RocksDB database under a Samza store, accessed by reflection because
+     * the Samza store doesn't expose it
+     */
+
+    static class RocksDbStore {
+        private final Object db;
+        private final Method getProperty;
+        private final File dir;
+        private final Set<String> unsupported = new HashSet<>();
+
+        RocksDbStore(Object db, Method getProperty, File dir) {
+            this.db = db;
+            this.getProperty = getProperty;
+            this.dir = dir;
+        }
+
+        /**
+         * Unwraps a store (logging, caching, serialization...) until the RocksDB store is found
+         *
+         * @param store The store returned by the task context
+         * @return The RocksDB database, or null if the store isn't backed by RocksDB
+         */
+
+        static RocksDbStore find(Object store) {
+            Object current = store;
+
+            for (int i = 0; i < MAX_WRAPPERS && current != null; i++) {
+                Field dbField = declaredField(current.getClass(), "db");
+
+                if (dbField != null && dbField.getType().getName().equals("org.rocksdb.RocksDB")) {
+                    try {
+                        Object db = database(current, dbField);
+                        Field dirField = declaredField(current.getClass(), "dir");
+                        dirField.setAccessible(true);
+                        File dir = (File) dirField.get(current);
+                        return new RocksDbStore(db, db.getClass().getMethod("getProperty", String.class), dir);
+                    } catch (ReflectiveOperationException | RuntimeException e) {
+                        log.warn("Couldn't access the RocksDB store " + current.getClass().getName(), e);
+                        return null;
+                    }
+                }
+
+                current = wrapped(current);
+            }
+
+            return null;
+        }
+
+        /**
+         * Reads the database of a RocksDB store. The db() accessor is private, and it
+         * opens the database lazily, so it is called instead of reading the field when it exists.
+         */
+
+        private static Object database(Object store, Field dbField) throws ReflectiveOperationException {
+            try {
+                Method dbMethod = store.getClass().getDeclaredMethod("db");
+                dbMethod.setAccessible(true);
+                return dbMethod.invoke(store);
+            } catch (NoSuchMethodException e) {
+                dbField.setAccessible(true);
+                return dbField.get(store);
+            }
+        }
+
+        private static Field declaredField(Class<?> clazz, String name) {
+            for (Class<?> current = clazz; current != null; current = current.getSuperclass()) {
+                try {
+                    return current.getDeclaredField(name);
+                } catch (NoSuchFieldException e) {
+                    // Keep looking on the superclass
+                }
+            }
+
+            return null;
+        }
+
+        private static Object wrapped(Object store) {
+            for (Class<?> clazz = store.getClass(); clazz != null; clazz = clazz.getSuperclass()) {
+                for (Field field : clazz.getDeclaredFields()) {
+                    if (KeyValueStore.class.isAssignableFrom(field.getType())) {
+                        try {
+                            field.setAccessible(true);
+                            return field.get(store);
+                        } catch (IllegalAccessException | RuntimeException e) {
+                            return null;
+                        }
+                    }
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * @param property The RocksDB property name
+         * @return The property value, or null if this RocksDB version doesn't support it
+         */
+
+        Long property(String property) {
+            if (unsupported.contains(property)) {
+                return null;
+            }
+
+            try {
+                String value = (String) getProperty.invoke(db, property);
+
+                if (value != null && !value.isEmpty()) {
+                    return Long.parseLong(value.trim());
+                }
+            } catch (ReflectiveOperationException | NumberFormatException e) {
+                log.debug("The RocksDB property {} isn't supported", property);
+            }
+
+            unsupported.add(property);
+            return null;
+        }
+
+        long diskBytes() {
+            return size(dir);
+        }
+
+        private static long size(File file) {
+            File[] files = file.listFiles();
+            long bytes = 0;
+
+            if (files != null) {
+                for (File child : files) {
+                    bytes += child.isDirectory() ? size(child) : child.length();
+                }
+            }
+
+            return bytes;
+        }
+    }
+}
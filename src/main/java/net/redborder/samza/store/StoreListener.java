@@ -0,0 +1,18 @@
+package net.redborder.samza.store;
+
+/**
+ * This interface is notified of the writes made on a store or a store
+ * extension, so the data derived from their entries can be invalidated.
+ */
+
+public interface StoreListener {
+
+    /**
+     * Called when an entry of a store is written or deleted
+     *
+     * @param store The store name
+     * @param key   The entry key
+     */
+
+    void onWrite(String store, String key);
+}
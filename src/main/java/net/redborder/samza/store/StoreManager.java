@@ -1,11 +1,18 @@
 package net.redborder.samza.store;
 
+import net.redborder.samza.recorder.EventRecorder;
+import net.redborder.samza.store.cache.EnrichmentMemo;
+import net.redborder.samza.store.cache.TransformCache;
 import org.apache.samza.config.Config;
+import org.apache.samza.config.ConfigException;
 import org.apache.samza.storage.kv.KeyValueStore;
 import org.apache.samza.task.TaskContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
 import java.lang.Object;
 import java.lang.String;
 import java.lang.reflect.Constructor;
@@ -26,10 +33,18 @@ public class StoreManager {
     private static Map<String, WindowStore> windowStores = new LinkedHashMap<>();
 
     // Stores each extension instance with a key
-    private static Map<String, StoreExtension> extensionsHash = new LinkedHashMap<>();
+    private static Map<String, StoreExtension<?>> extensionsHash = new LinkedHashMap<>();
+
+    // Memoizes the enrichment of the messages with the same key fields
+    private static EnrichmentMemo memo;
+    private static List<String> memoFields = new ArrayList<>();
+
+    // The extensions are shared by the tasks of the container, and closed with the last one
+    private static int openManagers = 0;
 
     private static final Logger log = LoggerFactory.getLogger(StoreManager.class);
     private List<String> storesList;
+    private boolean extensionsEnabled = true;
 
     /**
      * Constructs a new store manager.
@@ -45,15 +60,68 @@ public class StoreManager {
      * "redborder.stores.storeName.overwrite". Stores with the overwrite property
      * set as true will overwrite the value of an enriched field if it is already
      * present. Its default value is true.</p>
+     * <p/>
+     * <p>Stores with the property "redborder.stores.storeName.keys.bytes" set as true
+     * are looked up with byte array keys encoded straight from the messages. Their
+     * keys must use a pass-through serde, like "org.apache.samza.serializers.ByteSerdeFactory",
+     * and their Samza object cache must be disabled with "stores.storeName.object.cache.size=0",
+     * because the cache compares the array keys by reference.</p>
+     * <p/>
+     * <p>If the property "redborder.stores.memo.enabled" is true, the fields added by
+     * #enrichFull are memoized for the messages with the same values on the key fields
+     * of all the stores. See {@link EnrichmentMemo}.</p>
      *
      * @param config  The task config
      * @param context The task context
      */
 
     public StoreManager(Config config, TaskContext context) {
+        initMemo(config);
         initStores(config, context);
         initWindowStores(config);
         initStoresExtensions(config, context);
+        initMemoFields();
+        openManagers++;
+    }
+
+    /**
+     * Closes the store manager of a task. When the last one is closed, the
+     * extensions are closed and forgotten, so they stop their background work.
+     */
+
+    public void close() {
+        if (--openManagers == 0) {
+            for (StoreExtension<?> storeExtension : extensionsHash.values()) {
+                storeExtension.close();
+            }
+
+            extensionsHash.clear();
+        }
+    }
+
+    private void initMemo(Config config) {
+        if (memo == null && config.getBoolean("redborder.stores.memo.enabled", false)) {
+            int maxEntries = config.getInt("redborder.stores.memo.maxEntries", 100000);
+            long maxAge = config.getLong("redborder.stores.memo.maxAge.ms", 60000L);
+            memo = new EnrichmentMemo(maxEntries, maxAge);
+            log.info("Memoizing enrichments, max entries {} max age {} ms", maxEntries, maxAge);
+        }
+    }
+
+    private void initMemoFields() {
+        memoFields.clear();
+
+        for (String store : storesList) {
+            Store storeData = stores.get(store);
+
+            if (storeData != null) {
+                for (String field : storeData.getKeyFields()) {
+                    if (!memoFields.contains(field)) {
+                        memoFields.add(field);
+                    }
+                }
+            }
+        }
     }
 
     private void initStores(Config config, TaskContext context) {
@@ -65,11 +133,34 @@ public class StoreManager {
                 Store storeData = new Store();
                 storeData.setKeys(config.getList("redborder.stores." + store + ".keys", Collections.singletonList("default_key")));
                 storeData.setOverwrite(config.getBoolean("redborder.stores." + store + ".overwrite", true));
-                storeData.setStore((KeyValueStore<String, Map<String, Object>>) context.getStore(store));
+                storeData.setKeysEncoding(config.get("redborder.stores." + store + ".keys.encoding", "concat"));
+                storeData.setMaxScan(config.getInt("redborder.stores." + store + ".keys.maxScan", 0));
+                int transformCacheEntries = config.getInt("redborder.stores." + store + ".transform.cache", 0);
+                if (transformCacheEntries > 0) {
+                    storeData.setTransformCache(new TransformCache(transformCacheEntries));
+                }
+
+                KeyValueStore<String, Map<String, Object>> keyValueStore;
+                if (config.getBoolean("redborder.stores." + store + ".keys.bytes", false)) {
+                    // The store must use a pass-through serde for its keys
+                    requireUncachedStore(config, store, "redborder.stores." + store + ".keys.bytes");
+                    KeyValueStore<byte[], Map<String, Object>> bytesStore = (KeyValueStore<byte[], Map<String, Object>>) context.getStore(store);
+                    storeData.setBytesStore(bytesStore);
+                    keyValueStore = new Utf8KeyValueStore(bytesStore);
+                } else {
+                    keyValueStore = (KeyValueStore<String, Map<String, Object>>) context.getStore(store);
+                }
+
+                if (memo != null || transformCacheEntries > 0) {
+                    // The store invalidates its cached transforms and forwards the writes to the memo
+                    storeData.setListener(memo);
+                    keyValueStore = new ObservableKeyValueStore(store, keyValueStore, storeData);
+                }
+                storeData.setStore(keyValueStore);
                 String className = config.get("redborder.stores." + store + ".transform.class");
                 if (className != null && !className.equals("")) {
                     try {
-                        Class foundClass = Class.forName(className);
+                        Class<?> foundClass = Class.forName(className);
                         TransformProcess transformProcess = (TransformProcess) foundClass.newInstance();
                         storeData.setTransformProcess(transformProcess);
                     } catch (InstantiationException | IllegalAccessException e) {
@@ -85,6 +176,22 @@ public class StoreManager {
         }
     }
 
+    /**
+     * Checks that the Samza object cache of a store is disabled. The cache (CachedStore)
+     * compares the keys by reference, so with byte array keys the lookups would never
+     * hit it, and they would miss the writes that are only on the cache yet.
+     *
+     * @param config   The task config
+     * @param store    The store name
+     * @param property The property that enables the byte array keys
+     */
+
+    private static void requireUncachedStore(Config config, String store, String property) {
+        if (config.getInt("stores." + store + ".object.cache.size", -1) != 0) {
+            throw new ConfigException(property + " requires stores." + store + ".object.cache.size=0");
+        }
+    }
+
     private void initStoresExtensions(Config config, TaskContext context) {
         List<String> extensionsNames = config.getList("redborder.stores.extensions", Collections.<String>emptyList());
 
@@ -96,7 +203,7 @@ public class StoreManager {
                     TransformProcess transformProcess = null;
                     if (transformClassName != null && !transformClassName.equals("")) {
                         try {
-                            Class transformClass = Class.forName(transformClassName);
+                            Class<?> transformClass = Class.forName(transformClassName);
                             transformProcess = (TransformProcess) transformClass.newInstance();
                         } catch (InstantiationException | IllegalAccessException e) {
                             log.error("Couldn't create the instance associated with the TransformProcess " + transformClassName, e);
@@ -108,16 +215,27 @@ public class StoreManager {
                     String className = config.get("redborder.stores.extension." + extensionName + ".class");
                     if (className != null) {
                         Boolean useLocalStore = config.getBoolean("redborder.stores.extension." + extensionName + ".useLocalStore", false);
-                        Class foundClass = Class.forName(className);
-                        StoreExtension extension;
+                        Class<?> foundClass = Class.forName(className);
+                        StoreExtension<?> extension;
 
                         if (useLocalStore) {
-                            KeyValueStore<String, Map<String, Object>> keyValueStore = (KeyValueStore<String, Map<String, Object>>) context.getStore(extensionName);
-                            Constructor constructor = foundClass.getConstructor(String.class, Config.class, TransformProcess.class, KeyValueStore.class);
-                            extension = (StoreExtension) constructor.newInstance(extensionName, config, transformProcess, keyValueStore);
+                            KeyValueStore<String, Map<String, Object>> keyValueStore;
+                            if (config.getBoolean("redborder.stores.extension." + extensionName + ".localStore.bytes", false)) {
+                                requireUncachedStore(config, extensionName, "redborder.stores.extension." + extensionName + ".localStore.bytes");
+                                keyValueStore = new Utf8KeyValueStore((KeyValueStore<byte[], Map<String, Object>>) context.getStore(extensionName));
+                            } else {
+                                keyValueStore = (KeyValueStore<String, Map<String, Object>>) context.getStore(extensionName);
+                            }
+
+                            Constructor<?> constructor = foundClass.getConstructor(String.class, Config.class, TransformProcess.class, KeyValueStore.class);
+                            extension = (StoreExtension<?>) constructor.newInstance(extensionName, config, transformProcess, keyValueStore);
                         } else {
-                            Constructor constructor = foundClass.getConstructor(String.class, Config.class, TransformProcess.class);
-                            extension = (StoreExtension) constructor.newInstance(extensionName, config, transformProcess);
+                            Constructor<?> constructor = foundClass.getConstructor(String.class, Config.class, TransformProcess.class);
+                            extension = (StoreExtension<?>) constructor.newInstance(extensionName, config, transformProcess);
+                        }
+
+                        if (memo != null) {
+                            extension.setListener(new ExtensionListener(extension.getExtensionsKeys()));
                         }
 
                         extensionsHash.put(extensionName, extension);
@@ -127,7 +245,13 @@ public class StoreManager {
                     }
                 } catch (ClassNotFoundException e) {
                     log.error("Couldn't find the class associated with the extension " + extensionName, e);
-                } catch (NoSuchMethodException | InstantiationException | InvocationTargetException | IllegalAccessException e) {
+                } catch (InvocationTargetException e) {
+                    if (e.getCause() instanceof ConfigException) {
+                        throw (ConfigException) e.getCause();
+                    }
+
+                    log.error("Couldn't create the instance associated with the extension " + extensionName, e);
+                } catch (NoSuchMethodException | InstantiationException | IllegalAccessException e) {
                     log.error("Couldn't create the instance associated with the extension " + extensionName, e);
                 }
             }
@@ -142,18 +266,29 @@ public class StoreManager {
             try {
                 String className = config.get("redborder.stores.window." + windowStoreName + ".class");
                 if (className != null) {
-                    Class foundClass = Class.forName(className);
-                    Constructor constructor = foundClass.getConstructor(String.class, Config.class, KeyValueStore.class);
+                    Class<?> foundClass = Class.forName(className);
+                    Constructor<?> constructor = foundClass.getConstructor(String.class, Config.class, KeyValueStore.class);
                     WindowStore windowStore = (WindowStore) constructor.newInstance(windowStoreName, config, getStore(windowStoreName));
                     windowStore.prepare(config);
                     windowStores.put(windowStoreName, windowStore);
+
+                    Store storeData = stores.get(windowStoreName);
+                    if (storeData != null) {
+                        storeData.setWindowStore(windowStore);
+                    }
                 } else {
                     log.warn("WindowStore {} is declared, but doesn't have associated class. Don't create it!", windowStoreName);
                 }
                 log.info("  * Store Window: {}", windowStoreName);
             } catch (ClassNotFoundException e) {
                 log.error("Couldn't find the class associated with the WindowStore: " + windowStoreName, e);
-            } catch (NoSuchMethodException | InstantiationException | InvocationTargetException | IllegalAccessException e) {
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof ConfigException) {
+                    throw (ConfigException) e.getCause();
+                }
+
+                log.error("Couldn't create the instance associated with the WindowStore: " + windowStoreName, e);
+            } catch (NoSuchMethodException | InstantiationException | IllegalAccessException e) {
                 log.error("Couldn't create the instance associated with the WindowStore: " + windowStoreName, e);
             }
         }
@@ -177,6 +312,26 @@ public class StoreManager {
         return keyValueStore;
     }
 
+    /**
+     * Builds the key of a store for a message, with the same fields and encoding
+     * used by the lookups, so processors can write entries that will be found.
+     *
+     * @param store   The store name
+     * @param message The message with the key fields
+     * @return The key, or null if the store doesn't exist or the message doesn't have the fields
+     */
+
+    public String getStoreKey(String store, Map<String, Object> message) {
+        Store storeData = stores.get(store);
+        String key = null;
+
+        if (storeData != null) {
+            key = storeData.buildKey(message);
+        }
+
+        return key;
+    }
+
     /**
      * @param store The key from the store
      * @return The overwrite status from the store specified
@@ -224,37 +379,20 @@ public class StoreManager {
         for (String store : enrichWithStores) {
             Store storeData = stores.get(store);
             if (storeData != null) {
-                List<String> allKeys = storeData.getKeys();
-
-                for (String allKey : allKeys) {
-                    String[] keys = allKey.split(":");
-                    StringBuilder builder = new StringBuilder();
+                long start = EventRecorder.start();
+                Map<String, Object> transform = storeData.lookupTransformed(enrichment);
+                EventRecorder.end(EventRecorder.Type.STORE_GET, store, transform != null, transform == null ? 0 : transform.size(), start);
 
-                    for (String key : keys) {
-                        String kv = (String) enrichment.get(key);
-                        if (kv != null) {
-                            builder.append(kv);
-                        }
-                    }
-
-                    String mergeKey = builder.toString();
-                    KeyValueStore<String, Map<String, Object>> keyValueStore = storeData.getStore();
-                    Map<String, Object> contents = keyValueStore.get(mergeKey);
-                    Map<String, Object> transform = storeData.transform(contents);
-
-                    log.debug("Query KV store[{}] key[{}], value[" + contents + "]", store, mergeKey);
+                log.debug("Query KV store[{}] keys[{}], value[" + transform + "]", store, storeData.getKeys());
 
-                    if (transform != null) {
-                        if (storeData.mustOverwrite()) {
-                            enrichment.putAll(transform);
-                        } else {
-                            Map<String, Object> newData = new HashMap<>();
-                            newData.putAll(transform);
-                            newData.putAll(enrichment);
-                            enrichment = newData;
-                        }
-
-                        break;
+                if (transform != null) {
+                    if (storeData.mustOverwrite()) {
+                        enrichment.putAll(transform);
+                    } else {
+                        Map<String, Object> newData = new HashMap<>();
+                        newData.putAll(transform);
+                        newData.putAll(enrichment);
+                        enrichment = newData;
                     }
                 }
             } else {
@@ -266,6 +404,18 @@ public class StoreManager {
     }
 
     public Map<String, Object> enrichFull(Map<String, Object> message, List<String> useStoresAndExtensions) {
+        if (memo != null && useStoresAndExtensions == null && extensionsEnabled) {
+            String memoKey = memoKey(message);
+            EnrichmentMemo.Delta delta = memo.get(memoKey);
+
+            if (delta == null) {
+                delta = computeDelta(message);
+                memo.put(memoKey, delta);
+            }
+
+            return delta.applyTo(message);
+        }
+
         Map<String, Object> local = enrichWithLocal(message, useStoresAndExtensions);
         return enrichWithExtensions(local, useStoresAndExtensions);
     }
@@ -274,6 +424,83 @@ public class StoreManager {
         return enrichFull(message, null);
     }
 
+    private String memoKey(Map<String, Object> message) {
+        String[] values = new String[memoFields.size()];
+
+        for (int i = 0; i < values.length; i++) {
+            String field = memoFields.get(i);
+            values[i] = message.containsKey(field) ? "=" + message.get(field) : "";
+        }
+
+        return CompositeKey.encode(values);
+    }
+
+    /**
+     * Computes the fields that #enrichFull adds to the messages with the same key
+     * fields than the given one. The stores and extensions are queried in the same
+     * order, but only with the key fields, so the fields added by the stores that
+     * don't overwrite are kept apart and only applied when the message doesn't have them.
+     *
+     * @param message The message to enrich
+     * @return The delta of the enrichment
+     */
+
+    private EnrichmentMemo.Delta computeDelta(Map<String, Object> message) {
+        Map<String, Object> enrichment = new HashMap<>();
+        Map<String, Object> overwritten = new HashMap<>();
+        Map<String, Object> defaults = new HashMap<>();
+        List<String> dependencies = new ArrayList<>();
+
+        for (String field : memoFields) {
+            if (message.containsKey(field)) {
+                enrichment.put(field, message.get(field));
+            }
+        }
+
+        for (String store : storesList) {
+            Store storeData = stores.get(store);
+
+            if (storeData != null) {
+                for (String key : storeData.buildKeys(enrichment)) {
+                    dependencies.add(EnrichmentMemo.dependency(store, key));
+                }
+
+                Map<String, Object> transform = storeData.lookupTransformed(enrichment);
+                mergeDelta(transform, storeData.mustOverwrite(), enrichment, overwritten, defaults);
+            }
+        }
+
+        for (StoreExtension<?> storeExtension : extensionsHash.values()) {
+            List<StoreExtensionKey> storeExtensionKeys = storeExtension.getExtensionsKeys();
+
+            for (StoreExtensionKey storeExtensionKey : storeExtensionKeys) {
+                Map<String, Object> contents = storeExtension.get(storeExtensionKey);
+                Map<String, Object> transform = storeExtensionKey.transform ? storeExtension.transform(storeExtensionKey.mergeKey, contents) : contents;
+                mergeDelta(transform, storeExtension.mustOverwrite(), enrichment, overwritten, defaults);
+            }
+        }
+
+        return new EnrichmentMemo.Delta(overwritten, defaults, dependencies);
+    }
+
+    private void mergeDelta(Map<String, Object> transform, boolean overwrite, Map<String, Object> enrichment,
+                            Map<String, Object> overwritten, Map<String, Object> defaults) {
+        if (transform != null) {
+            for (Map.Entry<String, Object> entry : transform.entrySet()) {
+                String field = entry.getKey();
+
+                if (overwrite) {
+                    overwritten.put(field, entry.getValue());
+                    defaults.remove(field);
+                    enrichment.put(field, entry.getValue());
+                } else if (!enrichment.containsKey(field)) {
+                    defaults.put(field, entry.getValue());
+                    enrichment.put(field, entry.getValue());
+                }
+            }
+        }
+    }
+
     public Map<String, Object> enrichWithExtensions(Map<String, Object> message) {
         return enrichWithExtensions(message, null);
     }
@@ -283,6 +510,10 @@ public class StoreManager {
         enrichment.putAll(message);
         List<String> enrichWithExtensions = new ArrayList<>();
 
+        if (!extensionsEnabled) {
+            return enrichment;
+        }
+
         if (useExtensions == null) {
             enrichWithExtensions.addAll(extensionsHash.keySet());
         } else {
@@ -290,7 +521,7 @@ public class StoreManager {
         }
 
         for (String extensionName : enrichWithExtensions) {
-            StoreExtension storeExtension = extensionsHash.get(extensionName);
+            StoreExtension<?> storeExtension = extensionsHash.get(extensionName);
 
             if (storeExtension != null) {
                 List<StoreExtensionKey> storeExtensionKeys = storeExtension.getExtensionsKeys();
@@ -300,7 +531,7 @@ public class StoreManager {
                     Map<String, Object> transform;
 
                     if (storeExtensionKey.transform) {
-                        transform = storeExtension.transform(contents);
+                        transform = storeExtension.transform(storeExtensionKey.mergeKey, contents);
                     } else {
                         transform = contents;
                     }
@@ -325,6 +556,17 @@ public class StoreManager {
     }
 
 
+    /**
+     * Enables or disables the enrichment with extensions. While they are disabled,
+     * messages are only enriched with the local stores.
+     *
+     * @param extensionsEnabled True to enrich with the extensions
+     */
+
+    public void setExtensionsEnabled(boolean extensionsEnabled) {
+        this.extensionsEnabled = extensionsEnabled;
+    }
+
     /**
      * Returns an extension from its name
      *
@@ -332,7 +574,7 @@ public class StoreManager {
      * @return The extension instance
      */
 
-    public StoreExtension getExtension(String extensionName) {
+    public StoreExtension<?> getExtension(String extensionName) {
         return extensionsHash.get(extensionName);
     }
 
@@ -354,14 +596,195 @@ public class StoreManager {
      */
 
     public List<String> getAvailableExtensions() {
-        List<String> extensions = Collections.emptyList();
-        extensions.addAll(extensionsHash.keySet());
-        return extensions;
+        return new ArrayList<>(extensionsHash.keySet());
+    }
+
+    /**
+     * @return The names of the stores, from the property "redborder.stores"
+     */
+
+    public List<String> getStoreNames() {
+        return storesList;
+    }
+
+    /**
+     * @return The names of the window stores
+     */
+
+    public List<String> getWindowStoreNames() {
+        return new ArrayList<>(windowStores.keySet());
+    }
+
+    /**
+     * @param store The store name
+     * @return The transform cache of the store, or null if it doesn't have one
+     */
+
+    public TransformCache getTransformCache(String store) {
+        Store storeData = stores.get(store);
+        return storeData == null ? null : storeData.getTransformCache();
+    }
+
+    /**
+     * Loads the configured hot keys from the stores, so their data is already cached
+     * when the first messages arrive. The keys are taken from the property
+     * "redborder.stores.storeName.warmup.keys" and from the file (one key per line)
+     * set on "redborder.stores.storeName.warmup.file". The extensions that have the
+     * property "redborder.stores.extension.extensionName.warmup" enabled are also queried
+     * with all of their keys, priming their local store if they use it.
+     *
+     * @param config   The task config
+     * @param deadline The time (in ms) when the warm-up must stop
+     * @return The number of keys that were found and loaded
+     */
+
+    public int warmUp(Config config, long deadline) {
+        int loaded = 0;
+
+        for (String store : storesList) {
+            Store storeData = stores.get(store);
+
+            if (storeData != null) {
+                List<String> hotKeys = new ArrayList<>();
+                hotKeys.addAll(config.getList("redborder.stores." + store + ".warmup.keys", Collections.<String>emptyList()));
+
+                String hotKeysFile = config.get("redborder.stores." + store + ".warmup.file");
+                if (hotKeysFile != null && !hotKeysFile.equals("")) {
+                    hotKeys.addAll(readHotKeys(hotKeysFile));
+                }
+
+                for (String hotKey : hotKeys) {
+                    if (System.currentTimeMillis() >= deadline) {
+                        log.warn("Warm-up time budget exhausted while loading the store [{}]", store);
+                        return loaded;
+                    }
+
+                    if (storeData.get(hotKey) != null) {
+                        loaded++;
+                    }
+                }
+
+                log.info("  * Store warmed: {} {} hot keys", store, hotKeys.size());
+            }
+        }
+
+        for (Map.Entry<String, StoreExtension<?>> extensionEntry : extensionsHash.entrySet()) {
+            String extensionName = extensionEntry.getKey();
+
+            if (config.getBoolean("redborder.stores.extension." + extensionName + ".warmup", false)) {
+                StoreExtension<?> storeExtension = extensionEntry.getValue();
+                Boolean useLocalStore = config.getBoolean("redborder.stores.extension." + extensionName + ".useLocalStore", false);
+                List<StoreExtensionKey> storeExtensionKeys = storeExtension.getExtensionsKeys();
+
+                for (StoreExtensionKey storeExtensionKey : storeExtensionKeys) {
+                    if (System.currentTimeMillis() >= deadline) {
+                        log.warn("Warm-up time budget exhausted while loading the extension [{}]", extensionName);
+                        return loaded;
+                    }
+
+                    if (storeExtension.get(storeExtensionKey, useLocalStore) != null) {
+                        loaded++;
+                    }
+                }
+
+                log.info("  * Store Extension warmed: {} {} keys", extensionName, storeExtensionKeys.size());
+            }
+        }
+
+        return loaded;
     }
 
+    private List<String> readHotKeys(String fileName) {
+        List<String> hotKeys = new ArrayList<>();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                String hotKey = line.trim();
+
+                if (!hotKey.isEmpty() && !hotKey.startsWith("#")) {
+                    hotKeys.add(hotKey);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Couldn't read the hot keys file " + fileName, e);
+        }
+
+        return hotKeys;
+    }
+
+    /**
+     * Refreshes the window stores whose refresh interval has passed. The cached
+     * transforms of a store and the memo are only cleared if its data was updated.
+     */
+
     public void refreshWindowStores() {
-        for (WindowStore windowStore : windowStores.values()) {
-            windowStore.refresh();
+        boolean refreshed = false;
+
+        for (Map.Entry<String, WindowStore> windowStoreEntry : windowStores.entrySet()) {
+            if (windowStoreEntry.getValue().refreshIfDue()) {
+                refreshed = true;
+
+                Store storeData = stores.get(windowStoreEntry.getKey());
+                if (storeData != null) {
+                    storeData.onRefresh();
+                }
+            }
+        }
+
+        if (memo != null && refreshed) {
+            memo.clear();
+        }
+    }
+
+    /**
+     * Applies the background refreshes of each extension, and evicts a batch of
+     * entries from the local store of each extension that is over its limits.
+     * It must be called on every task window.
+     *
+     * @return The number of evicted entries
+     */
+
+    public int windowExtensions() {
+        int evicted = 0;
+
+        for (Map.Entry<String, StoreExtension<?>> extensionEntry : extensionsHash.entrySet()) {
+            int extensionEvicted = extensionEntry.getValue().window();
+
+            if (extensionEvicted > 0) {
+                log.debug("Evicted {} entries from the local store of the extension [{}]", extensionEvicted, extensionEntry.getKey());
+            }
+
+            evicted += extensionEvicted;
+        }
+
+        return evicted;
+    }
+
+    /**
+     * @return The enrichment memo, or null if it is disabled
+     */
+
+    public EnrichmentMemo getMemo() {
+        return memo;
+    }
+
+    // Clears the memo when an entry used by the enrichment is written on an extension
+    private static class ExtensionListener implements StoreListener {
+        private Set<String> mergeKeys = new HashSet<>();
+
+        ExtensionListener(List<StoreExtensionKey> storeExtensionKeys) {
+            for (StoreExtensionKey storeExtensionKey : storeExtensionKeys) {
+                mergeKeys.add(storeExtensionKey.mergeKey);
+            }
+        }
+
+        @Override
+        public void onWrite(String store, String key) {
+            if (mergeKeys.contains(key)) {
+                memo.clear();
+            }
         }
     }
 }
@@ -0,0 +1,132 @@
+package net.redborder.samza.store;
+
+import org.apache.samza.storage.kv.Entry;
+import org.apache.samza.storage.kv.KeyValueIterator;
+import org.apache.samza.storage.kv.KeyValueStore;
+
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * This class exposes a store with byte array keys as a store with string keys,
+ * encoding them with UTF-8. It lets the code that writes a store work as usual
+ * while the lookups use the byte keys directly.
+ */
+
+public class Utf8KeyValueStore implements KeyValueStore<String, Map<String, Object>> {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private KeyValueStore<byte[], Map<String, Object>> store;
+
+    public Utf8KeyValueStore(KeyValueStore<byte[], Map<String, Object>> store) {
+        this.store = store;
+    }
+
+    /**
+     * @return The store with byte array keys
+     */
+
+    public KeyValueStore<byte[], Map<String, Object>> getBytesStore() {
+        return store;
+    }
+
+    @Override
+    public Map<String, Object> get(String key) {
+        return store.get(key.getBytes(UTF8));
+    }
+
+    @Override
+    public Map<String, Map<String, Object>> getAll(List<String> keys) {
+        Map<String, Map<String, Object>> result = new HashMap<>();
+
+        for (String key : keys) {
+            Map<String, Object> value = get(key);
+
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public void put(String key, Map<String, Object> value) {
+        store.put(key.getBytes(UTF8), value);
+    }
+
+    @Override
+    public void putAll(List<Entry<String, Map<String, Object>>> entries) {
+        List<Entry<byte[], Map<String, Object>>> bytesEntries = new ArrayList<>(entries.size());
+
+        for (Entry<String, Map<String, Object>> entry : entries) {
+            bytesEntries.add(new Entry<>(entry.getKey().getBytes(UTF8), entry.getValue()));
+        }
+
+        store.putAll(bytesEntries);
+    }
+
+    @Override
+    public void delete(String key) {
+        store.delete(key.getBytes(UTF8));
+    }
+
+    @Override
+    public void deleteAll(List<String> keys) {
+        List<byte[]> bytesKeys = new ArrayList<>(keys.size());
+
+        for (String key : keys) {
+            bytesKeys.add(key.getBytes(UTF8));
+        }
+
+        store.deleteAll(bytesKeys);
+    }
+
+    @Override
+    public KeyValueIterator<String, Map<String, Object>> range(String from, String to) {
+        return new Utf8Iterator(store.range(from.getBytes(UTF8), to.getBytes(UTF8)));
+    }
+
+    @Override
+    public KeyValueIterator<String, Map<String, Object>> all() {
+        return new Utf8Iterator(store.all());
+    }
+
+    @Override
+    public void close() {
+        store.close();
+    }
+
+    @Override
+    public void flush() {
+        store.flush();
+    }
+
+    private static class Utf8Iterator implements KeyValueIterator<String, Map<String, Object>> {
+        private KeyValueIterator<byte[], Map<String, Object>> iterator;
+
+        Utf8Iterator(KeyValueIterator<byte[], Map<String, Object>> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public Entry<String, Map<String, Object>> next() {
+            Entry<byte[], Map<String, Object>> entry = iterator.next();
+            return new Entry<>(new String(entry.getKey(), UTF8), entry.getValue());
+        }
+
+        @Override
+        public void remove() {
+            iterator.remove();
+        }
+
+        @Override
+        public void close() {
+            iterator.close();
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package net.redborder.samza.store;
+
+import org.apache.samza.serializers.JsonSerde;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * This class is an immutable snapshot of the data of a window store, written
+ * to a file and memory-mapped off-heap. The file keeps the entries sorted by key,
+ * so a lookup is a binary search that compares the keys directly on the mapped
+ * memory, and only the value of the found entry is copied and decoded.
+ * <p/>
+ * File layout:
+ * <pre>
+ *   int magic, int version, int count
+ *   int[count] offsets of each entry, sorted by key
+ *   entries: int keyLength, byte[] key (UTF-8), int valueLength, byte[] value (JSON)
+ * </pre>
+ */
+
+public class WindowSnapshot {
+    private static final int MAGIC = 0x5242534e;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final JsonSerde<Object> serde = new JsonSerde<>();
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final int count;
+    private final int dataStart;
+
+    private WindowSnapshot(File file, MappedByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("The file " + file + " isn't a valid window snapshot");
+        }
+
+        this.count = buffer.getInt(8);
+        this.dataStart = HEADER_SIZE + count * 4;
+    }
+
+    /**
+     * Maps an existing snapshot file.
+     *
+     * @param file The snapshot file
+     * @return The snapshot, or null if the file doesn't exist
+     * @throws IOException If the file can't be read or it isn't a snapshot
+     */
+
+    public static WindowSnapshot open(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            // The mapping stays valid after the channel is closed
+            return new WindowSnapshot(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Writes the given data as a new snapshot and maps it. The data is written to a
+     * temporary file that atomically replaces the previous snapshot, so readers of the
+     * previous mapping are never affected.
+     *
+     * @param file The snapshot file
+     * @param data The window store data
+     * @return The new snapshot
+     * @throws IOException If the snapshot can't be written
+     */
+
+    public static WindowSnapshot write(File file, Map<String, Map<String, Object>> data) throws IOException {
+        List<byte[]> keys = new ArrayList<>(data.size());
+        Map<byte[], String> keyNames = new IdentityHashMap<>();
+
+        for (String key : data.keySet()) {
+            byte[] keyBytes = key.getBytes(UTF8);
+            keys.add(keyBytes);
+            keyNames.put(keyBytes, key);
+        }
+
+        Collections.sort(keys, new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] a, byte[] b) {
+                return compareBytes(a, b);
+            }
+        });
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Couldn't create the snapshots directory " + parent);
+        }
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            List<byte[]> values = new ArrayList<>(keys.size());
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(keys.size());
+
+            int offset = 0;
+            for (byte[] key : keys) {
+                byte[] value = serde.toBytes(data.get(keyNames.get(key)));
+                values.add(value);
+                out.writeInt(offset);
+                offset += 8 + key.length + value.length;
+            }
+
+            for (int i = 0; i < keys.size(); i++) {
+                out.writeInt(keys.get(i).length);
+                out.write(keys.get(i));
+                out.writeInt(values.get(i).length);
+                out.write(values.get(i));
+            }
+        }
+
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(file);
+    }
+
+    /**
+     * Gets the value associated with a key
+     *
+     * @param key The entry key
+     * @return The value, or null if the key isn't on the snapshot
+     */
+
+    public Map<String, Object> get(String key) {
+        return get(key.getBytes(UTF8));
+    }
+
+    /**
+     * Gets the value of a key encoded with UTF-8
+     *
+     * @param key The entry key bytes
+     * @return The value, or null if the key isn't on the snapshot
+     */
+
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> get(byte[] key) {
+        int position = find(key);
+        Map<String, Object> result = null;
+
+        if (position >= 0) {
+            int keyLength = buffer.getInt(position);
+            int valuePosition = position + 4 + keyLength;
+            byte[] value = new byte[buffer.getInt(valuePosition)];
+            ByteBuffer view = buffer.duplicate();
+            view.position(valuePosition + 4);
+            view.get(value);
+            result = (Map<String, Object>) serde.fromBytes(value);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return All the entries from the snapshot, decoded on heap
+     */
+
+    public Map<String, Map<String, Object>> entries() {
+        Map<String, Map<String, Object>> result = new HashMap<>();
+
+        for (int i = 0; i < count; i++) {
+            int position = dataStart + buffer.getInt(HEADER_SIZE + i * 4);
+            byte[] key = new byte[buffer.getInt(position)];
+            ByteBuffer view = buffer.duplicate();
+            view.position(position + 4);
+            view.get(key);
+
+            String keyName = new String(key, UTF8);
+            result.put(keyName, get(keyName));
+        }
+
+        return result;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public long sizeInBytes() {
+        return buffer.capacity();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private int find(byte[] key) {
+        int low = 0;
+        int high = count - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int position = dataStart + buffer.getInt(HEADER_SIZE + middle * 4);
+            int comparison = compareMapped(position, key);
+
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return position;
+            }
+        }
+
+        return -1;
+    }
+
+    private int compareMapped(int position, byte[] key) {
+        int keyLength = buffer.getInt(position);
+        int length = Math.min(keyLength, key.length);
+
+        for (int i = 0; i < length; i++) {
+            int a = buffer.get(position + 4 + i) & 0xff;
+            int b = key[i] & 0xff;
+
+            if (a != b) {
+                return a - b;
+            }
+        }
+
+        return keyLength - key.length;
+    }
+
+    /**
+     * Compares two keys as unsigned bytes, the order of RocksDB
+     *
+     * @param a The first key
+     * @param b The second key
+     * @return A negative number, zero or a positive number if a sorts before, with or after b
+     */
+
+    static int compareBytes(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+
+        for (int i = 0; i < length; i++) {
+            int x = a[i] & 0xff;
+            int y = b[i] & 0xff;
+
+            if (x != y) {
+                return x - y;
+            }
+        }
+
+        return a.length - b.length;
+    }
+}
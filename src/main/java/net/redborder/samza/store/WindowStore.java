@@ -1,56 +1,268 @@
 package net.redborder.samza.store;
 
 
+import net.redborder.samza.recorder.EventRecorder;
 import org.apache.samza.config.Config;
+import org.apache.samza.config.ConfigException;
 import org.apache.samza.storage.kv.Entry;
 import org.apache.samza.storage.kv.KeyValueIterator;
 import org.apache.samza.storage.kv.KeyValueStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+
+/**
+ * This abstract class defines a store whose data is loaded periodically from an
+ * external source, like a database table, with #update.
+ * <p/>
+ * <p>The data is refreshed every "redborder.stores.window.windowName.refresh.ms"
+ * (default 0, on every task window), plus a random delay up to
+ * "redborder.stores.window.windowName.refresh.jitter.ms", so the tables of several
+ * tasks aren't queried at once. Subclasses can override #probeVersion with a cheap
+ * query, like a count or a max updated-at, and the full #update is skipped while
+ * the version doesn't change. A failed update, that returns null, is retried on
+ * the next task window.</p>
+ * <p/>
+ * <p>If "redborder.stores.window.windowName.snapshot" is true, the data is kept on a
+ * memory-mapped snapshot file on "redborder.stores.window.windowName.snapshot.dir"
+ * instead of the KV store, and the last snapshot is loaded when the task starts. The
+ * directory is required, and it must be a durable path of the host: the working
+ * directory of a YARN container is deleted when the container exits.</p>
+ */
 
 public abstract class WindowStore {
+    private static final Logger log = LoggerFactory.getLogger(WindowStore.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Random random = new Random();
+
     KeyValueStore<String, Map<String, Object>> store;
+    private String name;
     private Boolean lastUpdate;
+    private File snapshotFile;
+    private WindowSnapshot snapshot;
+    private long refreshInterval;
+    private long refreshJitter;
+    private long nextRefresh = 0;
+    private Object lastVersion;
+    private long skippedRefreshes = 0;
+    private boolean lastRefreshFailed = false;
 
     public WindowStore(String name, Config config, KeyValueStore<String, Map<String, Object>> store){
+        this.name = name;
         this.store = store;
         this.lastUpdate = config.getBoolean("redborder.stores.window." + name + ".lastUpdate", true);
+        this.refreshInterval = config.getLong("redborder.stores.window." + name + ".refresh.ms", 0L);
+        this.refreshJitter = config.getLong("redborder.stores.window." + name + ".refresh.jitter.ms", 0L);
+
+        // With snapshots enabled the data is kept on a memory-mapped file instead of the KV store
+        if (config.getBoolean("redborder.stores.window." + name + ".snapshot", false)) {
+            String snapshotDir = config.get("redborder.stores.window." + name + ".snapshot.dir");
+            if (snapshotDir == null) {
+                throw new ConfigException("Missing the property redborder.stores.window." + name + ".snapshot.dir, it is required with snapshots");
+            }
+
+            this.snapshotFile = new File(snapshotDir, name + ".snapshot");
+
+            try {
+                this.snapshot = WindowSnapshot.open(snapshotFile);
+                if (snapshot != null) {
+                    log.info("Loaded the last snapshot of the WindowStore {} with {} entries", name, snapshot.size());
+                }
+            } catch (IOException e) {
+                log.warn("Couldn't load the last snapshot of the WindowStore " + name, e);
+            }
+        }
     }
 
     public Map<String, Object> getData(String key){
+        if (snapshotFile != null) {
+            return snapshot == null ? null : snapshot.get(key);
+        }
+
         return store.get(key);
     }
 
-    public void refresh(){
+    /**
+     * Gets the value of a key encoded with UTF-8. It doesn't build the string key
+     * if the data is on a snapshot.
+     *
+     * @param key The entry key bytes
+     * @return The value, or null if it isn't present
+     */
+
+    public Map<String, Object> getData(byte[] key) {
+        if (snapshotFile != null) {
+            return snapshot == null ? null : snapshot.get(key);
+        }
+
+        return store.get(new String(key, UTF8));
+    }
+
+    /**
+     * @return True if the data is kept on a snapshot instead of the KV store
+     */
+
+    public boolean hasSnapshot() {
+        return snapshotFile != null;
+    }
+
+    /**
+     * @param now The current time (in ms)
+     * @return True if the refresh interval has passed since the last refresh
+     */
+
+    public boolean isRefreshDue(long now) {
+        return now >= nextRefresh;
+    }
+
+    /**
+     * Refreshes the data if the refresh interval has passed. The interval starts
+     * again when the data is updated or hasn't changed, but not when the update fails.
+     *
+     * @return True if the data has been updated
+     */
+
+    public boolean refreshIfDue() {
+        long now = System.currentTimeMillis();
+
+        if (!isRefreshDue(now)) {
+            return false;
+        }
+
+        boolean updated = refresh();
+
+        if (!lastRefreshFailed) {
+            nextRefresh = now + refreshInterval + (refreshJitter > 0 ? (long) (random.nextDouble() * refreshJitter) : 0L);
+        }
+
+        return updated;
+    }
+
+    /**
+     * Loads the data again with #update, unless #probeVersion shows that it
+     * hasn't changed since the last update
+     *
+     * @return True if the data has been updated
+     */
+
+    public boolean refresh(){
+        long start = EventRecorder.start();
+        // The version is probed before the update, so a change made during the update is seen on the next probe
+        Object version = probeVersion();
+
+        if (version != null && version.equals(lastVersion)) {
+            skippedRefreshes++;
+            lastRefreshFailed = false;
+            log.debug("WindowStore {} hasn't changed since the version {}", name, version);
+            EventRecorder.end(EventRecorder.Type.WINDOW_REFRESH, name, false, 0, start);
+            return false;
+        }
+
         Map<String, Map<String, Object>> allData = update();
+        boolean updated = allData != null;
 
         if(allData != null) {
-            if (lastUpdate) {
-                KeyValueIterator<String, Map<String, Object>> iterator = store.all();
-                List<String> toRemove = new ArrayList<>();
+            if (snapshotFile != null) {
+                updated = refreshSnapshot(allData);
+            } else {
+                if (lastUpdate) {
+                    KeyValueIterator<String, Map<String, Object>> iterator = store.all();
+                    List<String> toRemove = new ArrayList<>();
+
+                    while (iterator.hasNext()) {
+                        Entry<String, Map<String, Object>> entry = iterator.next();
+                        String key = entry.getKey();
 
-                while (iterator.hasNext()) {
-                    Entry<String, Map<String, Object>> entry = iterator.next();
-                    String key = entry.getKey();
+                        if (!allData.containsKey(key)) {
+                            toRemove.add(key);
+                        }
+                    }
 
-                    if (!allData.containsKey(key)) {
-                        toRemove.add(key);
+                    for (String key : toRemove) {
+                        store.delete(key);
                     }
                 }
 
-                for (String key : toRemove) {
-                    store.delete(key);
+                for (Map.Entry<String, Map<String, Object>> data : allData.entrySet()) {
+                    String key = data.getKey();
+                    Map<String, Object> value = data.getValue();
+
+                    store.put(key, value);
                 }
             }
+        }
 
-            for (Map.Entry<String, Map<String, Object>> data : allData.entrySet()) {
-                String key = data.getKey();
-                Map<String, Object> value = data.getValue();
+        // The version is only kept when the data has been stored, so a failed refresh isn't skipped as unchanged
+        if (updated) {
+            lastVersion = version;
+        } else {
+            log.warn("WindowStore {} couldn't update its data, retrying on the next window", name);
+        }
 
-                store.put(key, value);
-            }
+        lastRefreshFailed = !updated;
+
+        EventRecorder.end(EventRecorder.Type.WINDOW_REFRESH, name, updated, updated ? allData.size() : 0, start);
+        return updated;
+    }
+
+    /**
+     * Returns a cheap version of the source data, like a row count or the max
+     * updated-at of a table. The default implementation doesn't know the version,
+     * so the data is always updated.
+     *
+     * @return The version, or null if it is unknown
+     */
+
+    protected Object probeVersion() {
+        return null;
+    }
+
+    /**
+     * @return The number of refreshes skipped because the version didn't change
+     */
+
+    public long getSkippedRefreshes() {
+        return skippedRefreshes;
+    }
+
+    /**
+     * @return The size (in bytes) of the snapshot file, or 0 if the data isn't on a snapshot
+     */
+
+    public long getSnapshotBytes() {
+        return snapshotFile == null ? 0L : snapshotFile.length();
+    }
+
+    /**
+     * Writes the new data to a new snapshot, keeping the previous one if it fails
+     *
+     * @param allData The data returned by #update
+     * @return True if the snapshot has been written
+     */
+
+    private boolean refreshSnapshot(Map<String, Map<String, Object>> allData) {
+        Map<String, Map<String, Object>> snapshotData = allData;
+
+        if (!lastUpdate && snapshot != null) {
+            snapshotData = new HashMap<>();
+            snapshotData.putAll(snapshot.entries());
+            snapshotData.putAll(allData);
+        }
+
+        try {
+            snapshot = WindowSnapshot.write(snapshotFile, snapshotData);
+            return true;
+        } catch (IOException e) {
+            log.error("Couldn't write the snapshot of the WindowStore " + name + ", keeping the previous one", e);
+            return false;
         }
     }
 
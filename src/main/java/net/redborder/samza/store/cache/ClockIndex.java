@@ -0,0 +1,161 @@
+package net.redborder.samza.store.cache;
+
+import java.util.*;
+
+/**
+ * This class keeps the recency metadata of the entries of a store, so the
+ * store can be bounded by a number of entries and an amount of bytes.
+ * <p/>
+ * It implements the CLOCK algorithm: the keys are kept on a ring where each
+ * one has a reference bit, which is set when the key is read. To choose the
+ * entries to evict, a hand goes around the ring clearing the set bits, and
+ * the first key found without its bit is evicted. It approximates LRU without
+ * reordering anything on reads, so a hit only sets a flag.
+ */
+
+public class ClockIndex {
+    private final long maxEntries;
+    private final long maxBytes;
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private String[] keys = new String[16];
+    private int[] sizes = new int[16];
+    private boolean[] referenced = new boolean[16];
+    private int used = 0;
+    private int hand = 0;
+    private long bytes = 0;
+
+    /**
+     * Constructs a new clock index
+     *
+     * @param maxEntries The maximum number of entries, or 0 if there isn't a limit
+     * @param maxBytes   The maximum size of the entries, or 0 if there isn't a limit
+     */
+
+    public ClockIndex(long maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Adds a key to the index, or updates its size if it is already present
+     *
+     * @param key  The entry key
+     * @param size The approximate size of the entry in bytes
+     */
+
+    public void add(String key, int size) {
+        Integer slot = slots.get(key);
+
+        if (slot == null) {
+            slot = freeSlots.isEmpty() ? used++ : freeSlots.poll();
+
+            if (slot == keys.length) {
+                grow();
+            }
+
+            keys[slot] = key;
+            slots.put(key, slot);
+        } else {
+            bytes -= sizes[slot];
+            referenced[slot] = true;
+        }
+
+        sizes[slot] = size;
+        bytes += size;
+    }
+
+    /**
+     * Marks a key as recently used
+     *
+     * @param key The entry key
+     */
+
+    public void touch(String key) {
+        Integer slot = slots.get(key);
+
+        if (slot != null) {
+            referenced[slot] = true;
+        }
+    }
+
+    /**
+     * Removes a key from the index
+     *
+     * @param key The entry key
+     */
+
+    public void remove(String key) {
+        Integer slot = slots.remove(key);
+
+        if (slot != null) {
+            bytes -= sizes[slot];
+            keys[slot] = null;
+            sizes[slot] = 0;
+            referenced[slot] = false;
+            freeSlots.push(slot);
+        }
+    }
+
+    /**
+     * Chooses the keys to evict until the index is under its limits, and removes them
+     *
+     * @param maxBatch The maximum number of keys to evict
+     * @return The evicted keys
+     */
+
+    public List<String> evict(int maxBatch) {
+        List<String> evicted = new ArrayList<>();
+
+        while (evicted.size() < maxBatch && isOverLimits()) {
+            if (hand >= used) {
+                hand = 0;
+            }
+
+            String key = keys[hand];
+
+            if (key != null) {
+                if (referenced[hand]) {
+                    referenced[hand] = false;
+                } else {
+                    evicted.add(key);
+                    remove(key);
+                }
+            }
+
+            hand++;
+        }
+
+        return evicted;
+    }
+
+    /**
+     * @return True if the index has more entries or bytes than allowed
+     */
+
+    public boolean isOverLimits() {
+        return (maxEntries > 0 && slots.size() > maxEntries) || (maxBytes > 0 && bytes > maxBytes);
+    }
+
+    /**
+     * @return True if the index has a limit of bytes
+     */
+
+    public boolean isBytesBounded() {
+        return maxBytes > 0;
+    }
+
+    public int size() {
+        return slots.size();
+    }
+
+    public long bytes() {
+        return bytes;
+    }
+
+    private void grow() {
+        keys = Arrays.copyOf(keys, keys.length * 2);
+        sizes = Arrays.copyOf(sizes, sizes.length * 2);
+        referenced = Arrays.copyOf(referenced, referenced.length * 2);
+    }
+}
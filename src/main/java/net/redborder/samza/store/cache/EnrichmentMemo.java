@@ -0,0 +1,207 @@
+package net.redborder.samza.store.cache;
+
+import net.redborder.samza.store.CompositeKey;
+import net.redborder.samza.store.StoreListener;
+
+import java.util.*;
+
+/**
+ * This class memoizes the fields that the stores add to the messages with the
+ * same values on the key fields, so repeated messages are enriched with a
+ * single lookup instead of querying every store and extension again.
+ * <p/>
+ * Each delta remembers the store entries it was computed from, and it is
+ * invalidated when any of them is written. Deltas are also discarded when they
+ * get older than the max age, and the least recently used one is evicted when
+ * the memo is full.
+ */
+
+public class EnrichmentMemo implements StoreListener {
+    private final int maxEntries;
+    private final long maxAge;
+    private final Map<String, Delta> deltas;
+    private final Map<String, Set<String>> dependents = new HashMap<>();
+    private long hits = 0;
+    private long misses = 0;
+    private long invalidations = 0;
+
+    /**
+     * Constructs a new enrichment memo
+     *
+     * @param maxEntries The maximum number of deltas
+     * @param maxAge     The time (in ms) that a delta can be used
+     */
+
+    public EnrichmentMemo(final int maxEntries, long maxAge) {
+        this.maxEntries = maxEntries;
+        this.maxAge = maxAge;
+        this.deltas = new LinkedHashMap<String, Delta>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Delta> eldest) {
+                if (size() > maxEntries) {
+                    unindex(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Builds the dependency that identifies a store entry
+     *
+     * @param store The store name
+     * @param key   The entry key
+     * @return The dependency
+     */
+
+    public static String dependency(String store, String key) {
+        return CompositeKey.encode(store, key);
+    }
+
+    /**
+     * Gets the delta of a key, if it is still valid
+     *
+     * @param key The memo key, made of the key fields values
+     * @return The delta, or null if it isn't present or it has expired
+     */
+
+    public Delta get(String key) {
+        Delta delta = deltas.get(key);
+
+        if (delta != null && System.currentTimeMillis() - delta.created > maxAge) {
+            remove(key);
+            delta = null;
+        }
+
+        if (delta == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+
+        return delta;
+    }
+
+    /**
+     * Adds a delta to the memo
+     *
+     * @param key   The memo key, made of the key fields values
+     * @param delta The delta
+     */
+
+    public void put(String key, Delta delta) {
+        remove(key);
+        deltas.put(key, delta);
+
+        for (String dependency : delta.dependencies) {
+            Set<String> keys = dependents.get(dependency);
+
+            if (keys == null) {
+                keys = new HashSet<>();
+                dependents.put(dependency, keys);
+            }
+
+            keys.add(key);
+        }
+    }
+
+    @Override
+    public void onWrite(String store, String key) {
+        Set<String> keys = dependents.remove(dependency(store, key));
+
+        if (keys != null) {
+            for (String memoKey : keys) {
+                remove(memoKey);
+                invalidations++;
+            }
+        }
+    }
+
+    /**
+     * Removes all the deltas
+     */
+
+    public void clear() {
+        invalidations += deltas.size();
+        deltas.clear();
+        dependents.clear();
+    }
+
+    private void remove(String key) {
+        Delta delta = deltas.remove(key);
+
+        if (delta != null) {
+            unindex(key, delta);
+        }
+    }
+
+    private void unindex(String key, Delta delta) {
+        for (String dependency : delta.dependencies) {
+            Set<String> keys = dependents.get(dependency);
+
+            if (keys != null) {
+                keys.remove(key);
+
+                if (keys.isEmpty()) {
+                    dependents.remove(dependency);
+                }
+            }
+        }
+    }
+
+    public int size() {
+        return deltas.size();
+    }
+
+    public long hits() {
+        return hits;
+    }
+
+    public long misses() {
+        return misses;
+    }
+
+    public long invalidations() {
+        return invalidations;
+    }
+
+    /**
+     * The fields added by the enrichment to a message. The overwritten fields
+     * replace the values of the message, while the default fields are only
+     * added if the message doesn't have them.
+     */
+
+    public static class Delta {
+        private final Map<String, Object> overwritten;
+        private final Map<String, Object> defaults;
+        private final List<String> dependencies;
+        private final long created = System.currentTimeMillis();
+
+        public Delta(Map<String, Object> overwritten, Map<String, Object> defaults, List<String> dependencies) {
+            this.overwritten = overwritten;
+            this.defaults = defaults;
+            this.dependencies = dependencies;
+        }
+
+        /**
+         * @param message The message to enrich
+         * @return A copy of the message with the delta fields
+         */
+
+        public Map<String, Object> applyTo(Map<String, Object> message) {
+            Map<String, Object> enrichment = new HashMap<>(message.size() + overwritten.size() + defaults.size());
+            enrichment.putAll(message);
+            enrichment.putAll(overwritten);
+
+            for (Map.Entry<String, Object> entry : defaults.entrySet()) {
+                if (!enrichment.containsKey(entry.getKey())) {
+                    enrichment.put(entry.getKey(), entry.getValue());
+                }
+            }
+
+            return enrichment;
+        }
+    }
+}
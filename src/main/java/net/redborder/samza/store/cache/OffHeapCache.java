@@ -0,0 +1,277 @@
+package net.redborder.samza.store.cache;
+
+import org.apache.samza.serializers.JsonSerde;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * This class is a cache that keeps its values serialized off-heap, so it can
+ * hold a big number of entries without growing the heap or the GC pauses.
+ * <p/>
+ * Memory is split in pages of direct memory that are only allocated while the
+ * memory budget allows it. Each page belongs to a slab class and is divided in
+ * chunks of the class size, and each value is stored on a chunk of the smallest
+ * class that fits it. When a class doesn't have free chunks and no more pages
+ * can be allocated, the least recently used entry of that class is evicted. A
+ * class without entries to evict takes a page from the class with most pages,
+ * evicting the entries of that page, so the sizes that appear after the budget
+ * is spent can still be cached. Only the keys and the chunk references live on heap, and values are only
+ * decoded when they are read.
+ */
+
+public class OffHeapCache {
+    private static final int MIN_CHUNK_SIZE = 64;
+    private static final JsonSerde<Object> serde = new JsonSerde<>();
+
+    private final long maxBytes;
+    private final int pageSize;
+    private final List<SlabClass> slabClasses = new ArrayList<>();
+    private final Map<String, Slot> index = new HashMap<>();
+    private long allocatedBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long pageMoves = 0;
+
+    /**
+     * Constructs a new off-heap cache
+     *
+     * @param maxBytes The maximum direct memory that the cache can allocate
+     * @param pageSize The size of each page of direct memory, and the maximum size of a value
+     */
+
+    public OffHeapCache(long maxBytes, int pageSize) {
+        this.maxBytes = maxBytes;
+        this.pageSize = pageSize;
+
+        for (int chunkSize = MIN_CHUNK_SIZE; chunkSize < pageSize; chunkSize *= 2) {
+            slabClasses.add(new SlabClass(chunkSize));
+        }
+
+        slabClasses.add(new SlabClass(pageSize));
+    }
+
+    /**
+     * Adds a value to the cache, replacing the previous value of the key
+     *
+     * @param key   The entry key
+     * @param value The entry value
+     * @return True if the value was cached, false if it didn't fit on the cache
+     */
+
+    public boolean put(String key, Map<String, Object> value) {
+        remove(key);
+
+        byte[] bytes = serde.toBytes(value);
+        SlabClass slabClass = slabClassFor(bytes.length);
+        boolean cached = false;
+
+        if (slabClass != null) {
+            int chunk = slabClass.allocate();
+
+            if (chunk >= 0) {
+                ByteBuffer page = slabClass.pages.get(chunk / slabClass.chunksPerPage).duplicate();
+                page.position((chunk % slabClass.chunksPerPage) * slabClass.chunkSize);
+                page.put(bytes);
+
+                Slot slot = new Slot(slabClass, chunk, bytes.length);
+                index.put(key, slot);
+                slabClass.lru.put(key, slot);
+                cached = true;
+            }
+        }
+
+        return cached;
+    }
+
+    /**
+     * Gets and decodes the value associated with a key
+     *
+     * @param key The entry key
+     * @return The value, or null if the key isn't cached
+     */
+
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> get(String key) {
+        Slot slot = index.get(key);
+        Map<String, Object> result = null;
+
+        if (slot != null) {
+            SlabClass slabClass = slot.slabClass;
+            // Touch the entry, so it becomes the most recently used of its class
+            slabClass.lru.get(key);
+
+            byte[] bytes = new byte[slot.length];
+            ByteBuffer page = slabClass.pages.get(slot.chunk / slabClass.chunksPerPage).duplicate();
+            page.position((slot.chunk % slabClass.chunksPerPage) * slabClass.chunkSize);
+            page.get(bytes);
+
+            result = (Map<String, Object>) serde.fromBytes(bytes);
+            hits++;
+        } else {
+            misses++;
+        }
+
+        return result;
+    }
+
+    /**
+     * Removes a key from the cache
+     *
+     * @param key The entry key
+     */
+
+    public void remove(String key) {
+        Slot slot = index.remove(key);
+
+        if (slot != null) {
+            slot.slabClass.lru.remove(key);
+            slot.slabClass.freeChunks.push(slot.chunk);
+        }
+    }
+
+    /**
+     * Removes every entry from the cache. The allocated pages are kept to be reused.
+     */
+
+    public void clear() {
+        for (SlabClass slabClass : slabClasses) {
+            for (Slot slot : slabClass.lru.values()) {
+                slabClass.freeChunks.push(slot.chunk);
+            }
+
+            slabClass.lru.clear();
+        }
+
+        index.clear();
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public long allocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    public long hits() {
+        return hits;
+    }
+
+    public long misses() {
+        return misses;
+    }
+
+    public long evictions() {
+        return evictions;
+    }
+
+    public long pageMoves() {
+        return pageMoves;
+    }
+
+    private SlabClass slabClassFor(int length) {
+        for (SlabClass slabClass : slabClasses) {
+            if (length <= slabClass.chunkSize) {
+                return slabClass;
+            }
+        }
+
+        return null;
+    }
+
+    // Moves the last page of the class with most pages to a class that doesn't have any entry
+    private void movePage(SlabClass target) {
+        SlabClass donor = null;
+
+        for (SlabClass slabClass : slabClasses) {
+            if (slabClass != target && (donor == null || slabClass.pages.size() > donor.pages.size())) {
+                donor = slabClass;
+            }
+        }
+
+        if (donor == null || donor.pages.isEmpty()) {
+            return;
+        }
+
+        int page = donor.pages.size() - 1;
+        int firstChunk = page * donor.chunksPerPage;
+        Iterator<Map.Entry<String, Slot>> entries = donor.lru.entrySet().iterator();
+
+        while (entries.hasNext()) {
+            Map.Entry<String, Slot> entry = entries.next();
+
+            if (entry.getValue().chunk >= firstChunk) {
+                index.remove(entry.getKey());
+                entries.remove();
+                evictions++;
+            }
+        }
+
+        Iterator<Integer> freeChunks = donor.freeChunks.iterator();
+        while (freeChunks.hasNext()) {
+            if (freeChunks.next() >= firstChunk) {
+                freeChunks.remove();
+            }
+        }
+
+        target.addPage(donor.pages.remove(page));
+        pageMoves++;
+    }
+
+    private class SlabClass {
+        final int chunkSize;
+        final int chunksPerPage;
+        final List<ByteBuffer> pages = new ArrayList<>();
+        final Deque<Integer> freeChunks = new ArrayDeque<>();
+        final LinkedHashMap<String, Slot> lru = new LinkedHashMap<>(16, 0.75f, true);
+
+        SlabClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+            this.chunksPerPage = pageSize / chunkSize;
+        }
+
+        int allocate() {
+            if (freeChunks.isEmpty()) {
+                if (allocatedBytes + pageSize <= maxBytes) {
+                    addPage(ByteBuffer.allocateDirect(pageSize));
+                    allocatedBytes += pageSize;
+                } else if (!lru.isEmpty()) {
+                    String eldest = lru.keySet().iterator().next();
+                    remove(eldest);
+                    evictions++;
+                } else {
+                    movePage(this);
+                }
+            }
+
+            return freeChunks.isEmpty() ? -1 : freeChunks.pop();
+        }
+
+        void addPage(ByteBuffer page) {
+            int firstChunk = pages.size() * chunksPerPage;
+            pages.add(page);
+
+            for (int chunk = firstChunk + chunksPerPage - 1; chunk >= firstChunk; chunk--) {
+                freeChunks.push(chunk);
+            }
+        }
+    }
+
+    private static class Slot {
+        final SlabClass slabClass;
+        final int chunk;
+        final int length;
+
+        Slot(SlabClass slabClass, int chunk, int length) {
+            this.slabClass = slabClass;
+            this.chunk = chunk;
+            this.length = length;
+        }
+    }
+}
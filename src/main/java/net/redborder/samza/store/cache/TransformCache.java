@@ -0,0 +1,107 @@
+package net.redborder.samza.store.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps the result of transforming the values of a store, so
+ * the same value isn't transformed again on every lookup.
+ * <p/>
+ * Results are kept by key next to the raw value they were computed from, and
+ * they are only used if the raw value is still equal, so a result is never
+ * served for a different value even if an invalidation is missed. The least
+ * recently used results are evicted when the cache is full.
+ */
+
+public class TransformCache {
+    private final Map<Object, Transformed> transformed;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Constructs a new transform cache
+     *
+     * @param maxEntries The maximum number of cached results
+     */
+
+    public TransformCache(final int maxEntries) {
+        this.transformed = new LinkedHashMap<Object, Transformed>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Transformed> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Gets the result of transforming a value
+     *
+     * @param key The entry key, a string or the ByteBuffer of a byte array key
+     * @param raw The raw value of the entry
+     * @return The transformed value, or null if it isn't cached for that raw value
+     */
+
+    public Map<String, Object> get(Object key, Map<String, Object> raw) {
+        Transformed entry = transformed.get(key);
+
+        if (entry != null && (entry.raw == raw || entry.raw.equals(raw))) {
+            hits++;
+            return entry.value;
+        }
+
+        misses++;
+        return null;
+    }
+
+    /**
+     * Adds the result of transforming a value
+     *
+     * @param key   The entry key
+     * @param raw   The raw value of the entry
+     * @param value The transformed value
+     */
+
+    public void put(Object key, Map<String, Object> raw, Map<String, Object> value) {
+        transformed.put(key, new Transformed(raw, value));
+    }
+
+    /**
+     * Removes the result of a key
+     *
+     * @param key The entry key
+     */
+
+    public void remove(Object key) {
+        transformed.remove(key);
+    }
+
+    /**
+     * Removes all the results
+     */
+
+    public void clear() {
+        transformed.clear();
+    }
+
+    public int size() {
+        return transformed.size();
+    }
+
+    public long hits() {
+        return hits;
+    }
+
+    public long misses() {
+        return misses;
+    }
+
+    private static class Transformed {
+        private final Map<String, Object> raw;
+        private final Map<String, Object> value;
+
+        Transformed(Map<String, Object> raw, Map<String, Object> value) {
+            this.raw = raw;
+            this.value = value;
+        }
+    }
+}
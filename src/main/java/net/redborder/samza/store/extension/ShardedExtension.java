@@ -0,0 +1,454 @@
+package net.redborder.samza.store.extension;
+
+import net.redborder.samza.store.StoreExtension;
+import net.redborder.samza.store.TransformProcess;
+import net.redborder.samza.util.Hashing;
+import org.apache.samza.config.Config;
+import org.apache.samza.storage.kv.KeyValueStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Constructor;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This extension spreads its entries over several delegate extensions (shards),
+ * using consistent hashing on the entry keys.
+ * <p/>
+ * <p>The shards are other extensions, configured as usual under
+ * "redborder.stores.extension.shardName.*", and listed on the property
+ * "redborder.stores.extension.extensionName.shards". Each shard takes a share of
+ * the keys proportional to its "redborder.stores.extension.shardName.weight".</p>
+ * <p/>
+ * <p>A shard can have read replicas, listed on
+ * "redborder.stores.extension.extensionName.replicas.shardName". If a read from
+ * the shard doesn't finish in "redborder.stores.extension.extensionName.hedge.ms",
+ * the same read is sent to the next replica and the first answer is used.</p>
+ * <p/>
+ * <p>The reads run on a bounded pool of "redborder.stores.extension.extensionName.threads"
+ * threads, with a queue of "redborder.stores.extension.extensionName.queue.size" reads,
+ * and they give up after "redborder.stores.extension.extensionName.timeout.ms". A read
+ * that fails, times out or is cancelled because a replica answered first counts as a
+ * failure of its delegate.</p>
+ * <p/>
+ * <p>A delegate that fails "redborder.stores.extension.extensionName.failures.max"
+ * consecutive times is skipped for "redborder.stores.extension.extensionName.retry.ms".
+ * Reads go to its replicas in the meantime, and its writes are dropped, so the
+ * other shards keep working. The dropped writes are counted on {@link #getDroppedWrites()}.</p>
+ */
+
+public class ShardedExtension extends StoreExtension<List<StoreExtension<?>>> {
+    private static final Logger log = LoggerFactory.getLogger(ShardedExtension.class);
+    private static final long WARN_INTERVAL_MS = 10000L;
+
+    private String name;
+    private TreeMap<Long, Shard> ring = new TreeMap<>();
+    private Map<String, Node> nodes = new LinkedHashMap<>();
+    private long hedgeMs;
+    private long timeoutMs;
+    private int maxFailures;
+    private long retryMs;
+    private ThreadPoolExecutor executor;
+    private long droppedWrites = 0;
+    private long lastDropWarning = 0;
+    private volatile long lastRejectWarning = 0;
+
+    public ShardedExtension(String name, Config config, TransformProcess transformProcess) {
+        this(name, config, transformProcess, null);
+    }
+
+    public ShardedExtension(String name, Config config, TransformProcess transformProcess,
+                            KeyValueStore<String, Map<String, Object>> localStore) {
+        super(name, config, transformProcess, localStore);
+        this.name = name;
+
+        String prefix = "redborder.stores.extension." + name + ".";
+        int virtualNodes = config.getInt(prefix + "virtualNodes", 100);
+        this.hedgeMs = config.getLong(prefix + "hedge.ms", 0L);
+        this.timeoutMs = config.getLong(prefix + "timeout.ms", 1000L);
+        this.maxFailures = config.getInt(prefix + "failures.max", 3);
+        this.retryMs = config.getLong(prefix + "retry.ms", 5000L);
+
+        List<String> shardNames = config.getList(prefix + "shards", Collections.<String>emptyList());
+        if (shardNames.isEmpty()) {
+            throw new IllegalArgumentException("The sharded extension " + name + " doesn't have shards");
+        }
+
+        for (String shardName : shardNames) {
+            Shard shard = new Shard(createNode(shardName, config));
+
+            for (String replicaName : config.getList(prefix + "replicas." + shardName, Collections.<String>emptyList())) {
+                shard.replicas.add(createNode(replicaName, config));
+            }
+
+            int weight = config.getInt("redborder.stores.extension." + shardName + ".weight", 1);
+            for (int i = 0; i < weight * virtualNodes; i++) {
+                ring.put(Hashing.hash64(shardName + "#" + i), shard);
+            }
+
+            log.info("StoreExtension[{}] shard {} with weight " + weight + " and replicas " + shard.replicas, name, shardName);
+        }
+
+        int threads = config.getInt(prefix + "threads", Math.max(2, nodes.size() * 2));
+        int queueSize = config.getInt(prefix + "queue.size", 100);
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "sharded-extension-reader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    private Node createNode(String nodeName, Config config) {
+        String className = config.get("redborder.stores.extension." + nodeName + ".class");
+
+        if (className == null) {
+            throw new IllegalArgumentException("The shard " + nodeName + " doesn't have associated class");
+        }
+
+        try {
+            Class<?> foundClass = Class.forName(className);
+            Constructor<?> constructor = foundClass.getConstructor(String.class, Config.class, TransformProcess.class);
+            Node node = new Node(nodeName, (StoreExtension<?>) constructor.newInstance(nodeName, config, null));
+            nodes.put(nodeName, node);
+            return node;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Couldn't create the shard " + nodeName, e);
+        }
+    }
+
+    /**
+     * Returns the delegate extension that owns a key
+     *
+     * @param namespace  The entry namespace
+     * @param collection The entry collection
+     * @param key        The entry key
+     * @return The delegate extension
+     */
+
+    public StoreExtension<?> getShard(String namespace, String collection, String key) {
+        return route(namespace, collection, key).primary.extension;
+    }
+
+    /**
+     * @param name The name of a shard or a replica
+     * @return The delegate extension with that name, or null if it doesn't exist
+     */
+
+    public StoreExtension<?> getDelegate(String name) {
+        Node node = nodes.get(name);
+        return node == null ? null : node.extension;
+    }
+
+    /**
+     * @return The number of writes dropped because their shard was unavailable or failed
+     */
+
+    public long getDroppedWrites() {
+        return droppedWrites;
+    }
+
+    @Override
+    public void put(String namespace, String collection, String key, final Set<String> columns, final Collection<Object> values) {
+        write(namespace, collection, key, new Operation<Void>() {
+            @Override
+            public Void run(StoreExtension<?> extension, String namespace, String collection, String key) {
+                extension.put(namespace, collection, key, columns, values);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void remove(String namespace, String collection, String key) {
+        write(namespace, collection, key, new Operation<Void>() {
+            @Override
+            public Void run(StoreExtension<?> extension, String namespace, String collection, String key) {
+                extension.remove(namespace, collection, key);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public Map<String, Object> get(String namespace, String collection, String key) {
+        return read(namespace, collection, key, new Operation<Map<String, Object>>() {
+            @Override
+            public Map<String, Object> run(StoreExtension<?> extension, String namespace, String collection, String key) {
+                return extension.get(namespace, collection, key);
+            }
+        });
+    }
+
+    @Override
+    public Boolean exist(String namespace, String collection, String key) {
+        Boolean exist = read(namespace, collection, key, new Operation<Boolean>() {
+            @Override
+            public Boolean run(StoreExtension<?> extension, String namespace, String collection, String key) {
+                return extension.exist(namespace, collection, key);
+            }
+        });
+
+        return exist != null && exist;
+    }
+
+    @Override
+    public void increment(String namespace, String collection, String key, final Set<String> columns, final Collection<Integer> values) {
+        write(namespace, collection, key, new Operation<Void>() {
+            @Override
+            public Void run(StoreExtension<?> extension, String namespace, String collection, String key) {
+                extension.increment(namespace, collection, key, columns, values);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void decrement(String namespace, String collection, String key, final Set<String> columns, final Collection<Integer> values) {
+        write(namespace, collection, key, new Operation<Void>() {
+            @Override
+            public Void run(StoreExtension<?> extension, String namespace, String collection, String key) {
+                extension.decrement(namespace, collection, key, columns, values);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        executor.shutdownNow();
+
+        for (Node node : nodes.values()) {
+            node.extension.close();
+        }
+    }
+
+    @Override
+    public List<StoreExtension<?>> getClient() {
+        List<StoreExtension<?>> delegates = new ArrayList<>();
+
+        for (Node node : nodes.values()) {
+            delegates.add(node.extension);
+        }
+
+        return delegates;
+    }
+
+    private Shard route(String namespace, String collection, String key) {
+        Map.Entry<Long, Shard> entry = ring.ceilingEntry(Hashing.hash64(namespace + collection + key));
+
+        if (entry == null) {
+            entry = ring.firstEntry();
+        }
+
+        return entry.getValue();
+    }
+
+    private void write(String namespace, String collection, String key, Operation<Void> operation) {
+        Node node = route(namespace, collection, key).primary;
+
+        if (!node.isHealthy()) {
+            droppedWrites++;
+            long now = System.currentTimeMillis();
+
+            if (now - lastDropWarning >= WARN_INTERVAL_MS) {
+                lastDropWarning = now;
+                log.warn("Dropping writes on the unavailable shard {}, {} writes dropped so far", node.name, droppedWrites);
+            }
+
+            return;
+        }
+
+        try {
+            node.run(operation, namespace, collection, key);
+        } catch (RuntimeException e) {
+            droppedWrites++;
+            log.warn("Couldn't write the key " + key + " on the shard " + node.name, e);
+        }
+    }
+
+    private <V> V read(String namespace, String collection, String key, Operation<V> operation) {
+        List<Node> candidates = route(namespace, collection, key).readNodes();
+
+        if (candidates.isEmpty()) {
+            log.debug("Skipping read of the key {} from the unavailable shard", key);
+            return null;
+        }
+
+        return timedRead(candidates, namespace, collection, key, operation);
+    }
+
+    private <V> V timedRead(List<Node> candidates, String namespace, String collection, String key,
+                            Operation<V> operation) {
+        CompletionService<V> completionService = new ExecutorCompletionService<>(executor);
+        Map<Future<V>, Node> pending = new LinkedHashMap<>();
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        // Without hedging, the next replica is only asked after a failure
+        long hedgeDelay = hedgeMs > 0 ? hedgeMs : timeoutMs;
+        boolean interrupted = false;
+        int next = 0;
+
+        try {
+            if (!submit(completionService, pending, candidates.get(next++), namespace, collection, key, operation)) {
+                return null;
+            }
+
+            while (!pending.isEmpty()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+
+                long wait = next < candidates.size() ? Math.min(hedgeDelay, remaining) : remaining;
+                Future<V> done = completionService.poll(wait, TimeUnit.MILLISECONDS);
+
+                if (done == null) {
+                    // The read is slow, so it is also sent to the next replica
+                    if (next < candidates.size() &&
+                            !submit(completionService, pending, candidates.get(next++), namespace, collection, key, operation)) {
+                        next = candidates.size();
+                    }
+                } else {
+                    Node node = pending.remove(done);
+
+                    try {
+                        V result = done.get();
+                        node.succeeded();
+                        return result;
+                    } catch (ExecutionException e) {
+                        node.failed();
+                        log.warn("Couldn't read the key " + key + " from " + node.name, e.getCause());
+
+                        if (next < candidates.size() &&
+                                !submit(completionService, pending, candidates.get(next++), namespace, collection, key, operation)) {
+                            next = candidates.size();
+                        }
+                    }
+                }
+            }
+
+            log.warn("Couldn't read the key {} from any replica in {} ms", key, timeoutMs);
+        } catch (InterruptedException e) {
+            interrupted = true;
+            Thread.currentThread().interrupt();
+        } finally {
+            // The reads that didn't answer in time are failures of their delegates
+            for (Map.Entry<Future<V>, Node> entry : pending.entrySet()) {
+                entry.getKey().cancel(true);
+
+                if (!interrupted) {
+                    entry.getValue().failed();
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private <V> boolean submit(CompletionService<V> completionService, Map<Future<V>, Node> pending, Node node,
+                               String namespace, String collection, String key, Operation<V> operation) {
+        try {
+            pending.put(completionService.submit(task(node, namespace, collection, key, operation)), node);
+            return true;
+        } catch (RejectedExecutionException e) {
+            long now = System.currentTimeMillis();
+
+            if (now - lastRejectWarning >= WARN_INTERVAL_MS) {
+                lastRejectWarning = now;
+                log.warn("The readers of the sharded extension {} are busy, skipping reads from {}", name, node.name);
+            }
+
+            return false;
+        }
+    }
+
+    private <V> Callable<V> task(final Node node, final String namespace, final String collection, final String key,
+                                 final Operation<V> operation) {
+        return new Callable<V>() {
+            @Override
+            public V call() {
+                return operation.run(node.extension, namespace, collection, key);
+            }
+        };
+    }
+
+    private interface Operation<V> {
+        V run(StoreExtension<?> extension, String namespace, String collection, String key);
+    }
+
+    private class Shard {
+        private Node primary;
+        private List<Node> replicas = new ArrayList<>();
+
+        Shard(Node primary) {
+            this.primary = primary;
+        }
+
+        // The healthy nodes, starting by the primary
+        List<Node> readNodes() {
+            List<Node> readNodes = new ArrayList<>();
+
+            if (primary.isHealthy()) {
+                readNodes.add(primary);
+            }
+
+            for (Node replica : replicas) {
+                if (replica.isHealthy()) {
+                    readNodes.add(replica);
+                }
+            }
+
+            return readNodes;
+        }
+    }
+
+    private class Node {
+        private String name;
+        private StoreExtension<?> extension;
+        private AtomicInteger failures = new AtomicInteger();
+        private volatile long downUntil = 0;
+
+        Node(String name, StoreExtension<?> extension) {
+            this.name = name;
+            this.extension = extension;
+        }
+
+        boolean isHealthy() {
+            return System.currentTimeMillis() >= downUntil;
+        }
+
+        <V> V run(Operation<V> operation, String namespace, String collection, String key) {
+            try {
+                V result = operation.run(extension, namespace, collection, key);
+                succeeded();
+                return result;
+            } catch (RuntimeException e) {
+                failed();
+                throw e;
+            }
+        }
+
+        void succeeded() {
+            failures.set(0);
+        }
+
+        void failed() {
+            if (failures.incrementAndGet() >= maxFailures) {
+                downUntil = System.currentTimeMillis() + retryMs;
+                log.warn("The shard {} failed {} times, skipping it for " + retryMs + " ms", name, failures.get());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
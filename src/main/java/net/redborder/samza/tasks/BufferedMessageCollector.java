@@ -0,0 +1,197 @@
+package net.redborder.samza.tasks;
+
+import org.apache.samza.config.Config;
+import org.apache.samza.system.OutgoingMessageEnvelope;
+import org.apache.samza.system.SystemStream;
+import org.apache.samza.task.MessageCollector;
+
+import java.util.*;
+
+/**
+ * This class wraps the task MessageCollector, buffering the outgoing messages
+ * for each output stream and sending them in batches, when a stream buffer
+ * reaches the size set on "redborder.collector.buffer.size" or when #flush is called.
+ * <p/>
+ * <p>If the property "redborder.collector.partitionKeys.streamName" is set, the
+ * partition key of the messages sent to that stream is built from those message
+ * fields, so messages with the same values always go to the same partition. A
+ * partition key set by the processor is kept, and a processor that sets one equal
+ * to the message key must send a {@link PartitionedEnvelope}, as Samza uses the
+ * message key as the partition key when none is given.</p>
+ * <p/>
+ * <p>If the property "redborder.collector.mergeKeys.streamName" is set, a message
+ * with the same values on those fields as another message that is still buffered is merged
+ * into it, and only the merged message is sent, in the place of the last one, so it
+ * isn't sent before the messages that came between them. Messages without some of
+ * those fields are never merged.</p>
+ * <p/>
+ * <p>Buffered messages are only sent when flushed, so a checkpoint taken while they are
+ * buffered would lose them on a crash. The task must flush the buffer before every commit,
+ * so it requires the periodic commits to be disabled (task.commit.ms=-1).</p>
+ */
+
+public class BufferedMessageCollector implements MessageCollector {
+    private MessageCollector collector;
+    private Config config;
+    private int bufferSize;
+    private Map<SystemStream, StreamBuffer> buffers = new HashMap<>();
+
+    public BufferedMessageCollector(Config config) {
+        this.config = config;
+        this.bufferSize = config.getInt("redborder.collector.buffer.size", 1000);
+    }
+
+    /**
+     * Sets the collector used to send the buffered messages
+     *
+     * @param collector The task collector
+     */
+
+    public void setCollector(MessageCollector collector) {
+        this.collector = collector;
+    }
+
+    @Override
+    public void send(OutgoingMessageEnvelope envelope) {
+        SystemStream systemStream = envelope.getSystemStream();
+        StreamBuffer buffer = buffers.get(systemStream);
+
+        if (buffer == null) {
+            buffer = new StreamBuffer(systemStream.getStream());
+            buffers.put(systemStream, buffer);
+        }
+
+        buffer.add(envelope);
+
+        if (buffer.envelopes.size() >= bufferSize) {
+            buffer.flush();
+        }
+    }
+
+    /**
+     * Sends every buffered message
+     */
+
+    public void flush() {
+        if (collector != null) {
+            for (StreamBuffer buffer : buffers.values()) {
+                buffer.flush();
+            }
+        }
+    }
+
+    /**
+     * @return The number of messages that are waiting to be sent
+     */
+
+    public int buffered() {
+        int buffered = 0;
+
+        for (StreamBuffer buffer : buffers.values()) {
+            buffered += buffer.envelopes.size();
+        }
+
+        return buffered;
+    }
+
+    /**
+     * Builds a key from the values of some message fields
+     *
+     * @param message    The message
+     * @param fields     The fields of the key
+     * @param requireAll If true, the key isn't built when a field is missing
+     * @return The key, or null if a field is missing and requireAll is true
+     */
+
+    private static String buildKey(Map<String, Object> message, List<String> fields, boolean requireAll) {
+        StringBuilder builder = new StringBuilder();
+
+        for (String field : fields) {
+            Object value = message.get(field);
+
+            if (value != null) {
+                builder.append(value);
+            } else if (requireAll) {
+                return null;
+            }
+
+            builder.append(':');
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * An envelope whose partition key has been set explicitly, so it is kept even
+     * if it is the message key
+     */
+
+    public static class PartitionedEnvelope extends OutgoingMessageEnvelope {
+        public PartitionedEnvelope(SystemStream systemStream, Object partitionKey, Object key, Object message) {
+            super(systemStream, partitionKey, key, message);
+        }
+    }
+
+    private class StreamBuffer {
+        List<String> partitionKeys;
+        List<String> mergeKeys;
+        // The messages that can't be merged are kept by their sequence, and the merged ones by their merge key
+        Map<Object, OutgoingMessageEnvelope> envelopes = new LinkedHashMap<>();
+        long sequence = 0;
+
+        StreamBuffer(String stream) {
+            this.partitionKeys = config.getList("redborder.collector.partitionKeys." + stream, Collections.<String>emptyList());
+            this.mergeKeys = config.getList("redborder.collector.mergeKeys." + stream, Collections.<String>emptyList());
+        }
+
+        @SuppressWarnings("unchecked")
+        void add(OutgoingMessageEnvelope envelope) {
+            if (!(envelope.getMessage() instanceof Map)) {
+                envelopes.put(sequence++, envelope);
+                return;
+            }
+
+            Map<String, Object> message = (Map<String, Object>) envelope.getMessage();
+
+            // Samza uses the message key as the partition key when none is given explicitly
+            boolean explicitPartitionKey = envelope instanceof PartitionedEnvelope
+                    || envelope.getPartitionKey() != null && envelope.getPartitionKey() != envelope.getKey();
+
+            if (!partitionKeys.isEmpty() && !explicitPartitionKey) {
+                envelope = new OutgoingMessageEnvelope(envelope.getSystemStream(),
+                        envelope.getKeySerializerName(), envelope.getMessageSerializerName(),
+                        buildKey(message, partitionKeys, false), envelope.getKey(), message);
+            }
+
+            String mergeKey = mergeKeys.isEmpty() ? null : buildKey(message, mergeKeys, true);
+
+            if (mergeKey == null) {
+                envelopes.put(sequence++, envelope);
+                return;
+            }
+
+            // The merged message is moved to the tail, where the last update would have been sent
+            OutgoingMessageEnvelope buffered = envelopes.remove(mergeKey);
+
+            if (buffered != null) {
+                Map<String, Object> merged = new HashMap<>();
+                merged.putAll((Map<String, Object>) buffered.getMessage());
+                merged.putAll(message);
+
+                envelope = new OutgoingMessageEnvelope(envelope.getSystemStream(),
+                        envelope.getKeySerializerName(), envelope.getMessageSerializerName(),
+                        envelope.getPartitionKey(), envelope.getKey(), merged);
+            }
+
+            envelopes.put(mergeKey, envelope);
+        }
+
+        void flush() {
+            for (OutgoingMessageEnvelope envelope : envelopes.values()) {
+                collector.send(envelope);
+            }
+
+            envelopes.clear();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package net.redborder.samza.tasks;
+
+import net.redborder.samza.processors.Processor;
+import org.apache.samza.config.Config;
+import org.apache.samza.metrics.Counter;
+import org.apache.samza.metrics.Gauge;
+import org.apache.samza.metrics.MetricsRegistry;
+import org.apache.samza.task.TaskContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * This class decides when the task must shed load to recover from a backlog.
+ * <p/>
+ * <p>The backlog is measured as the lag between the clock and the time of the
+ * messages (the field set on "redborder.shedding.timestamp", in seconds). On every
+ * window, if the lag is over "redborder.shedding.lag.high.ms" the shedding level
+ * goes up, and if it is under "redborder.shedding.lag.low.ms" it goes down.
+ * Processors with a priority lower than the level are degraded according to
+ * their degradation policy, so low priority processors degrade first and the
+ * task recovers by itself when the lag goes away.</p>
+ * <p/>
+ * <p>Processors degraded by sampling only process a fraction of the messages,
+ * which adapts to the lag, and the processed messages are tagged with their
+ * sample weight on the field set on "redborder.shedding.weight.field".</p>
+ */
+
+public class LoadShedder {
+    private static final Logger log = LoggerFactory.getLogger(LoadShedder.class);
+    private static final double LAG_SMOOTHING = 0.01;
+
+    private String timestampField;
+    private String weightField;
+    private long highLag;
+    private long lowLag;
+    private double minSampleRate;
+    private int maxLevel;
+    private Random random = new Random();
+
+    private double lag = 0;
+    private int level = 0;
+    private double sampleRate = 1.0;
+
+    private Gauge<Integer> levelGauge;
+    private Gauge<Double> sampleRateGauge;
+    private Gauge<Long> lagGauge;
+    private Counter shed;
+
+    public LoadShedder(Config config, TaskContext context) {
+        this.timestampField = config.get("redborder.shedding.timestamp", "timestamp");
+        this.weightField = config.get("redborder.shedding.weight.field", "sample_weight");
+        this.highLag = config.getLong("redborder.shedding.lag.high.ms", 60000L);
+        this.lowLag = config.getLong("redborder.shedding.lag.low.ms", 10000L);
+        this.minSampleRate = config.getDouble("redborder.shedding.sample.min", 0.01);
+        this.maxLevel = config.getInt("redborder.shedding.level.max", 10);
+
+        MetricsRegistry metricsRegistry = context.getMetricsRegistry();
+        String group = LoadShedder.class.getName();
+        this.levelGauge = metricsRegistry.newGauge(group, "shedding-level", 0);
+        this.sampleRateGauge = metricsRegistry.newGauge(group, "shedding-sample-rate", 1.0);
+        this.lagGauge = metricsRegistry.newGauge(group, "shedding-lag-ms", 0L);
+        this.shed = metricsRegistry.newCounter(group, "shedding-dropped");
+    }
+
+    /**
+     * Updates the lag estimation with the time of a message
+     *
+     * @param message The received message
+     */
+
+    public void observe(Map<String, Object> message) {
+        Object timestamp = message.get(timestampField);
+
+        if (timestamp instanceof Number) {
+            long messageLag = Math.max(0L, System.currentTimeMillis() - ((Number) timestamp).longValue() * 1000L);
+            lag += LAG_SMOOTHING * (messageLag - lag);
+        }
+    }
+
+    /**
+     * @param processor The processor to check
+     * @return True if the processor must work on its degraded mode
+     */
+
+    public boolean isDegraded(Processor processor) {
+        return processor.getPriority() < level && processor.getDegradation() != Processor.Degradation.NONE;
+    }
+
+    /**
+     * Decides if a message must be processed by a processor degraded by sampling.
+     * The message is shed and counted if it isn't part of the sample.
+     *
+     * @return True if the message is part of the sample
+     */
+
+    public boolean sample() {
+        boolean sampled = random.nextDouble() < sampleRate;
+
+        if (!sampled) {
+            shed.inc();
+        }
+
+        return sampled;
+    }
+
+    /**
+     * @return The weight of each sampled message, the inverse of the sample rate
+     */
+
+    public double getSampleWeight() {
+        return 1.0 / sampleRate;
+    }
+
+    public String getWeightField() {
+        return weightField;
+    }
+
+    /**
+     * Weights a sampled message. A message that already has a weight, like one
+     * sampled by an earlier job, keeps it multiplied by the sample weight.
+     *
+     * @param message The sampled message, that is modified
+     */
+
+    public void weigh(Map<String, Object> message) {
+        Object weight = message.get(weightField);
+        double sampleWeight = getSampleWeight();
+
+        message.put(weightField, weight instanceof Number ? ((Number) weight).doubleValue() * sampleWeight : sampleWeight);
+    }
+
+    /**
+     * Updates the shedding level and the sample rate. It must be called on every task window.
+     */
+
+    public void window() {
+        int previousLevel = level;
+
+        if (lag > highLag) {
+            level = Math.min(level + 1, maxLevel);
+        } else if (lag < lowLag) {
+            level = Math.max(level - 1, 0);
+        }
+
+        if (level > 0) {
+            sampleRate = Math.max(minSampleRate, Math.min(1.0, lowLag / Math.max(lag, 1.0)));
+        } else {
+            sampleRate = 1.0;
+        }
+
+        if (level != previousLevel) {
+            log.info("Shedding level changed from {} to {}, lag " + (long) lag + " ms", previousLevel, level);
+        }
+
+        levelGauge.set(level);
+        sampleRateGauge.set(sampleRate);
+        lagGauge.set((long) lag);
+    }
+}
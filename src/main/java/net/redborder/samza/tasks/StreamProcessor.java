@@ -1,6 +1,9 @@
 package net.redborder.samza.tasks;
 
+import net.redborder.samza.dedup.Deduplicator;
 import net.redborder.samza.processors.Processor;
+import net.redborder.samza.recorder.EventRecorder;
+import net.redborder.samza.store.StoreFootprints;
 import net.redborder.samza.store.StoreManager;
 import org.apache.samza.config.Config;
 import org.apache.samza.system.IncomingMessageEnvelope;
@@ -8,41 +11,304 @@ import org.apache.samza.task.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-public class StreamProcessor implements StreamTask, InitableTask, WindowableTask {
+public class StreamProcessor implements StreamTask, InitableTask, WindowableTask, ClosableTask {
     private static final Logger log = LoggerFactory.getLogger(StreamProcessor.class);
 
     private Config config;
     private StoreManager storeManager;
     private TaskContext context;
+    private BufferedMessageCollector bufferedCollector;
+    private Map<String, Deduplicator> deduplicators = new HashMap<>();
+    private LoadShedder loadShedder;
+    private StoreFootprints footprints;
+    private Map<String, Batch> batches;
+    private int batchSize;
+    private long batchLatency;
+    private boolean windowCommits;
+    private MessageCollector lastCollector;
 
     @Override
     public void init(Config config, TaskContext context) throws Exception {
         this.config = config;
         this.context = context;
+        long deadline = System.currentTimeMillis() + config.getLong("redborder.warmup.timeout.ms", 30000L);
+        EventRecorder.configure(config);
+        // Features that keep pending work require it, as they are only flushed on window
+        this.windowCommits = config.getLong("task.commit.ms", 60000L) == -1L;
+
         this.storeManager = new StoreManager(config, context);
         this.storeManager.refreshWindowStores();
+
+        if (config.getBoolean("redborder.collector.buffer.enabled", false)) {
+            Processor.requireWindowCommits(config, "redborder.collector.buffer.enabled");
+            this.bufferedCollector = new BufferedMessageCollector(config);
+        }
+
+        if (config.getBoolean("redborder.shedding.enabled", false)) {
+            this.loadShedder = new LoadShedder(config, context);
+        }
+
+        if (config.getBoolean("redborder.batch.enabled", false)) {
+            // The latency bound is only checked when a message arrives, so the window dispatches quiet streams
+            Processor.requireWindowCommits(config, "redborder.batch.enabled");
+            this.batches = new HashMap<>();
+            this.batchSize = config.getInt("redborder.batch.size", 100);
+            this.batchLatency = config.getLong("redborder.batch.latency.ms", 100L);
+            log.info("Processing messages in batches of {} messages or {} ms", batchSize, batchLatency);
+        }
+
+        if (config.getBoolean("redborder.footprint.enabled", true)) {
+            this.footprints = new StoreFootprints(storeManager, config, context.getMetricsRegistry());
+        }
+
+        for (String stream : config.getList("redborder.dedup.streams", Collections.<String>emptyList())) {
+            deduplicators.put(stream, new Deduplicator(stream, config, context));
+        }
+
+        warmUp(deadline);
+    }
+
+    /**
+     * Builds every configured processor chain and preloads the configured hot keys
+     * from the stores, so the first messages after a deploy or a rebalance don't pay
+     * the reflective instantiation and the cold caches. The warm-up stops as soon as
+     * the deadline is reached.
+     *
+     * @param deadline The time (in ms) when the warm-up must stop
+     */
+
+    private void warmUp(long deadline) {
+        List<String> inputs = config.getList("task.inputs", Collections.<String>emptyList());
+
+        log.info("Warming up processors: ");
+        for (String input : inputs) {
+            if (System.currentTimeMillis() >= deadline) {
+                log.warn("Warm-up time budget exhausted while creating processors");
+                return;
+            }
+
+            // task.inputs are declared as system.stream
+            String stream = input.substring(input.indexOf('.') + 1).trim();
+
+            // The misconfigured processors and enrichments fail the task here, before any message is processed
+            if (config.containsKey("redborder.processors." + stream)) {
+                List<Processor> processors = Processor.getProcessors(stream, this.config, this.context, this.storeManager);
+                log.info("  * Stream: {} {} processors", stream, processors.size());
+            } else {
+                log.warn("Stream {} doesn't have processors configured", stream);
+            }
+        }
+
+        int loadedKeys = storeManager.warmUp(config, deadline);
+        log.info("Warm-up finished, {} keys loaded from stores and extensions", loadedKeys);
     }
 
     @Override
     public void process(IncomingMessageEnvelope envelope, MessageCollector collector, TaskCoordinator coordinator) throws Exception {
         String stream = envelope.getSystemStreamPartition().getSystemStream().getStream();
         Object message = envelope.getMessage();
+        Deduplicator deduplicator = deduplicators.get(stream);
+
+        if (deduplicator != null && message instanceof Map && deduplicator.isDuplicate((Map<String, Object>) message)) {
+            log.debug("Dropping duplicated message from the stream {}", stream);
+            return;
+        }
 
         List<Processor> processors = Processor.getProcessors(stream, this.config, this.context, this.storeManager);
         if (message instanceof Map) {
-            for (Processor processor : processors) {
-                processor.process((Map<String, Object>) message, collector);
+            MessageCollector output = collector;
+            lastCollector = collector;
+
+            if (bufferedCollector != null) {
+                bufferedCollector.setCollector(collector);
+                output = bufferedCollector;
+            }
+
+            if (loadShedder != null) {
+                loadShedder.observe((Map<String, Object>) message);
+            }
+
+            if (batches != null) {
+                Batch batch = batches.get(stream);
+
+                if (batch == null) {
+                    batch = new Batch();
+                    batches.put(stream, batch);
+                }
+
+                batch.add((Map<String, Object>) message);
+
+                if (batch.messages.size() >= batchSize || System.currentTimeMillis() - batch.start >= batchLatency) {
+                    dispatch(processors, batch.messages, output);
+                    batch.clear();
+                }
+            } else {
+                for (Processor processor : processors) {
+                    long start = EventRecorder.start();
+
+                    if (loadShedder != null && loadShedder.isDegraded(processor)) {
+                        processDegraded(processor, (Map<String, Object>) message, output);
+                    } else {
+                        processor.process((Map<String, Object>) message, output);
+                    }
+
+                    EventRecorder.end(EventRecorder.Type.PROCESS, processor.getName(), true, 1, start);
+                }
             }
         } else {
             log.warn("This message is not a map class: " + message);
         }
     }
 
+    private void dispatch(List<Processor> processors, List<Map<String, Object>> messages, MessageCollector collector) {
+        for (Processor processor : processors) {
+            long start = EventRecorder.start();
+
+            if (loadShedder != null && loadShedder.isDegraded(processor)) {
+                for (Map<String, Object> message : messages) {
+                    processDegraded(processor, message, collector);
+                }
+            } else {
+                processor.processBatch(messages, collector);
+            }
+
+            EventRecorder.end(EventRecorder.Type.PROCESS, processor.getName(), true, messages.size(), start);
+        }
+    }
+
+    /**
+     * Dispatches the pending batches of all the streams
+     *
+     * @param collector The collector to send messages
+     * @return The number of dispatched messages
+     */
+
+    private int flushBatches(MessageCollector collector) {
+        int flushed = 0;
+
+        for (Map.Entry<String, Batch> batchEntry : batches.entrySet()) {
+            Batch batch = batchEntry.getValue();
+
+            if (!batch.messages.isEmpty()) {
+                List<Processor> processors = Processor.getProcessors(batchEntry.getKey(), this.config, this.context, this.storeManager);
+                dispatch(processors, batch.messages, collector);
+                flushed += batch.messages.size();
+                batch.clear();
+            }
+        }
+
+        return flushed;
+    }
+
+    private void processDegraded(Processor processor, Map<String, Object> message, MessageCollector collector) {
+        if (processor.getDegradation() == Processor.Degradation.PARTIAL) {
+            storeManager.setExtensionsEnabled(false);
+
+            try {
+                processor.process(message, collector);
+            } finally {
+                storeManager.setExtensionsEnabled(true);
+            }
+        } else if (loadShedder.sample()) {
+            Map<String, Object> sampled = new HashMap<>();
+            sampled.putAll(message);
+            loadShedder.weigh(sampled);
+            processor.process(sampled, collector);
+        }
+    }
+
     @Override
     public void window(MessageCollector messageCollector, TaskCoordinator taskCoordinator) throws Exception {
+        MessageCollector output = messageCollector;
+        lastCollector = messageCollector;
+        if (bufferedCollector != null) {
+            bufferedCollector.setCollector(messageCollector);
+            output = bufferedCollector;
+        }
+
+        // The batches are processed before the stores are refreshed, as they would have been without batching
+        if (batches != null) {
+            flushBatches(output);
+        }
+
         storeManager.refreshWindowStores();
+        storeManager.windowExtensions();
+
+        if (loadShedder != null) {
+            loadShedder.window();
+        }
+
+        if (footprints != null) {
+            footprints.window();
+        }
+
+        for (Processor processor : Processor.getAllProcessors(context)) {
+            processor.window(output);
+        }
+
+        if (bufferedCollector != null) {
+            bufferedCollector.flush();
+        }
+
+        // The fingerprints are only saved once the outputs of their messages have been flushed
+        for (Deduplicator deduplicator : deduplicators.values()) {
+            deduplicator.window();
+        }
+
+        // Nothing is pending now, so the checkpoint can't skip messages that haven't been processed
+        if (windowCommits) {
+            taskCoordinator.commit(TaskCoordinator.RequestScope.CURRENT_TASK);
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        // The pending work is sent with the last collector, as Samza closes the producers after the tasks
+        if (batches != null && lastCollector != null) {
+            flushBatches(bufferedCollector != null ? bufferedCollector : lastCollector);
+        }
+
+        for (Processor processor : Processor.getAllProcessors(context)) {
+            processor.close();
+        }
+
+        if (bufferedCollector != null) {
+            bufferedCollector.flush();
+        }
+
+        for (Deduplicator deduplicator : deduplicators.values()) {
+            deduplicator.save();
+        }
+
+        Processor.removeProcessors(context);
+        storeManager.close();
+    }
+
+    /**
+     * The pending messages of a stream
+     */
+
+    private static class Batch {
+        private List<Map<String, Object>> messages = new ArrayList<>();
+        private long start;
+
+        void add(Map<String, Object> message) {
+            if (messages.isEmpty()) {
+                start = System.currentTimeMillis();
+            }
+
+            messages.add(message);
+        }
+
+        // A new list is used, so processors can keep the batches they receive
+        void clear() {
+            messages = new ArrayList<>();
+        }
     }
 }
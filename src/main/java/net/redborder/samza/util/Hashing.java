@@ -0,0 +1,168 @@
+package net.redborder.samza.util;
+
+/**
+ * This class has fast non-cryptographic hash functions used by
+ * sketches and fingerprints, and the keyed SipHash-2-4 function used
+ * to pseudonymize values.
+ */
+
+public class Hashing {
+
+    private Hashing() {
+    }
+
+    /**
+     * Computes a 64-bit hash of a sequence of chars, using FNV-1a
+     * followed by the murmur3 finalizer to spread the bits.
+     *
+     * @param value The chars to hash
+     * @return The 64-bit hash
+     */
+
+    public static long hash64(CharSequence value) {
+        long hash = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return mix64(hash);
+    }
+
+    /**
+     * Applies the murmur3 finalizer to a 64-bit value
+     *
+     * @param hash The value to mix
+     * @return The mixed value
+     */
+
+    public static long mix64(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb3fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+
+    /**
+     * Computes SipHash-2-4 of a single 64-bit word, as 8 little-endian bytes
+     *
+     * @param k0    The low 64 bits of the key
+     * @param k1    The high 64 bits of the key
+     * @param value The word to hash
+     * @return The 64-bit hash
+     */
+
+    public static long sipHash24(long k0, long k1, long value) {
+        // The state is kept on locals, so the hot path doesn't allocate
+        long v0 = k0 ^ 0x736f6d6570736575L;
+        long v1 = k1 ^ 0x646f72616e646f6dL;
+        long v2 = k0 ^ 0x6c7967656e657261L;
+        long v3 = k1 ^ 0x7465646279746573L;
+        long word = value;
+
+        for (int round = 0; round < 8; round++) {
+            if (round == 0 || round == 2) {
+                v3 ^= word;
+            } else if (round == 4) {
+                v2 ^= 0xff;
+            }
+
+            v0 += v1;
+            v1 = Long.rotateLeft(v1, 13);
+            v1 ^= v0;
+            v0 = Long.rotateLeft(v0, 32);
+            v2 += v3;
+            v3 = Long.rotateLeft(v3, 16);
+            v3 ^= v2;
+            v0 += v3;
+            v3 = Long.rotateLeft(v3, 21);
+            v3 ^= v0;
+            v2 += v1;
+            v1 = Long.rotateLeft(v1, 17);
+            v1 ^= v2;
+            v2 = Long.rotateLeft(v2, 32);
+
+            if (round == 1 || round == 3) {
+                v0 ^= word;
+                // The last block only has the length, 8 bytes
+                word = 8L << 56;
+            }
+        }
+
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+
+    /**
+     * Computes SipHash-2-4 of a sequence of chars, as their UTF-16LE bytes,
+     * without copying them.
+     *
+     * @param k0    The low 64 bits of the key
+     * @param k1    The high 64 bits of the key
+     * @param value The chars to hash
+     * @return The 64-bit hash
+     */
+
+    public static long sipHash24(long k0, long k1, CharSequence value) {
+        long[] v = sipInit(k0, k1);
+        int length = value.length();
+        long word = 0;
+        int i = 0;
+
+        for (; i + 4 <= length; i += 4) {
+            word = value.charAt(i) | (long) value.charAt(i + 1) << 16
+                    | (long) value.charAt(i + 2) << 32 | (long) value.charAt(i + 3) << 48;
+            sipBlock(v, word);
+        }
+
+        // The last block has the remaining bytes and the length of the value
+        word = (long) (length * 2) << 56;
+        for (int shift = 0; i < length; i++, shift += 16) {
+            word |= (long) value.charAt(i) << shift;
+        }
+
+        return sipFinish(v, word);
+    }
+
+    private static long[] sipInit(long k0, long k1) {
+        return new long[]{k0 ^ 0x736f6d6570736575L, k1 ^ 0x646f72616e646f6dL,
+                k0 ^ 0x6c7967656e657261L, k1 ^ 0x7465646279746573L};
+    }
+
+    private static void sipBlock(long[] v, long word) {
+        v[3] ^= word;
+        sipRound(v);
+        sipRound(v);
+        v[0] ^= word;
+    }
+
+    private static long sipFinish(long[] v, long lastWord) {
+        sipBlock(v, lastWord);
+        v[2] ^= 0xff;
+        sipRound(v);
+        sipRound(v);
+        sipRound(v);
+        sipRound(v);
+        return v[0] ^ v[1] ^ v[2] ^ v[3];
+    }
+
+    private static void sipRound(long[] v) {
+        v[0] += v[1];
+        v[1] = Long.rotateLeft(v[1], 13);
+        v[1] ^= v[0];
+        v[0] = Long.rotateLeft(v[0], 32);
+        v[2] += v[3];
+        v[3] = Long.rotateLeft(v[3], 16);
+        v[3] ^= v[2];
+        v[0] += v[3];
+        v[3] = Long.rotateLeft(v[3], 21);
+        v[3] ^= v[0];
+        v[2] += v[1];
+        v[1] = Long.rotateLeft(v[1], 17);
+        v[1] ^= v[2];
+        v[2] = Long.rotateLeft(v[2], 32);
+    }
+}
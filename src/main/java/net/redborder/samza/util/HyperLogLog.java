@@ -0,0 +1,124 @@
+package net.redborder.samza.util;
+
+/**
+ * This class implements the HyperLogLog algorithm to estimate the number
+ * of distinct values of a set using a fixed amount of memory: 2^precision
+ * registers of one byte. The standard error of the estimation is about
+ * 1.04 / sqrt(2^precision).
+ */
+
+public class HyperLogLog {
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16) {
+            throw new IllegalArgumentException("The HyperLogLog precision must be between 4 and 16");
+        }
+
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * Adds a value to the set
+     *
+     * @param value The value to add
+     */
+
+    public void offer(Object value) {
+        long hash = Hashing.hash64(value.toString());
+        int index = (int) (hash >>> (64 - precision));
+        long remaining = (hash << precision) | (1L << (precision - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(remaining) + 1);
+
+        if (rank > registers[index]) {
+            registers[index] = rank;
+        }
+    }
+
+    /**
+     * Adds all the values from another set with the same precision
+     *
+     * @param other The set to merge
+     */
+
+    public void merge(HyperLogLog other) {
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    /**
+     * @return The estimated number of distinct values
+     */
+
+    public long cardinality() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+
+            if (register == 0) {
+                zeros++;
+            }
+        }
+
+        double alpha;
+        if (m == 16) {
+            alpha = 0.673;
+        } else if (m == 32) {
+            alpha = 0.697;
+        } else if (m == 64) {
+            alpha = 0.709;
+        } else {
+            alpha = 0.7213 / (1 + 1.079 / m);
+        }
+
+        double estimate = alpha * m * m / sum;
+
+        // Small range correction
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log((double) m / zeros);
+        }
+
+        return Math.round(estimate);
+    }
+
+    /**
+     * @return The registers encoded as an hexadecimal string
+     */
+
+    public String toHex() {
+        char[] hex = new char[registers.length * 2];
+
+        for (int i = 0; i < registers.length; i++) {
+            hex[i * 2] = Character.forDigit((registers[i] >> 4) & 0xf, 16);
+            hex[i * 2 + 1] = Character.forDigit(registers[i] & 0xf, 16);
+        }
+
+        return new String(hex);
+    }
+
+    /**
+     * Builds a set from the registers encoded with #toHex
+     *
+     * @param hex The encoded registers
+     * @return The decoded set
+     */
+
+    public static HyperLogLog fromHex(String hex) {
+        int precision = Integer.numberOfTrailingZeros(hex.length() / 2);
+        HyperLogLog hyperLogLog = new HyperLogLog(precision);
+
+        for (int i = 0; i < hyperLogLog.registers.length; i++) {
+            hyperLogLog.registers[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+
+        return hyperLogLog;
+    }
+}
@@ -0,0 +1,128 @@
+package net.redborder.samza.util;
+
+/**
+ * A map from non-negative longs to objects, stored on two primitive arrays with
+ * open addressing and linear probing, so lookups don't box the keys or follow
+ * pointers. It only grows, as it is meant for tables loaded once.
+ *
+ * @param <V> The value type
+ */
+
+public class LongObjectMap<V> {
+    private static final long EMPTY = -1L;
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size = 0;
+
+    /**
+     * Constructs a new map
+     *
+     * @param expectedSize The number of entries that fit without growing
+     */
+
+    public LongObjectMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    private static int capacityFor(int entries) {
+        int capacity = 4;
+
+        // The load factor is kept under 0.5 so the probe sequences are short
+        while (capacity < entries * 2) {
+            capacity <<= 1;
+        }
+
+        return capacity;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+
+        for (int i = 0; i < capacity; i++) {
+            keys[i] = EMPTY;
+        }
+    }
+
+    /**
+     * Adds or replaces an entry
+     *
+     * @param key   The key, which must not be negative
+     * @param value The value
+     */
+
+    public void put(long key, V value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("The key must not be negative: " + key);
+        }
+
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+        }
+
+        int slot = slot(key);
+
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+    }
+
+    /**
+     * @param key The key
+     * @return The value of the key, or null if it isn't present
+     */
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int slot = slot(key);
+        long current;
+
+        while ((current = keys[slot]) != EMPTY) {
+            if (current == key) {
+                return (V) values[slot];
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private int slot(long key) {
+        return (int) Hashing.mix64(key) & mask;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void grow() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(keys.length * 2);
+        size = 0;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                put(oldKeys[i], (V) oldValues[i]);
+            }
+        }
+    }
+}
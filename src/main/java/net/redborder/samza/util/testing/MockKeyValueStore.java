@@ -5,11 +5,13 @@ import org.apache.samza.storage.kv.KeyValueIterator;
 import org.apache.samza.storage.kv.KeyValueStore;
 
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 public class MockKeyValueStore implements KeyValueStore<String, Map<String, Object>> {
-    Map<String, Map<String, Object>> store = new HashMap<>();
+    TreeMap<String, Map<String, Object>> store = new TreeMap<>();
 
     public boolean isEmpty() {
         return store.isEmpty();
@@ -27,6 +29,9 @@ public class MockKeyValueStore implements KeyValueStore<String, Map<String, Obje
 
     @Override
     public void putAll(List<Entry<String, Map<String, Object>>> list) {
+        for (Entry<String, Map<String, Object>> entry : list) {
+            store.put(entry.getKey(), entry.getValue());
+        }
     }
 
     @Override
@@ -54,12 +59,12 @@ public class MockKeyValueStore implements KeyValueStore<String, Map<String, Obje
 
     @Override
     public KeyValueIterator<String, Map<String, Object>> range(String s, String k1) {
-        return null;
+        return new MockIterator(store.subMap(s, k1).entrySet().iterator());
     }
 
     @Override
     public KeyValueIterator<String, Map<String, Object>> all() {
-        return null;
+        return new MockIterator(store.entrySet().iterator());
     }
 
     @Override
@@ -72,4 +77,32 @@ public class MockKeyValueStore implements KeyValueStore<String, Map<String, Obje
     public void flush() {
         store.clear();
     }
-}
\ No newline at end of file
+
+    private static class MockIterator implements KeyValueIterator<String, Map<String, Object>> {
+        private Iterator<Map.Entry<String, Map<String, Object>>> iterator;
+
+        MockIterator(Iterator<Map.Entry<String, Map<String, Object>>> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public Entry<String, Map<String, Object>> next() {
+            Map.Entry<String, Map<String, Object>> entry = iterator.next();
+            return new Entry<>(entry.getKey(), entry.getValue());
+        }
+
+        @Override
+        public void remove() {
+            iterator.remove();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package net.redborder.samza.util.testing;
+
+import net.redborder.samza.store.StoreExtension;
+import net.redborder.samza.store.TransformProcess;
+import org.apache.samza.config.Config;
+import org.apache.samza.storage.kv.KeyValueStore;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-memory store extension. Its reads can be delayed with the property
+ * "redborder.stores.extension.extensionName.delay.ms", and it can be made to
+ * fail to simulate an unavailable backend.
+ */
+
+public class MockStoreExtension extends StoreExtension<Map<String, Map<String, Object>>> {
+    private Map<String, Map<String, Object>> data = new ConcurrentHashMap<>();
+    private long delay;
+    private volatile boolean failing = false;
+    private volatile int reads = 0;
+
+    public MockStoreExtension(String name, Config config, TransformProcess transformProcess) {
+        this(name, config, transformProcess, null);
+    }
+
+    public MockStoreExtension(String name, Config config, TransformProcess transformProcess,
+                              KeyValueStore<String, Map<String, Object>> localStore) {
+        super(name, config, transformProcess, localStore);
+        this.delay = config.getLong("redborder.stores.extension." + name + ".delay.ms", 0L);
+    }
+
+    public void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    public int getReads() {
+        return reads;
+    }
+
+    public int size() {
+        return data.size();
+    }
+
+    @Override
+    public void put(String namespace, String collection, String key, Set<String> columns, Collection<Object> values) {
+        checkFailing();
+        Map<String, Object> entry = new HashMap<>();
+        Iterator<Object> valuesIterator = values.iterator();
+
+        for (String column : columns) {
+            entry.put(column, valuesIterator.next());
+        }
+
+        data.put(namespace + collection + key, entry);
+    }
+
+    @Override
+    public void remove(String namespace, String collection, String key) {
+        checkFailing();
+        data.remove(namespace + collection + key);
+    }
+
+    @Override
+    public Map<String, Object> get(String namespace, String collection, String key) {
+        reads++;
+
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        checkFailing();
+        return data.get(namespace + collection + key);
+    }
+
+    @Override
+    public Boolean exist(String namespace, String collection, String key) {
+        return get(namespace, collection, key) != null;
+    }
+
+    @Override
+    public void increment(String namespace, String collection, String key, Set<String> columns, Collection<Integer> values) {
+        add(namespace + collection + key, columns, values, 1);
+    }
+
+    @Override
+    public void decrement(String namespace, String collection, String key, Set<String> columns, Collection<Integer> values) {
+        add(namespace + collection + key, columns, values, -1);
+    }
+
+    @Override
+    public Map<String, Map<String, Object>> getClient() {
+        return data;
+    }
+
+    private void add(String mergeKey, Set<String> columns, Collection<Integer> values, int sign) {
+        checkFailing();
+        Map<String, Object> entry = data.get(mergeKey);
+        Iterator<Integer> valuesIterator = values.iterator();
+
+        if (entry == null) {
+            entry = new HashMap<>();
+            data.put(mergeKey, entry);
+        }
+
+        for (String column : columns) {
+            Number current = (Number) entry.get(column);
+            entry.put(column, (current == null ? 0 : current.intValue()) + sign * valuesIterator.next());
+        }
+    }
+
+    private void checkFailing() {
+        if (failing) {
+            throw new IllegalStateException("The extension is failing");
+        }
+    }
+}
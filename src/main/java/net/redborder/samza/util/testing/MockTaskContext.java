@@ -6,9 +6,13 @@ import org.apache.samza.metrics.MetricsRegistry;
 import org.apache.samza.system.SystemStreamPartition;
 import org.apache.samza.task.TaskContext;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 public class MockTaskContext implements TaskContext {
+    private Map<String, Object> stores = new HashMap<>();
+
     @Override
     public MetricsRegistry getMetricsRegistry() {
         return new MockMetricsRegistry();
@@ -21,7 +25,11 @@ public class MockTaskContext implements TaskContext {
 
     @Override
     public Object getStore(String s) {
-        return new MockKeyValueStore();
+        if (!stores.containsKey(s)) {
+            stores.put(s, new MockKeyValueStore());
+        }
+
+        return stores.get(s);
     }
 
     @Override
@@ -0,0 +1,89 @@
+package net.redborder.samza.benchmarks;
+
+import net.redborder.samza.enrichments.MacHashingEnrich;
+import net.redborder.samza.util.Hashing;
+import org.apache.samza.config.MapConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the MAC pseudonymization throughput on a single thread, so the score
+ * is the number of MACs per second and core. Run it with:
+ * <pre>
+ * mvn test-compile exec:exec -Dexec.classpathScope=test \
+ *     -Dexec.args="-cp %classpath org.openjdk.jmh.Main MacHashingEnrichBenchmark"
+ * </pre>
+ * The distinct parameter is the number of different MACs, and cache the number of
+ * cached pseudonyms (1 hashes almost every MAC). The messages are cycled over a set
+ * four times larger than the default cache, so the MACs that don't fit on it are
+ * hashed on every pass.
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+@State(Scope.Thread)
+public class MacHashingEnrichBenchmark {
+    private static final int MESSAGES = 262144;
+
+    @Param({"1024", "1048576"})
+    public int distinct;
+
+    @Param({"65536", "1"})
+    public int cache;
+
+    private MacHashingEnrich enrich;
+    private long[] macs = new long[MESSAGES];
+    private Map<String, Object>[] messages = new Map[MESSAGES];
+    private Map<String, Object> sink = new HashMap<>();
+    private Random random = new Random(42);
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.enrichments.types.mac_hashing.salt", "benchmark");
+        properties.put("redborder.enrichments.types.mac_hashing.cache", String.valueOf(cache));
+        enrich = new MacHashingEnrich("mac_hashing", null, new MapConfig(properties));
+
+        for (int i = 0; i < MESSAGES; i++) {
+            macs[i] = random.nextLong() & 0xffffffffffffL;
+            messages[i] = new HashMap<>();
+            messages[i].put("namespace_uuid", "namespace_" + (i & 7));
+        }
+    }
+
+    // Each iteration draws new MACs out of the distinct ones
+    @Setup(Level.Iteration)
+    public void drawMacs() {
+        for (int i = 0; i < MESSAGES; i++) {
+            int mac = random.nextInt(distinct);
+            messages[i].put("client_mac", String.format("00:1b:%02x:%02x:%02x:%02x",
+                    (mac >>> 24) & 0xff, (mac >>> 16) & 0xff, (mac >>> 8) & 0xff, mac & 0xff));
+        }
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (MESSAGES - 1);
+        return next;
+    }
+
+    @Benchmark
+    public long sipHash() {
+        return Hashing.sipHash24(0x0706050403020100L, 0x0f0e0d0c0b0a0908L, macs[nextIndex()]);
+    }
+
+    @Benchmark
+    public Map<String, Object> enrichInto() {
+        sink.clear();
+        enrich.enrichInto(messages[nextIndex()], sink);
+        return sink;
+    }
+}
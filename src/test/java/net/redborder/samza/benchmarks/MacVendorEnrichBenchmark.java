@@ -0,0 +1,75 @@
+package net.redborder.samza.benchmarks;
+
+import net.redborder.samza.enrichments.MacVendorEnrich;
+import org.apache.samza.config.MapConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the MAC vendor lookups. Run it with:
+ * <pre>
+ * mvn test-compile exec:exec -Dexec.classpathScope=test \
+ *     -Dexec.args="-cp %classpath org.openjdk.jmh.Main MacVendorEnrichBenchmark"
+ * </pre>
+ * The OUI file is set with -Dmac.vendors.file (default src/test/resources/mac_vendors).
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MacVendorEnrichBenchmark {
+    private static final int MACS = 4096;
+
+    private MacVendorEnrich enrich;
+    private String[] macs = new String[MACS];
+    private Map<String, Object>[] messages = new Map[MACS];
+    private Map<String, Object> sink = new HashMap<>();
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.enrichments.types.mac_vendor.file",
+                System.getProperty("mac.vendors.file", "src/test/resources/mac_vendors"));
+        enrich = new MacVendorEnrich("mac_vendor", null, new MapConfig(properties));
+
+        String[] prefixes = {"00:00:0c", "00:1b:c5", "70:b3:d5", "fc:fb:fb", "a4:5e:60"};
+        Random random = new Random(42);
+
+        for (int i = 0; i < MACS; i++) {
+            macs[i] = String.format("%s:%02x:%02x:%02x", prefixes[random.nextInt(prefixes.length)],
+                    random.nextInt(256), random.nextInt(256), random.nextInt(256));
+            messages[i] = new HashMap<>();
+            messages[i].put("client_mac", macs[i]);
+        }
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (MACS - 1);
+        return next;
+    }
+
+    @Benchmark
+    public long parseMac() {
+        return MacVendorEnrich.parseMac(macs[nextIndex()]);
+    }
+
+    @Benchmark
+    public String getVendor() {
+        return enrich.getVendor(macs[nextIndex()]);
+    }
+
+    @Benchmark
+    public Map<String, Object> enrichInto() {
+        sink.clear();
+        enrich.enrichInto(messages[nextIndex()], sink);
+        return sink;
+    }
+}
@@ -0,0 +1,75 @@
+package net.redborder.samza.chooser;
+
+import net.redborder.samza.util.testing.MockMetricsRegistry;
+import org.apache.samza.Partition;
+import org.apache.samza.config.MapConfig;
+import org.apache.samza.system.IncomingMessageEnvelope;
+import org.apache.samza.system.SystemStreamPartition;
+import org.apache.samza.system.chooser.MessageChooser;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PriorityMessageChooserTest {
+
+    private IncomingMessageEnvelope envelope(String stream, int offset) {
+        SystemStreamPartition partition = new SystemStreamPartition("kafka", stream, new Partition(0));
+        return new IncomingMessageEnvelope(partition, String.valueOf(offset), null, new HashMap<String, Object>());
+    }
+
+    private MessageChooser createChooser(int maxSkips) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("task.inputs", "kafka.rb_flow,kafka.rb_loc,kafka.rb_event");
+        properties.put("redborder.processors.rb_loc", "location,loc_writer");
+        properties.put("redborder.processors.types.loc_writer.class", "net.redborder.samza.processors.StoreWriterProcessor");
+        properties.put("redborder.processors.rb_flow", "flow");
+        properties.put("redborder.chooser.priority.rb_event", "-1");
+        properties.put("redborder.chooser.starvation.skips", String.valueOf(maxSkips));
+        properties.put("redborder.chooser.starvation.ms", "60000");
+
+        return new PriorityMessageChooserFactory().getChooser(new MapConfig(properties), new MockMetricsRegistry());
+    }
+
+    @Test
+    public void infersThePriorityOfTheStreamsThatWriteStores() {
+        PriorityMessageChooser chooser = (PriorityMessageChooser) createChooser(100);
+
+        assertEquals(10, chooser.getPriority("rb_loc"));
+        assertEquals(0, chooser.getPriority("rb_flow"));
+        assertEquals(-1, chooser.getPriority("rb_event"));
+    }
+
+    @Test
+    public void choosesTheHighestPriorityFirst() {
+        MessageChooser chooser = createChooser(100);
+        assertNull(chooser.choose());
+
+        chooser.update(envelope("rb_flow", 1));
+        chooser.update(envelope("rb_event", 1));
+        chooser.update(envelope("rb_loc", 1));
+
+        assertEquals("rb_loc", chooser.choose().getSystemStreamPartition().getStream());
+        assertEquals("rb_flow", chooser.choose().getSystemStreamPartition().getStream());
+        assertEquals("rb_event", chooser.choose().getSystemStreamPartition().getStream());
+        assertNull(chooser.choose());
+    }
+
+    @Test
+    public void doesNotStarveTheLowerPriorities() {
+        MessageChooser chooser = createChooser(2);
+        chooser.update(envelope("rb_flow", 1));
+
+        // The consumer sends a new message of rb_loc every time one is chosen
+        chooser.update(envelope("rb_loc", 1));
+        assertEquals("rb_loc", chooser.choose().getSystemStreamPartition().getStream());
+        chooser.update(envelope("rb_loc", 2));
+        assertEquals("rb_loc", chooser.choose().getSystemStreamPartition().getStream());
+        chooser.update(envelope("rb_loc", 3));
+        assertEquals("rb_flow", chooser.choose().getSystemStreamPartition().getStream());
+        assertEquals("rb_loc", chooser.choose().getSystemStreamPartition().getStream());
+    }
+}
@@ -0,0 +1,95 @@
+package net.redborder.samza.dedup;
+
+import net.redborder.samza.util.testing.MockTaskContext;
+import org.apache.samza.config.MapConfig;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeduplicatorTest {
+
+    private Deduplicator createDeduplicator(String mode, String fields) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.dedup.rb_flow.mode", mode);
+        properties.put("redborder.dedup.rb_flow.maxEntries", "1000");
+
+        if (fields != null) {
+            properties.put("redborder.dedup.rb_flow.fields", fields);
+        }
+
+        return new Deduplicator("rb_flow", new MapConfig(properties), new MockTaskContext());
+    }
+
+    private Map<String, Object> flow(long timestamp, String mac, long bytes) {
+        Map<String, Object> message = new HashMap<>();
+        message.put("timestamp", timestamp);
+        message.put("client_mac", mac);
+        message.put("bytes", bytes);
+        return message;
+    }
+
+    @Test
+    public void dropsExactDuplicates() {
+        Deduplicator deduplicator = createDeduplicator("exact", null);
+
+        for (int i = 0; i < 200; i++) {
+            assertFalse(deduplicator.isDuplicate(flow(i, "00:00:00:00:00:01", 10)));
+        }
+
+        for (int i = 0; i < 200; i++) {
+            assertTrue(deduplicator.isDuplicate(flow(i, "00:00:00:00:00:01", 10)));
+        }
+
+        assertFalse(deduplicator.isDuplicate(flow(0, "00:00:00:00:00:01", 11)));
+    }
+
+    @Test
+    public void dropsDuplicatesWithBloomFilters() {
+        Deduplicator deduplicator = createDeduplicator("bloom", null);
+
+        for (int i = 0; i < 200; i++) {
+            assertFalse(deduplicator.isDuplicate(flow(i, "00:00:00:00:00:02", 10)));
+        }
+
+        for (int i = 0; i < 200; i++) {
+            assertTrue(deduplicator.isDuplicate(flow(i, "00:00:00:00:00:02", 10)));
+        }
+    }
+
+    @Test
+    public void usesOnlyConfiguredFields() {
+        Deduplicator deduplicator = createDeduplicator("exact", "timestamp,client_mac");
+
+        assertFalse(deduplicator.isDuplicate(flow(1, "00:00:00:00:00:03", 10)));
+        assertTrue(deduplicator.isDuplicate(flow(1, "00:00:00:00:00:03", 20)));
+        assertFalse(deduplicator.isDuplicate(flow(2, "00:00:00:00:00:03", 10)));
+    }
+
+    @Test
+    public void onlySavesTheFingerprintsOnWindow() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.dedup.rb_flow.maxEntries", "40");
+        properties.put("redborder.dedup.rb_flow.store", "dedup");
+        MapConfig config = new MapConfig(properties);
+        MockTaskContext context = new MockTaskContext();
+
+        // The generations of 10 entries are rotated while the messages are still pending
+        Deduplicator deduplicator = new Deduplicator("rb_flow", config, context);
+        for (int i = 0; i < 25; i++) {
+            assertFalse(deduplicator.isDuplicate(flow(i, "00:00:00:00:00:04", 10)));
+        }
+
+        Deduplicator restarted = new Deduplicator("rb_flow", config, context);
+        assertFalse(restarted.isDuplicate(flow(0, "00:00:00:00:00:04", 10)));
+
+        deduplicator.window();
+        restarted = new Deduplicator("rb_flow", config, context);
+        for (int i = 0; i < 25; i++) {
+            assertTrue(restarted.isDuplicate(flow(i, "00:00:00:00:00:04", 10)));
+        }
+    }
+}
@@ -71,4 +71,25 @@ public class EnrichManagerTest {
 
         assertEquals(expected, result);
     }
+
+    @Test
+    public void mixesDeltaAndFullEnrichments() {
+        EnrichManager enrichManager = new EnrichManager();
+        enrichManager.addEnrichment(new CachedEnrich(storeManager));
+        enrichManager.addEnrichment(new KeyLengthEnrich(storeManager));
+
+        Map<String, Object> input = new HashMap<>();
+        input.put("KEY", "AAA");
+
+        Map<String, Object> result = enrichManager.enrich(input);
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.putAll(input);
+        expected.put("VALUE", 1);
+        expected.put("KEY_LENGTH", 3);
+
+        assertEquals(expected, result);
+        assertEquals(expected, new KeyLengthEnrich(storeManager).enrich(result));
+        assertEquals(1, input.size());
+    }
 }
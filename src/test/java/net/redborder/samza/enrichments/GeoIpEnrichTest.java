@@ -0,0 +1,159 @@
+package net.redborder.samza.enrichments;
+
+import org.apache.samza.config.MapConfig;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GeoIpEnrichTest {
+
+    private File writeCsv(File file, String... lines) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write("\n");
+            }
+        }
+
+        return file;
+    }
+
+    private GeoIpEnrich createEnrich(File csv) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.enrichments.types.geo_ip.file", csv.getPath());
+        properties.put("redborder.enrichments.types.geo_ip.columns", "country_code,city");
+        properties.put("redborder.enrichments.types.geo_ip.check.ms", "0");
+        return new GeoIpEnrich("geo_ip", null, new MapConfig(properties));
+    }
+
+    @Test
+    public void parsesAddresses() {
+        assertEquals(0x0A000001L, GeoIpEnrich.parseIpv4("10.0.0.1"));
+        assertEquals(0xFFFFFFFFL, GeoIpEnrich.parseIpv4("255.255.255.255"));
+        assertEquals(-1L, GeoIpEnrich.parseIpv4("256.0.0.1"));
+        assertEquals(-1L, GeoIpEnrich.parseIpv4("10.0.0"));
+        assertEquals(-1L, GeoIpEnrich.parseIpv4("10.0.0.1.2"));
+        assertEquals(-1L, GeoIpEnrich.parseIpv4("10..0.1"));
+        assertEquals(-1L, GeoIpEnrich.parseIpv4("localhost"));
+
+        assertArrayEquals(new long[]{0x20010db800000000L, 1L}, GeoIpEnrich.parseAddress("2001:db8::1"));
+        assertArrayEquals(new long[]{0x0A000001L}, GeoIpEnrich.parseAddress("::ffff:10.0.0.1"));
+        assertNull(GeoIpEnrich.parseAddress("localhost"));
+    }
+
+    @Test
+    public void findsTheRanges() throws IOException {
+        File csv = writeCsv(File.createTempFile("geoip", ".csv"),
+                "# start,end,country_code,city",
+                "10.0.0.0/8,ES,Malaga",
+                "192.168.1.0,192.168.1.255,US,\"Springfield, IL\"",
+                "10.1.0.0/16,FR,Paris",
+                "255.255.255.255/32,ZZ,",
+                "2001:db8::/32,DE,Berlin",
+                "not,a,range");
+        GeoIpEnrich enrich = createEnrich(csv);
+
+        assertArrayEquals(new String[]{"ES", "Malaga"}, enrich.getLocation("10.255.0.1"));
+        // The ranges that overlap a previous one are skipped
+        assertArrayEquals(new String[]{"ES", "Malaga"}, enrich.getLocation("10.1.0.1"));
+        assertArrayEquals(new String[]{"US", "Springfield, IL"}, enrich.getLocation("192.168.1.1"));
+        assertArrayEquals(new String[]{"ZZ", ""}, enrich.getLocation("255.255.255.255"));
+        assertArrayEquals(new String[]{"DE", "Berlin"}, enrich.getLocation("2001:db8:1::1"));
+        assertNull(enrich.getLocation("11.0.0.1"));
+        assertNull(enrich.getLocation("192.168.2.1"));
+        assertNull(enrich.getLocation("2001:db9::1"));
+        assertNull(enrich.getLocation("not an ip"));
+
+        // The cached lookups give the same result
+        assertArrayEquals(new String[]{"ES", "Malaga"}, enrich.getLocation("10.255.0.1"));
+    }
+
+    @Test
+    public void enrichesTheMessage() throws IOException {
+        File csv = writeCsv(File.createTempFile("geoip", ".csv"),
+                "10.0.0.0/8,ES,Malaga",
+                "8.8.8.0/24,US,");
+        GeoIpEnrich enrich = createEnrich(csv);
+
+        Map<String, Object> message = new HashMap<>();
+        message.put("src", "10.1.2.3");
+        message.put("dst", "8.8.8.8");
+
+        Map<String, Object> sink = new HashMap<>();
+        enrich.enrichInto(message, sink);
+        assertEquals(3, sink.size());
+        assertEquals("ES", sink.get("src_country_code"));
+        assertEquals("Malaga", sink.get("src_city"));
+        assertEquals("US", sink.get("dst_country_code"));
+
+        message.put("src", "1.1.1.1");
+        assertFalse(enrich.enrich(message).containsKey("src_country_code"));
+    }
+
+    @Test
+    public void reloadsTheChangedFile() throws IOException {
+        File csv = writeCsv(File.createTempFile("geoip", ".csv"), "10.0.0.0/8,ES,Malaga");
+        assertTrue(csv.setLastModified(1000000000L));
+        GeoIpEnrich enrich = createEnrich(csv);
+        assertEquals("ES", enrich.getLocation("10.0.0.1")[0]);
+
+        writeCsv(csv, "10.0.0.0/8,PT,Lisboa");
+        assertTrue(csv.setLastModified(2000000000L));
+        enrich.checkForUpdates();
+
+        assertEquals("PT", enrich.getLocation("10.0.0.1")[0]);
+        assertTrue(new File(csv.getPath() + ".bin").exists());
+    }
+
+    @Test
+    public void rejectsTruncatedDatabases() throws IOException {
+        File csv = writeCsv(File.createTempFile("geoip", ".csv"),
+                "10.0.0.0/8,ES,Malaga",
+                "192.168.1.0,192.168.1.255,US,Springfield");
+        File database = new File(csv.getPath() + ".bin");
+        GeoIpDatabase.compile(csv, database);
+        assertEquals(2, GeoIpDatabase.open(database).getV4Count());
+
+        // The compilation doesn't leave temporary files
+        File[] leftovers = csv.getParentFile().listFiles();
+        for (File file : leftovers) {
+            assertFalse(file.getName().startsWith(database.getName() + ".") && file.getName().endsWith(".tmp"));
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(database, "rw")) {
+            file.setLength(file.length() - 4);
+        }
+
+        try {
+            GeoIpDatabase.open(database);
+            fail("The truncated database was opened");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("out of its bounds"));
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(database, "rw")) {
+            file.setLength(40);
+        }
+
+        try {
+            GeoIpDatabase.open(database);
+            fail("The truncated database was opened");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("truncated"));
+        }
+    }
+}
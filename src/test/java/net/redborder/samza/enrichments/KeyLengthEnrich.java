@@ -0,0 +1,21 @@
+package net.redborder.samza.enrichments;
+
+import net.redborder.samza.store.StoreManager;
+
+import java.util.Map;
+
+public class KeyLengthEnrich extends DeltaEnrich {
+
+    public KeyLengthEnrich(StoreManager storeManager) {
+        super(storeManager);
+    }
+
+    @Override
+    public void enrichInto(Map<String, Object> message, Map<String, Object> sink) {
+        Object key = message.get("KEY");
+
+        if (key != null) {
+            sink.put("KEY_LENGTH", key.toString().length());
+        }
+    }
+}
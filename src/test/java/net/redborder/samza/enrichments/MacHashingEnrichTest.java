@@ -0,0 +1,91 @@
+package net.redborder.samza.enrichments;
+
+import net.redborder.samza.util.Hashing;
+import org.apache.samza.config.ConfigException;
+import org.apache.samza.config.MapConfig;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MacHashingEnrichTest {
+    private static final long K0 = 0x0706050403020100L;
+    private static final long K1 = 0x0f0e0d0c0b0a0908L;
+
+    private MacHashingEnrich createEnrich(String salt) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.enrichments.types.mac_hashing.salt", salt);
+        properties.put("redborder.enrichments.types.mac_hashing.salt.tenant_b", "other secret");
+        properties.put("redborder.enrichments.types.mac_hashing.fields", "client_mac,wireless_station");
+        return new MacHashingEnrich("mac_hashing", null, new MapConfig(properties));
+    }
+
+    @Test
+    public void matchesTheSipHashVectors() {
+        assertEquals(0x93f5f5799a932462L, Hashing.sipHash24(K0, K1, 0x0706050403020100L));
+        assertEquals(0x726fdb47dd0e0e31L, Hashing.sipHash24(K0, K1, ""));
+        assertEquals(0x93f5f5799a932462L, Hashing.sipHash24(K0, K1, "\u0100\u0302\u0504\u0706"));
+    }
+
+    @Test
+    public void pseudonymizesTheMacs() {
+        MacHashingEnrich enrich = createEnrich("secret");
+        String pseudonym = enrich.getPseudonym("00:1b:c5:01:23:45", null);
+
+        assertTrue(pseudonym.matches("[0-9a-f]{2}(:[0-9a-f]{2}){5}"));
+        // Locally administered and unicast
+        assertEquals(0x02, Integer.parseInt(pseudonym.substring(0, 2), 16) & 0x03);
+
+        // The same MAC gets the same pseudonym with any format, and it is cached
+        assertSame(pseudonym, enrich.getPseudonym("001B.C501.2345", null));
+        assertEquals(pseudonym, createEnrich("secret").getPseudonym("00-1b-c5-01-23-45", null));
+
+        assertNotEquals(pseudonym, enrich.getPseudonym("00:1b:c5:01:23:46", null));
+        assertNotEquals(pseudonym, createEnrich("another").getPseudonym("00:1b:c5:01:23:45", null));
+        assertNull(enrich.getPseudonym("not a mac", null));
+    }
+
+    @Test
+    public void usesAKeyPerNamespace() {
+        MacHashingEnrich enrich = createEnrich("secret");
+        String mac = "00:1b:c5:01:23:45";
+
+        String tenantA = enrich.getPseudonym(mac, "tenant_a");
+        String tenantB = enrich.getPseudonym(mac, "tenant_b");
+
+        assertNotEquals(enrich.getPseudonym(mac, null), tenantA);
+        assertNotEquals(tenantA, tenantB);
+        assertEquals(tenantA, enrich.getPseudonym(mac, "tenant_a"));
+        assertEquals(tenantB, createEnrich("changed").getPseudonym(mac, "tenant_b"));
+    }
+
+    @Test
+    public void enrichesTheMessage() {
+        MacHashingEnrich enrich = createEnrich("secret");
+        Map<String, Object> message = new HashMap<>();
+        message.put("client_mac", "00:1b:c5:01:23:45");
+        message.put("wireless_station", "not a mac");
+        message.put("namespace_uuid", "tenant_a");
+
+        Map<String, Object> sink = new HashMap<>();
+        enrich.enrichInto(message, sink);
+        assertEquals(1, sink.size());
+        assertEquals(enrich.getPseudonym("00:1b:c5:01:23:45", "tenant_a"), sink.get("client_mac"));
+
+        Map<String, Object> enriched = enrich.enrich(message);
+        assertEquals("not a mac", enriched.get("wireless_station"));
+        assertFalse("00:1b:c5:01:23:45".equals(enriched.get("client_mac")));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void requiresASalt() {
+        new MacHashingEnrich("mac_hashing", null, new MapConfig(new HashMap<String, String>()));
+    }
+}
@@ -0,0 +1,65 @@
+package net.redborder.samza.enrichments;
+
+import org.apache.samza.config.MapConfig;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class MacVendorEnrichTest {
+
+    private MacVendorEnrich createEnrich() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.enrichments.types.mac_vendor.file", "src/test/resources/mac_vendors");
+        return new MacVendorEnrich("mac_vendor", null, new MapConfig(properties));
+    }
+
+    @Test
+    public void parsesMacs() {
+        assertEquals(0x001BC5012345L, MacVendorEnrich.parseMac("00:1b:c5:01:23:45"));
+        assertEquals(0x001BC5012345L, MacVendorEnrich.parseMac("00-1B-C5-01-23-45"));
+        assertEquals(0x001BC5012345L, MacVendorEnrich.parseMac("001b.c501.2345"));
+        assertEquals(0x001BC5012345L, MacVendorEnrich.parseMac("001BC5012345"));
+        assertEquals(-1L, MacVendorEnrich.parseMac("00:1b:c5:01:23"));
+        assertEquals(-1L, MacVendorEnrich.parseMac("00:1b:c5:01:23:45:67"));
+        assertEquals(-1L, MacVendorEnrich.parseMac("00:1b:c5:01:23:4g"));
+        assertEquals(-1L, MacVendorEnrich.parseMac(""));
+    }
+
+    @Test
+    public void findsTheLongestPrefix() {
+        MacVendorEnrich enrich = createEnrich();
+
+        assertEquals("Cisco Systems, Inc", enrich.getVendor("00:00:0c:12:34:56"));
+        assertEquals("Converging Systems Inc.", enrich.getVendor("00:1b:c5:00:0f:ff"));
+        assertEquals("OpenRB.com, Direct SIA", enrich.getVendor("00:1b:c5:01:00:01"));
+        assertEquals("IEEE Registration Authority", enrich.getVendor("00:1b:c5:02:00:01"));
+        assertEquals("IEEE Registration Authority", enrich.getVendor("70:b3:d5:01:23:45"));
+        assertNull(enrich.getVendor("70:b3:d5:11:23:45"));
+        assertNull(enrich.getVendor("00:00:00:00:00:00"));
+        assertNull(enrich.getVendor("not a mac"));
+
+        // The vendor names are shared
+        assertSame(enrich.getVendor("00:00:0c:12:34:56"), enrich.getVendor("fc:fb:fb:12:34:56"));
+    }
+
+    @Test
+    public void enrichesTheMessage() {
+        MacVendorEnrich enrich = createEnrich();
+        Map<String, Object> message = new HashMap<>();
+        message.put("client_mac", "00:00:0c:12:34:56");
+
+        Map<String, Object> sink = new HashMap<>();
+        enrich.enrichInto(message, sink);
+        assertEquals(1, sink.size());
+        assertEquals("Cisco Systems, Inc", sink.get("client_mac_vendor"));
+
+        message.put("client_mac", "ff:ff:ff:ff:ff:ff");
+        assertFalse(enrich.enrich(message).containsKey("client_mac_vendor"));
+    }
+}
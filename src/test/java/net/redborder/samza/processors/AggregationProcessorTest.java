@@ -0,0 +1,144 @@
+package net.redborder.samza.processors;
+
+import net.redborder.samza.enrichments.EnrichManager;
+import net.redborder.samza.util.testing.MockMessageCollector;
+import net.redborder.samza.util.testing.MockTaskContext;
+import org.apache.samza.config.ConfigException;
+import org.apache.samza.config.MapConfig;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AggregationProcessorTest {
+
+    private AggregationProcessor createProcessor(long window, long slide) {
+        return createProcessor(window, slide, 60000);
+    }
+
+    private AggregationProcessor createProcessor(long window, long slide, long skew) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.processors.types.flow_agg.skew.ms", String.valueOf(skew));
+        properties.put("redborder.processors.types.flow_agg.output", "kafka.rb_flow_agg");
+        properties.put("redborder.processors.types.flow_agg.dimensions", "sensor_name");
+        properties.put("redborder.processors.types.flow_agg.aggregations", "count,sum:bytes,min:bytes,max:bytes,distinct:client_mac:clients");
+        properties.put("redborder.processors.types.flow_agg.window.ms", String.valueOf(window));
+        properties.put("redborder.processors.types.flow_agg.slide.ms", String.valueOf(slide));
+
+        return new AggregationProcessor("flow_agg", null, new EnrichManager(), new MapConfig(properties), new MockTaskContext());
+    }
+
+    private Map<String, Object> flow(long timestamp, String sensor, String mac, long bytes) {
+        Map<String, Object> message = new HashMap<>();
+        message.put("timestamp", timestamp);
+        message.put("sensor_name", sensor);
+        message.put("client_mac", mac);
+        message.put("bytes", bytes);
+        return message;
+    }
+
+    private Map<String, Object> find(List<Map<String, Object>> result, long timestamp, String sensor) {
+        for (Map<String, Object> message : result) {
+            if (message.get("timestamp").equals(timestamp) && message.get("sensor_name").equals(sensor)) {
+                return message;
+            }
+        }
+
+        return null;
+    }
+
+    @Test
+    public void aggregatesTumblingWindows() {
+        AggregationProcessor processor = createProcessor(60000, 60000);
+        MockMessageCollector collector = new MockMessageCollector();
+
+        processor.process(flow(60, "A", "00:00:00:00:00:01", 10), collector);
+        processor.process(flow(70, "A", "00:00:00:00:00:01", 30), collector);
+        processor.process(flow(80, "A", "00:00:00:00:00:02", 20), collector);
+        processor.process(flow(90, "B", "00:00:00:00:00:03", 5), collector);
+
+        processor.window(collector);
+        assertTrue(collector.getResult().isEmpty());
+
+        processor.process(flow(130, "A", "00:00:00:00:00:01", 1), collector);
+        processor.window(collector);
+
+        List<Map<String, Object>> result = collector.getResult();
+        assertEquals(2, result.size());
+
+        Map<String, Object> sensorA = find(result, 60L, "A");
+        assertEquals(3L, sensorA.get("count"));
+        assertEquals(60L, sensorA.get("sum_bytes"));
+        assertEquals(10L, sensorA.get("min_bytes"));
+        assertEquals(30L, sensorA.get("max_bytes"));
+        assertEquals(2L, sensorA.get("clients"));
+
+        Map<String, Object> sensorB = find(result, 60L, "B");
+        assertEquals(1L, sensorB.get("count"));
+        assertEquals(5L, sensorB.get("sum_bytes"));
+    }
+
+    @Test
+    public void aggregatesSlidingWindows() {
+        AggregationProcessor processor = createProcessor(60000, 30000);
+        MockMessageCollector collector = new MockMessageCollector();
+
+        processor.process(flow(70, "A", "00:00:00:00:00:01", 10), collector);
+        processor.process(flow(100, "A", "00:00:00:00:00:01", 10), collector);
+        processor.process(flow(200, "A", "00:00:00:00:00:01", 10), collector);
+        processor.window(collector);
+
+        List<Map<String, Object>> result = collector.getResult();
+        assertEquals(1L, find(result, 30L, "A").get("count"));
+        assertEquals(2L, find(result, 60L, "A").get("count"));
+        assertEquals(1L, find(result, 90L, "A").get("count"));
+    }
+
+    @Test
+    public void dropsMessagesOfEmittedWindows() {
+        AggregationProcessor processor = createProcessor(60000, 60000);
+        MockMessageCollector collector = new MockMessageCollector();
+
+        processor.process(flow(60, "A", "00:00:00:00:00:01", 10), collector);
+        processor.process(flow(130, "A", "00:00:00:00:00:01", 10), collector);
+        processor.window(collector);
+        assertEquals(1, collector.getResult().size());
+
+        // The window of 60 has been emitted, so it isn't created again
+        processor.process(flow(70, "A", "00:00:00:00:00:01", 10), collector);
+        assertEquals(1L, processor.getLateMessages());
+
+        processor.process(flow(200, "A", "00:00:00:00:00:01", 10), collector);
+        processor.window(collector);
+        List<Map<String, Object>> result = collector.getResult();
+        assertEquals(1, result.size());
+        assertEquals(1L, find(result, 120L, "A").get("count"));
+    }
+
+    @Test
+    public void limitsTheTimeOfFutureMessages() {
+        AggregationProcessor processor = createProcessor(60000, 60000, 0);
+        MockMessageCollector collector = new MockMessageCollector();
+        long now = System.currentTimeMillis() / 1000L;
+
+        processor.process(flow(now, "A", "00:00:00:00:00:01", 10), collector);
+        processor.process(flow(now + 86400, "A", "00:00:00:00:00:01", 10), collector);
+        processor.window(collector);
+
+        // The open window of the current time isn't closed by the future message
+        assertTrue(collector.getResult().isEmpty());
+        processor.process(flow(now, "A", "00:00:00:00:00:02", 10), collector);
+        assertEquals(0L, processor.getLateMessages());
+    }
+
+    @Test(expected = ConfigException.class)
+    public void failsWithAnUnknownOperation() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.processors.types.flow_agg.output", "kafka.rb_flow_agg");
+        properties.put("redborder.processors.types.flow_agg.aggregations", "count,avg:bytes");
+
+        new AggregationProcessor("flow_agg", null, new EnrichManager(), new MapConfig(properties), new MockTaskContext());
+    }
+}
@@ -0,0 +1,188 @@
+package net.redborder.samza.processors;
+
+import net.redborder.samza.enrichments.EnrichManager;
+import net.redborder.samza.util.testing.MockMessageCollector;
+import net.redborder.samza.util.testing.MockTaskContext;
+import org.apache.samza.config.ConfigException;
+import org.apache.samza.config.MapConfig;
+import org.apache.samza.task.TaskContext;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JoinProcessorTest {
+
+    private Map<String, String> properties(long holdback) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.processors.types.loc_join_build.role", "build");
+        properties.put("redborder.processors.types.loc_join_build.store", "join");
+        properties.put("redborder.processors.types.loc_join_build.keys", "client_mac");
+        properties.put("redborder.processors.types.loc_join_build.fields", "campus,building");
+        properties.put("redborder.processors.types.loc_join_build.ttl.ms", "300000");
+        properties.put("redborder.processors.types.flow_loc_join.role", "probe");
+        properties.put("redborder.processors.types.flow_loc_join.store", "join");
+        properties.put("redborder.processors.types.flow_loc_join.keys", "client_mac");
+        properties.put("redborder.processors.types.flow_loc_join.ttl.ms", "300000");
+        properties.put("redborder.processors.types.flow_loc_join.output", "kafka.rb_flow_post");
+        properties.put("redborder.processors.types.flow_loc_join.holdback.ms", String.valueOf(holdback));
+        properties.put("redborder.processors.types.flow_loc_join.holdback.store", "join_holdback");
+        return properties;
+    }
+
+    private JoinProcessor create(String name, Map<String, String> properties, TaskContext context) {
+        return new JoinProcessor(name, null, new EnrichManager(), new MapConfig(properties), context);
+    }
+
+    private Map<String, Object> message(long timestamp, String mac, String... fields) {
+        Map<String, Object> message = new HashMap<>();
+        message.put("timestamp", timestamp);
+        message.put("client_mac", mac);
+
+        for (int i = 0; i < fields.length; i += 2) {
+            message.put(fields[i], fields[i + 1]);
+        }
+
+        return message;
+    }
+
+    @Test
+    public void joinsWithTheLatestBuildMessage() {
+        TaskContext context = new MockTaskContext();
+        Map<String, String> properties = properties(0);
+        JoinProcessor build = create("loc_join_build", properties, context);
+        JoinProcessor probe = create("flow_loc_join", properties, context);
+        MockMessageCollector collector = new MockMessageCollector();
+        long now = System.currentTimeMillis() / 1000;
+
+        build.process(message(now, "00:00:00:00:00:01", "campus", "A", "floor", "1"), collector);
+        build.process(message(now, "00:00:00:00:00:01", "campus", "B"), collector);
+        assertTrue(collector.getResult().isEmpty());
+
+        probe.process(message(now + 10, "00:00:00:00:00:01", "bytes", "100"), collector);
+        probe.process(message(now + 10, "00:00:00:00:00:02", "bytes", "200"), collector);
+
+        List<Map<String, Object>> result = collector.getResult();
+        assertEquals(2, result.size());
+        assertEquals("B", result.get(0).get("campus"));
+        assertEquals("100", result.get(0).get("bytes"));
+        assertEquals(now + 10, result.get(0).get("timestamp"));
+        assertNull(result.get(0).get("floor"));
+        assertNull(result.get(1).get("campus"));
+    }
+
+    @Test
+    public void ignoresBuildMessagesOutsideTheTtl() {
+        TaskContext context = new MockTaskContext();
+        Map<String, String> properties = properties(0);
+        JoinProcessor build = create("loc_join_build", properties, context);
+        JoinProcessor probe = create("flow_loc_join", properties, context);
+        MockMessageCollector collector = new MockMessageCollector();
+        long now = System.currentTimeMillis() / 1000;
+
+        build.process(message(now - 600, "00:00:00:00:00:01", "campus", "A"), collector);
+        probe.process(message(now, "00:00:00:00:00:01"), collector);
+        assertNull(collector.getResult().get(0).get("campus"));
+
+        // The expired keys are removed from the store on the window
+        build.window(collector);
+        build.process(message(now, "00:00:00:00:00:02", "campus", "B"), collector);
+        build.window(collector);
+        probe.process(message(now, "00:00:00:00:00:02"), collector);
+        assertEquals("B", collector.getResult().get(0).get("campus"));
+    }
+
+    @Test
+    public void expiresOnTheTimeOfTheMessages() {
+        TaskContext context = new MockTaskContext();
+        Map<String, String> properties = properties(0);
+        JoinProcessor build = create("loc_join_build", properties, context);
+        JoinProcessor probe = create("flow_loc_join", properties, context);
+        MockMessageCollector collector = new MockMessageCollector();
+        long old = System.currentTimeMillis() / 1000 - 86400;
+
+        // Replayed messages of a day ago aren't expired by the clock
+        build.process(message(old, "00:00:00:00:00:01", "campus", "A"), collector);
+        build.window(collector);
+        probe.process(message(old + 10, "00:00:00:00:00:01"), collector);
+        assertEquals("A", collector.getResult().get(0).get("campus"));
+
+        build.process(message(old + 600, "00:00:00:00:00:02", "campus", "B"), collector);
+        build.window(collector);
+        probe.process(message(old + 10, "00:00:00:00:00:01"), collector);
+        assertNull(collector.getResult().get(0).get("campus"));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void requiresTheHoldbackStore() {
+        Map<String, String> properties = properties(60000);
+        properties.remove("redborder.processors.types.flow_loc_join.holdback.store");
+        create("flow_loc_join", properties, new MockTaskContext());
+    }
+
+    @Test
+    public void holdsBackMessagesUntilTheirBuildMessageArrives() {
+        TaskContext context = new MockTaskContext();
+        Map<String, String> properties = properties(60000);
+        JoinProcessor build = create("loc_join_build", properties, context);
+        JoinProcessor probe = create("flow_loc_join", properties, context);
+        MockMessageCollector collector = new MockMessageCollector();
+        long now = System.currentTimeMillis() / 1000;
+
+        probe.process(message(now, "00:00:00:00:00:01", "bytes", "100"), collector);
+        probe.window(collector);
+        assertTrue(collector.getResult().isEmpty());
+
+        build.process(message(now + 1, "00:00:00:00:00:01", "campus", "A"), collector);
+        probe.window(collector);
+
+        List<Map<String, Object>> result = collector.getResult();
+        assertEquals(1, result.size());
+        assertEquals("A", result.get(0).get("campus"));
+        assertEquals("100", result.get(0).get("bytes"));
+    }
+
+    @Test
+    public void restoresHeldMessages() {
+        TaskContext context = new MockTaskContext();
+        Map<String, String> properties = properties(60000);
+        JoinProcessor probe = create("flow_loc_join", properties, context);
+        MockMessageCollector collector = new MockMessageCollector();
+        long now = System.currentTimeMillis() / 1000;
+
+        probe.process(message(now, "00:00:00:00:00:01", "bytes", "100"), collector);
+        probe.process(message(now, "00:00:00:00:00:02", "bytes", "200"), collector);
+
+        // A new instance over the same stores, as after a restart
+        JoinProcessor restored = create("flow_loc_join", properties, context);
+        JoinProcessor build = create("loc_join_build", properties, context);
+        build.process(message(now, "00:00:00:00:00:02", "campus", "B"), collector);
+        restored.window(collector);
+
+        List<Map<String, Object>> result = collector.getResult();
+        assertEquals(1, result.size());
+        assertEquals("200", result.get(0).get("bytes"));
+        assertEquals("B", result.get(0).get("campus"));
+
+        build.process(message(now, "00:00:00:00:00:01", "campus", "A"), collector);
+        restored.window(collector);
+        assertEquals("A", collector.getResult().get(0).get("campus"));
+    }
+
+    @Test
+    public void sendsHeldMessagesWithoutJoinAfterTheirWait() throws InterruptedException {
+        JoinProcessor probe = create("flow_loc_join", properties(1), new MockTaskContext());
+        MockMessageCollector collector = new MockMessageCollector();
+
+        probe.process(message(System.currentTimeMillis() / 1000, "00:00:00:00:00:01", "bytes", "100"), collector);
+        Thread.sleep(5);
+        probe.window(collector);
+
+        List<Map<String, Object>> result = collector.getResult();
+        assertEquals(1, result.size());
+        assertNull(result.get(0).get("campus"));
+    }
+}
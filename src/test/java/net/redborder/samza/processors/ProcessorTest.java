@@ -0,0 +1,86 @@
+package net.redborder.samza.processors;
+
+import net.redborder.samza.enrichments.MacHashingEnrich;
+import net.redborder.samza.util.testing.MockTaskContext;
+import org.apache.samza.config.ConfigException;
+import org.apache.samza.config.MapConfig;
+import org.apache.samza.task.TaskContext;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ProcessorTest {
+
+    private MapConfig createConfig() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.processors.rb_agg", "agg");
+        properties.put("redborder.processors.types.agg.class", AggregationProcessor.class.getName());
+        properties.put("redborder.processors.types.agg.output", "kafka.rb_agg_out");
+        return new MapConfig(properties);
+    }
+
+    @Test
+    public void createsTheProcessorsOfEachTask() {
+        MapConfig config = createConfig();
+        TaskContext task1 = new MockTaskContext();
+        TaskContext task2 = new MockTaskContext();
+
+        List<Processor> processors1 = Processor.getProcessors("rb_agg", config, task1, null);
+        List<Processor> processors2 = Processor.getProcessors("rb_agg", config, task2, null);
+
+        assertEquals(1, processors1.size());
+        assertSame(processors1, Processor.getProcessors("rb_agg", config, task1, null));
+        assertNotSame(processors1.get(0), processors2.get(0));
+        assertEquals(processors1, Processor.getAllProcessors(task1));
+        assertEquals(processors2, Processor.getAllProcessors(task2));
+
+        Processor.removeProcessors(task1);
+        assertTrue(Processor.getAllProcessors(task1).isEmpty());
+        assertEquals(1, Processor.getAllProcessors(task2).size());
+        Processor.removeProcessors(task2);
+    }
+
+    @Test(expected = ConfigException.class)
+    public void failsWhenAnEnrichmentIsMisconfigured() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.processors.rb_hashed", "hashed");
+        properties.put("redborder.processors.types.hashed.class", AggregationProcessor.class.getName());
+        properties.put("redborder.processors.types.hashed.output", "kafka.rb_hashed_out");
+        properties.put("redborder.enrichments.processors.hashed", "mac_hashing");
+        properties.put("redborder.enrichments.types.mac_hashing.class", MacHashingEnrich.class.getName());
+
+        Processor.getProcessors("rb_hashed", new MapConfig(properties), new MockTaskContext(), null);
+    }
+
+    @Test(expected = ConfigException.class)
+    public void failsWithAnUnknownDegradation() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.processors.rb_degraded", "degraded");
+        properties.put("redborder.processors.types.degraded.class", AggregationProcessor.class.getName());
+        properties.put("redborder.processors.types.degraded.output", "kafka.rb_degraded_out");
+        properties.put("redborder.processors.types.degraded.degradation", "sampled");
+
+        Processor.getProcessors("rb_degraded", new MapConfig(properties), new MockTaskContext(), null);
+    }
+
+    @Test(expected = ConfigException.class)
+    public void failsWhenAProcessorIsMisconfigured() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.processors.rb_held", "held_join");
+        properties.put("redborder.processors.types.held_join.class", JoinProcessor.class.getName());
+        properties.put("redborder.processors.types.held_join.role", "probe");
+        properties.put("redborder.processors.types.held_join.store", "held_join");
+        properties.put("redborder.processors.types.held_join.keys", "client_mac");
+        properties.put("redborder.processors.types.held_join.output", "kafka.rb_held_out");
+        properties.put("redborder.processors.types.held_join.holdback.ms", "5000");
+
+        Processor.getProcessors("rb_held", new MapConfig(properties), new MockTaskContext(), null);
+    }
+}
@@ -0,0 +1,140 @@
+package net.redborder.samza.processors;
+
+import net.redborder.samza.enrichments.EnrichManager;
+import net.redborder.samza.store.StoreManager;
+import net.redborder.samza.util.testing.MockMessageCollector;
+import net.redborder.samza.util.testing.MockTaskContext;
+import org.apache.samza.config.ConfigException;
+import org.apache.samza.config.MapConfig;
+import org.apache.samza.storage.kv.KeyValueStore;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class StoreWriterProcessorTest {
+
+    // The stores are shared by all the store managers, so each test uses its own one
+    private StoreWriterProcessor createProcessor(String store, int maxBuffered) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("task.commit.ms", "-1");
+        properties.put("task.window.ms", "1000");
+        properties.put("redborder.stores", store);
+        properties.put("redborder.stores." + store + ".keys", "client_mac");
+        properties.put("redborder.processors.types.loc_writer.store", store);
+        properties.put("redborder.processors.types.loc_writer.fields", "campus,floor");
+        properties.put("redborder.processors.types.loc_writer.buffer.max", String.valueOf(maxBuffered));
+
+        MapConfig config = new MapConfig(properties);
+        StoreManager storeManager = new StoreManager(config, new MockTaskContext());
+        return new StoreWriterProcessor("loc_writer", storeManager, new EnrichManager(), config, new MockTaskContext());
+    }
+
+    private Map<String, Object> location(String mac, String campus, String floor) {
+        Map<String, Object> message = new HashMap<>();
+        message.put("client_mac", mac);
+        message.put("campus", campus);
+        message.put("floor", floor);
+        message.put("timestamp", System.currentTimeMillis() / 1000);
+        return message;
+    }
+
+    @Test
+    public void coalescesWritesUntilTheWindow() {
+        StoreWriterProcessor processor = createProcessor("writer_coalesce", 1000);
+        KeyValueStore<String, Map<String, Object>> store = processor.storeManager.getStore("writer_coalesce");
+        MockMessageCollector collector = new MockMessageCollector();
+
+        processor.process(location("00:00:00:00:00:01", "A", "1"), collector);
+        processor.process(location("00:00:00:00:00:01", "A", "2"), collector);
+        processor.process(location("00:00:00:00:00:02", "B", "1"), collector);
+        assertNull(store.get("00:00:00:00:00:01"));
+        assertEquals(2, processor.buffered());
+
+        processor.window(collector);
+        assertEquals("2", store.get("00:00:00:00:00:01").get("floor"));
+        assertEquals("B", store.get("00:00:00:00:00:02").get("campus"));
+        assertNull(store.get("00:00:00:00:00:02").get("timestamp"));
+        assertEquals(2L, processor.writes());
+    }
+
+    @Test
+    public void skipsUnchangedValues() {
+        StoreWriterProcessor processor = createProcessor("writer_unchanged", 1000);
+        MockMessageCollector collector = new MockMessageCollector();
+
+        processor.process(location("00:00:00:00:00:01", "A", "1"), collector);
+        processor.window(collector);
+        processor.process(location("00:00:00:00:00:01", "A", "1"), collector);
+        processor.process(location("00:00:00:00:00:02", "B", "1"), collector);
+        processor.window(collector);
+
+        // Changed and then restored inside the same window
+        processor.process(location("00:00:00:00:00:01", "A", "2"), collector);
+        processor.process(location("00:00:00:00:00:01", "A", "1"), collector);
+        processor.window(collector);
+
+        assertEquals(2L, processor.writes());
+        assertEquals(2L, processor.unchanged());
+    }
+
+    @Test
+    public void comparesWithTheStoredValues() {
+        StoreWriterProcessor processor = createProcessor("writer_shared", 1000);
+        KeyValueStore<String, Map<String, Object>> store = processor.storeManager.getStore("writer_shared");
+        MockMessageCollector collector = new MockMessageCollector();
+
+        processor.process(location("00:00:00:00:00:01", "A", "1"), collector);
+        processor.window(collector);
+
+        // Another writer changes the entry, so the same value is written again
+        Map<String, Object> other = new HashMap<>();
+        other.put("campus", "B");
+        store.put("00:00:00:00:00:01", other);
+
+        processor.process(location("00:00:00:00:00:01", "A", "1"), collector);
+        processor.window(collector);
+
+        assertEquals("A", store.get("00:00:00:00:00:01").get("campus"));
+        assertEquals(2L, processor.writes());
+        assertEquals(0L, processor.unchanged());
+    }
+
+    @Test
+    public void flushesWhenTheBufferIsFull() {
+        StoreWriterProcessor processor = createProcessor("writer_full", 2);
+        KeyValueStore<String, Map<String, Object>> store = processor.storeManager.getStore("writer_full");
+        MockMessageCollector collector = new MockMessageCollector();
+
+        processor.process(location("00:00:00:00:00:01", "A", "1"), collector);
+        processor.process(location("00:00:00:00:00:02", "A", "1"), collector);
+        assertEquals(0, processor.buffered());
+        assertEquals("A", store.get("00:00:00:00:00:02").get("campus"));
+    }
+
+    @Test
+    public void flushesOnClose() {
+        StoreWriterProcessor processor = createProcessor("writer_close", 1000);
+        KeyValueStore<String, Map<String, Object>> store = processor.storeManager.getStore("writer_close");
+
+        processor.process(location("00:00:00:00:00:01", "A", "1"), new MockMessageCollector());
+        processor.close();
+        assertEquals(0, processor.buffered());
+        assertEquals("A", store.get("00:00:00:00:00:01").get("campus"));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void requiresTheWindowCommits() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.stores", "writer_periodic");
+        properties.put("redborder.stores.writer_periodic.keys", "client_mac");
+        properties.put("redborder.processors.types.loc_writer.store", "writer_periodic");
+
+        MapConfig config = new MapConfig(properties);
+        StoreManager storeManager = new StoreManager(config, new MockTaskContext());
+        new StoreWriterProcessor("loc_writer", storeManager, new EnrichManager(), config, new MockTaskContext());
+    }
+}
@@ -0,0 +1,65 @@
+package net.redborder.samza.recorder;
+
+import org.apache.samza.config.MapConfig;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventRecorderTest {
+
+    private void configure(boolean enabled, int size) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.recorder.enabled", String.valueOf(enabled));
+        properties.put("redborder.recorder.size", String.valueOf(size));
+        properties.put("redborder.recorder.threshold.us", "0");
+        properties.put("redborder.recorder.threshold.window_refresh.us", "60000000");
+        properties.put("redborder.recorder.jmx", "false");
+        EventRecorder.configure(new MapConfig(properties));
+    }
+
+    @Test
+    public void doesNothingWhileDisabled() {
+        configure(false, 10);
+
+        long start = EventRecorder.start();
+        EventRecorder.end(EventRecorder.Type.STORE_GET, "location", true, 3, start);
+
+        assertEquals(0L, start);
+        assertTrue(EventRecorder.events().isEmpty());
+    }
+
+    @Test
+    public void recordsTheCallsOverTheThreshold() {
+        configure(true, 10);
+
+        EventRecorder.end(EventRecorder.Type.STORE_GET, "location", true, 3, EventRecorder.start());
+        EventRecorder.end(EventRecorder.Type.WINDOW_REFRESH, "postgresql", true, 100, EventRecorder.start());
+
+        List<EventRecorder.Event> events = EventRecorder.events();
+        assertEquals(1, events.size());
+        assertEquals(EventRecorder.Type.STORE_GET, events.get(0).type);
+        assertEquals("location", events.get(0).name);
+        assertEquals(3L, events.get(0).size);
+        assertTrue(EventRecorder.getInstance().dump().contains("STORE_GET location hit size=3"));
+    }
+
+    @Test
+    public void keepsTheLatestEvents() {
+        configure(true, 3);
+
+        for (int i = 0; i < 5; i++) {
+            EventRecorder.end(EventRecorder.Type.EXTENSION_GET, "aerospike" + i, false, 0, EventRecorder.start());
+        }
+
+        List<EventRecorder.Event> events = EventRecorder.events();
+        assertEquals(3, events.size());
+        assertEquals("aerospike2", events.get(0).name);
+        assertEquals("aerospike4", events.get(2).name);
+        assertEquals(5L, EventRecorder.getInstance().getRecorded());
+    }
+}
@@ -0,0 +1,90 @@
+package net.redborder.samza.store;
+
+import net.redborder.samza.util.testing.MockKeyValueStore;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CompositeKeyTest {
+
+    @Test
+    public void doesNotCollide() {
+        assertNotEquals(CompositeKey.encode("ab", "c"), CompositeKey.encode("a", "bc"));
+        assertNotEquals(CompositeKey.encode("a\u0001", "b"), CompositeKey.encode("a", "\u0001b"));
+        assertNotEquals(CompositeKey.encode("a\u0001"), CompositeKey.encode("a", ""));
+        assertNotEquals(CompositeKey.encode("a"), CompositeKey.encode("a", ""));
+    }
+
+    @Test
+    public void keepsOrder() {
+        assertTrue(CompositeKey.encode("a", "b").compareTo(CompositeKey.encode("a", "c")) < 0);
+        assertTrue(CompositeKey.encode("a", "z").compareTo(CompositeKey.encode("ab", "a")) < 0);
+        assertTrue(CompositeKey.encode("ns", "mac").compareTo(CompositeKey.encode("ns")) < 0);
+        assertTrue(CompositeKey.encode("ns").compareTo(CompositeKey.encode("ns\u0000")) < 0);
+    }
+
+    @Test
+    public void resolvesHierarchicalLookups() {
+        MockKeyValueStore keyValueStore = new MockKeyValueStore();
+        Store store = new Store();
+        store.setKeys(Arrays.asList("namespace_uuid:client_mac", "namespace_uuid"));
+        store.setKeysEncoding("composite");
+        store.setMaxScan(16);
+        store.setStore(keyValueStore);
+
+        keyValueStore.put(CompositeKey.encode("ns1"), value("namespace"));
+        keyValueStore.put(CompositeKey.encode("ns1", "00:00:00:00:00:01"), value("client"));
+        keyValueStore.put(CompositeKey.encode("ns1", "00:00:00:00:00:03"), value("other client"));
+        keyValueStore.put(CompositeKey.encode("ns2", "00:00:00:00:00:01"), value("other namespace"));
+
+        Map<String, Object> message = new HashMap<>();
+        message.put("namespace_uuid", "ns1");
+        message.put("client_mac", "00:00:00:00:00:01");
+        assertEquals(value("client"), store.lookup(message));
+
+        message.put("client_mac", "00:00:00:00:00:02");
+        assertEquals(value("namespace"), store.lookup(message));
+
+        message.remove("client_mac");
+        assertEquals(value("namespace"), store.lookup(message));
+
+        message.put("namespace_uuid", "ns2");
+        message.put("client_mac", "00:00:00:00:00:02");
+        assertNull(store.lookup(message));
+
+        assertEquals(CompositeKey.encode("ns2", "00:00:00:00:00:02"), store.buildKey(message));
+    }
+
+    @Test
+    public void fallsBackToGetsWhenScanIsTooLong() {
+        MockKeyValueStore keyValueStore = new MockKeyValueStore();
+        Store store = new Store();
+        store.setKeys(Arrays.asList("namespace_uuid:client_mac", "namespace_uuid"));
+        store.setKeysEncoding("composite");
+        store.setMaxScan(2);
+        store.setStore(keyValueStore);
+
+        keyValueStore.put(CompositeKey.encode("ns1"), value("namespace"));
+        for (int i = 0; i < 10; i++) {
+            keyValueStore.put(CompositeKey.encode("ns1", "mac" + i), value("client" + i));
+        }
+
+        Map<String, Object> message = new HashMap<>();
+        message.put("namespace_uuid", "ns1");
+        message.put("client_mac", "mac");
+        assertEquals(value("namespace"), store.lookup(message));
+
+        message.put("client_mac", "mac7");
+        assertEquals(value("client7"), store.lookup(message));
+    }
+
+    private Map<String, Object> value(String name) {
+        Map<String, Object> value = new HashMap<>();
+        value.put("name", name);
+        return value;
+    }
+}
@@ -0,0 +1,130 @@
+package net.redborder.samza.store;
+
+import net.redborder.samza.util.testing.MockTaskContext;
+import org.apache.samza.config.ConfigException;
+import org.apache.samza.config.MapConfig;
+import org.apache.samza.storage.kv.Entry;
+import org.apache.samza.storage.kv.KeyValueIterator;
+import org.apache.samza.storage.kv.KeyValueStore;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class KeyEncoderTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private Map<String, Object> message(Object namespace, Object mac) {
+        Map<String, Object> message = new HashMap<>();
+        message.put("namespace_uuid", namespace);
+        message.put("client_mac", mac);
+        return message;
+    }
+
+    @Test
+    public void encodesLikeStringKeys() {
+        KeyEncoder encoder = new KeyEncoder();
+        String[] fields = {"namespace_uuid", "client_mac"};
+        Object[] values = {"ns", "00:00:00:00:00:01", "\u0000\u0001\u0002a", "caf\u00e9", "\u20ac\ud83d\ude00", 42L};
+
+        for (Object namespace : values) {
+            for (Object mac : values) {
+                Map<String, Object> message = message(namespace, mac);
+
+                assertArrayEquals(CompositeKey.encode(message, fields).getBytes(UTF8), encoder.encode(message, fields, true));
+                assertArrayEquals((namespace.toString() + mac).getBytes(UTF8), encoder.encode(message, fields, false));
+            }
+        }
+
+        Map<String, Object> partial = message("ns", null);
+        assertNull(encoder.encode(partial, fields, true));
+        assertArrayEquals("ns".getBytes(UTF8), encoder.encode(partial, fields, false));
+    }
+
+    @Test
+    public void looksUpByteKeys() {
+        BytesStore bytesStore = new BytesStore();
+        Store store = new Store();
+        store.setKeys(Arrays.asList("namespace_uuid:client_mac", "namespace_uuid"));
+        store.setKeysEncoding("composite");
+        store.setBytesStore(bytesStore);
+        store.setStore(new Utf8KeyValueStore(bytesStore));
+
+        Map<String, Object> value = new HashMap<>();
+        value.put("campus", "A");
+        store.getStore().put(CompositeKey.encode("ns"), value);
+
+        assertEquals(value, store.lookup(message("ns", "00:00:00:00:00:01")));
+        assertNull(store.lookup(message("other", "00:00:00:00:00:01")));
+        assertEquals(value, store.get(CompositeKey.encode("ns")));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void rejectsByteKeysWithTheObjectCache() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.stores", "bytes_cached");
+        properties.put("redborder.stores.bytes_cached.keys", "client_mac");
+        properties.put("redborder.stores.bytes_cached.keys.bytes", "true");
+        new StoreManager(new MapConfig(properties), new MockTaskContext());
+    }
+
+    // A store without the Samza object cache, which compares the serialized keys by content
+    private static class BytesStore implements KeyValueStore<byte[], Map<String, Object>> {
+        private Map<ByteBuffer, Map<String, Object>> data = new HashMap<>();
+
+        @Override
+        public Map<String, Object> get(byte[] key) {
+            return data.get(ByteBuffer.wrap(key));
+        }
+
+        @Override
+        public Map<byte[], Map<String, Object>> getAll(List<byte[]> keys) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void put(byte[] key, Map<String, Object> value) {
+            data.put(ByteBuffer.wrap(key), value);
+        }
+
+        @Override
+        public void putAll(List<Entry<byte[], Map<String, Object>>> entries) {
+            for (Entry<byte[], Map<String, Object>> entry : entries) {
+                put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        @Override
+        public void delete(byte[] key) {
+            data.remove(ByteBuffer.wrap(key));
+        }
+
+        @Override
+        public void deleteAll(List<byte[]> keys) {
+            for (byte[] key : keys) {
+                delete(key);
+            }
+        }
+
+        @Override
+        public KeyValueIterator<byte[], Map<String, Object>> range(byte[] from, byte[] to) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public KeyValueIterator<byte[], Map<String, Object>> all() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void flush() {
+        }
+    }
+}
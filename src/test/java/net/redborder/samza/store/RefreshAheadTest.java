@@ -0,0 +1,170 @@
+package net.redborder.samza.store;
+
+import net.redborder.samza.util.testing.MockKeyValueStore;
+import net.redborder.samza.util.testing.MockStoreExtension;
+import org.apache.samza.config.ConfigException;
+import org.apache.samza.config.MapConfig;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class RefreshAheadTest {
+
+    private MockStoreExtension createExtension(String rate) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.stores.extension.mock.refresh.ttl.ms", "300");
+        properties.put("redborder.stores.extension.mock.refresh.ahead", "0.5");
+        properties.put("redborder.stores.extension.mock.refresh.rate", rate);
+
+        return new MockStoreExtension("mock", new MapConfig(properties), null, new MockKeyValueStore());
+    }
+
+    private StoreExtensionKey key(String key) {
+        return new StoreExtensionKey.Builder().namespace("ns").collection("set").key(key).build();
+    }
+
+    private Map<String, Object> value(int i) {
+        Map<String, Object> value = new HashMap<>();
+        value.put("value", i);
+        return value;
+    }
+
+    private void putRemote(MockStoreExtension extension, String key, Map<String, Object> value) {
+        extension.put("ns", "set", key, value.keySet(), value.values());
+    }
+
+    // Makes the key look fetched some time ago, instead of waiting for it
+    private void age(MockStoreExtension extension, String key, long ms) {
+        extension.getRefreshAhead().onFetched(key(key).mergeKey, System.currentTimeMillis() - ms);
+    }
+
+    private void awaitFetches(MockStoreExtension extension) throws InterruptedException {
+        assertTrue(extension.getRefreshAhead().awaitFetches(5000));
+    }
+
+    @Test
+    public void refreshesStaleEntriesInBackground() throws InterruptedException {
+        MockStoreExtension extension = createExtension("100");
+        putRemote(extension, "key", value(1));
+
+        assertEquals(value(1), extension.get(key("key"), true));
+        assertEquals(1, extension.getReads());
+
+        putRemote(extension, "key", value(2));
+        assertEquals(value(1), extension.get(key("key"), true));
+        assertEquals(1, extension.getReads());
+
+        // Half the TTL later the stale value is still served, and refreshed on background
+        age(extension, "key", 170);
+        assertEquals(value(1), extension.get(key("key"), true));
+        awaitFetches(extension);
+        assertEquals(2, extension.getReads());
+
+        extension.window();
+        assertEquals(value(2), extension.get(key("key"), true));
+        assertEquals(2, extension.getReads());
+        assertEquals(1, extension.getRefreshAhead().refreshes());
+    }
+
+    @Test
+    public void expiresOldEntries() {
+        MockStoreExtension extension = createExtension("0");
+        putRemote(extension, "key", value(1));
+        extension.get(key("key"), true);
+        putRemote(extension, "key", value(2));
+
+        age(extension, "key", 350);
+        assertEquals(value(2), extension.get(key("key"), true));
+        assertEquals(2, extension.getReads());
+    }
+
+    @Test
+    public void expiresOldOffHeapEntries() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.stores.extension.mock.refresh.ttl.ms", "300");
+        properties.put("redborder.stores.extension.mock.refresh.rate", "0");
+        properties.put("redborder.stores.extension.mock.offHeapCache.maxBytes", String.valueOf(1024 * 1024));
+        properties.put("redborder.stores.extension.mock.offHeapCache.pageBytes", "4096");
+        MockStoreExtension extension = new MockStoreExtension("mock", new MapConfig(properties), null);
+
+        putRemote(extension, "key", value(1));
+        assertEquals(value(1), extension.get(key("key")));
+        putRemote(extension, "key", value(2));
+        assertEquals(value(1), extension.get(key("key")));
+
+        age(extension, "key", 350);
+        assertEquals(value(2), extension.get(key("key")));
+        assertEquals(2, extension.getReads());
+    }
+
+    @Test(expected = ConfigException.class)
+    public void requiresATtlWithTheOffHeapCache() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.stores.extension.mock.offHeapCache.maxBytes", String.valueOf(1024 * 1024));
+        new MockStoreExtension("mock", new MapConfig(properties), null);
+    }
+
+    @Test
+    public void limitsRefreshRate() throws InterruptedException {
+        MockStoreExtension extension = createExtension("1");
+
+        for (int i = 0; i < 10; i++) {
+            putRemote(extension, "key" + i, value(i));
+            extension.get(key("key" + i), true);
+            age(extension, "key" + i, 170);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            extension.get(key("key" + i), true);
+        }
+
+        awaitFetches(extension);
+        extension.window();
+        assertEquals(1, extension.getRefreshAhead().refreshes());
+        assertEquals(9, extension.getRefreshAhead().throttled());
+    }
+
+    @Test
+    public void notifiesOnlyTheChangedRefreshes() throws InterruptedException {
+        MockStoreExtension extension = createExtension("100");
+        final List<String> written = new ArrayList<>();
+        extension.setListener(new StoreListener() {
+            @Override
+            public void onWrite(String store, String key) {
+                written.add(key);
+            }
+        });
+
+        putRemote(extension, "same", value(1));
+        putRemote(extension, "changed", value(1));
+        extension.get(key("same"), true);
+        extension.get(key("changed"), true);
+        written.clear();
+        putRemote(extension, "changed", value(2));
+
+        age(extension, "same", 170);
+        age(extension, "changed", 170);
+        extension.get(key("same"), true);
+        extension.get(key("changed"), true);
+        awaitFetches(extension);
+        extension.window();
+
+        assertEquals(2, extension.getRefreshAhead().refreshes());
+        assertEquals(Collections.singletonList(key("changed").mergeKey), written);
+    }
+
+    @Test
+    public void stopsRefreshingWhenClosed() {
+        MockStoreExtension extension = createExtension("100");
+        putRemote(extension, "key", value(1));
+        extension.get(key("key"), true);
+        extension.close();
+
+        age(extension, "key", 170);
+        assertEquals(value(1), extension.get(key("key"), true));
+        assertEquals(0, extension.getRefreshAhead().pending());
+        assertEquals(1, extension.getReads());
+    }
+}
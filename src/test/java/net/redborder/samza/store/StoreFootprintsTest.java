@@ -0,0 +1,73 @@
+package net.redborder.samza.store;
+
+import net.redborder.samza.util.testing.MockKeyValueStore;
+import net.redborder.samza.util.testing.MockMetricsRegistry;
+import net.redborder.samza.util.testing.MockTaskContext;
+import org.apache.samza.config.MapConfig;
+import org.apache.samza.storage.kv.KeyValueStoreMetrics;
+import org.apache.samza.storage.kv.NullSafeKeyValueStore;
+import org.apache.samza.storage.kv.RocksDbKeyValueStore;
+import org.junit.Test;
+import org.rocksdb.FlushOptions;
+import org.rocksdb.Options;
+import org.rocksdb.WriteOptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StoreFootprintsTest {
+
+    @Test
+    public void reportsTheCacheSizes() {
+        // The stores are shared by all the store managers, so this test uses its own one
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.stores", "footprint_test");
+        properties.put("redborder.stores.footprint_test.keys", "client_mac");
+        properties.put("redborder.stores.footprint_test.transform.cache", "10");
+        MapConfig config = new MapConfig(properties);
+
+        StoreManager storeManager = new StoreManager(config, new MockTaskContext());
+        StoreFootprints footprints = new StoreFootprints(storeManager, config, new MockMetricsRegistry());
+        storeManager.getTransformCache("footprint_test").put("key", new HashMap<String, Object>(), new HashMap<String, Object>());
+
+        footprints.window();
+        assertEquals(Long.valueOf(1), footprints.get("store-footprint_test-transform-cache-entries"));
+
+        // The mock stores aren't RocksDB stores
+        assertNull(footprints.get("store-footprint_test-disk-bytes"));
+        assertNull(StoreFootprints.RocksDbStore.find(new ObservableKeyValueStore("footprint_test", new MockKeyValueStore(), null)));
+    }
+
+    @Test
+    public void readsTheRocksDbProperties() throws IOException {
+        File dir = Files.createTempDirectory("footprint").toFile();
+        RocksDbKeyValueStore rocksDb = new RocksDbKeyValueStore(dir, new Options().setCreateIfMissing(true),
+                new MapConfig(new HashMap<String, String>()), false, "footprint_rocksdb", new WriteOptions(),
+                new FlushOptions(), new KeyValueStoreMetrics("footprint_rocksdb", new MockMetricsRegistry()));
+
+        try {
+            for (int i = 0; i < 100; i++) {
+                rocksDb.put(("key" + i).getBytes("UTF-8"), ("value" + i).getBytes("UTF-8"));
+            }
+
+            rocksDb.flush();
+
+            // The RocksDB store is found under the Samza wrappers
+            StoreFootprints.RocksDbStore store = StoreFootprints.RocksDbStore.find(new NullSafeKeyValueStore<>(rocksDb));
+            assertNotNull(store);
+            assertEquals(Long.valueOf(100), store.property("rocksdb.estimate-num-keys"));
+            assertTrue(store.diskBytes() > 0);
+            assertNull(store.property("rocksdb.not-a-property"));
+        } finally {
+            rocksDb.close();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package net.redborder.samza.store;
+
+import net.redborder.samza.util.testing.MockStoreExtension;
+import net.redborder.samza.util.testing.MockTaskContext;
+import org.apache.samza.config.MapConfig;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class StoreManagerTest {
+
+    private Map<String, Object> value(String campus) {
+        Map<String, Object> value = new HashMap<>();
+        value.put("campus", campus);
+        return value;
+    }
+
+    // The stores and the extensions are shared by all the store managers, so each test uses its own ones
+    private Map<String, String> properties(String store, String extension) throws IOException {
+        File hotKeys = File.createTempFile("hot_keys", ".txt");
+        hotKeys.deleteOnExit();
+
+        try (Writer writer = new FileWriter(hotKeys)) {
+            writer.write("# hot clients\n");
+            writer.write("00:00:00:00:00:02\n");
+            writer.write("\n");
+            writer.write("00:00:00:00:00:09\n");
+        }
+
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.stores", store);
+        properties.put("redborder.stores." + store + ".keys", "client_mac");
+        properties.put("redborder.stores." + store + ".warmup.keys", "00:00:00:00:00:01");
+        properties.put("redborder.stores." + store + ".warmup.file", hotKeys.getPath());
+        properties.put("redborder.stores.extensions", extension);
+        properties.put("redborder.stores.extension." + extension + ".class", MockStoreExtension.class.getName());
+        properties.put("redborder.stores.extension." + extension + ".keys", "ns set key1,ns set key2");
+        properties.put("redborder.stores.extension." + extension + ".warmup", "true");
+        return properties;
+    }
+
+    private StoreManager createStoreManager(Map<String, String> properties, String store) {
+        StoreManager storeManager = new StoreManager(new MapConfig(properties), new MockTaskContext());
+        storeManager.getStore(store).put("00:00:00:00:00:01", value("A"));
+        storeManager.getStore(store).put("00:00:00:00:00:02", value("B"));
+        return storeManager;
+    }
+
+    @Test
+    public void warmsUpTheHotKeys() throws IOException {
+        Map<String, String> properties = properties("warmup_store", "warmup_extension");
+        StoreManager storeManager = createStoreManager(properties, "warmup_store");
+        MockStoreExtension extension = (MockStoreExtension) storeManager.getExtension("warmup_extension");
+        extension.put("ns", "set", "key1", value("C").keySet(), value("C").values());
+
+        // The configured key and the key of the file are found, the other key of the file isn't
+        int loaded = storeManager.warmUp(new MapConfig(properties), System.currentTimeMillis() + 60000);
+
+        assertEquals(3, loaded);
+        assertEquals(2, extension.getReads());
+    }
+
+    @Test
+    public void stopsAtTheDeadline() throws IOException {
+        Map<String, String> properties = properties("warmup_late_store", "warmup_late_extension");
+        StoreManager storeManager = createStoreManager(properties, "warmup_late_store");
+        MockStoreExtension extension = (MockStoreExtension) storeManager.getExtension("warmup_late_extension");
+
+        assertEquals(0, storeManager.warmUp(new MapConfig(properties), System.currentTimeMillis() - 1));
+        assertEquals(0, extension.getReads());
+    }
+}
@@ -0,0 +1,63 @@
+package net.redborder.samza.store;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class WindowSnapshotTest {
+
+    @Test
+    public void writesAndReadsSnapshot() throws IOException {
+        File file = File.createTempFile("window", ".snapshot");
+        file.deleteOnExit();
+
+        Map<String, Map<String, Object>> data = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            Map<String, Object> value = new HashMap<>();
+            value.put("sensor_name", "sensor" + i);
+            value.put("sensor_id", i);
+            data.put("AP" + i, value);
+        }
+
+        WindowSnapshot snapshot = WindowSnapshot.write(file, data);
+
+        assertEquals(100, snapshot.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(data.get("AP" + i), snapshot.get("AP" + i));
+        }
+        assertNull(snapshot.get("AP100"));
+        assertNull(snapshot.get(""));
+
+        WindowSnapshot reopened = WindowSnapshot.open(file);
+        assertEquals(data.get("AP42"), reopened.get("AP42"));
+        assertEquals(data, reopened.entries());
+    }
+
+    @Test
+    public void replacesSnapshot() throws IOException {
+        File file = File.createTempFile("window", ".snapshot");
+        file.deleteOnExit();
+
+        Map<String, Object> oldValue = new HashMap<>();
+        oldValue.put("sensor_name", "old");
+        Map<String, Map<String, Object>> oldData = new HashMap<>();
+        oldData.put("AP", oldValue);
+
+        Map<String, Object> newValue = new HashMap<>();
+        newValue.put("sensor_name", "new");
+        Map<String, Map<String, Object>> newData = new HashMap<>();
+        newData.put("AP", newValue);
+
+        WindowSnapshot oldSnapshot = WindowSnapshot.write(file, oldData);
+        WindowSnapshot newSnapshot = WindowSnapshot.write(file, newData);
+
+        assertEquals(oldValue, oldSnapshot.get("AP"));
+        assertEquals(newValue, newSnapshot.get("AP"));
+    }
+}
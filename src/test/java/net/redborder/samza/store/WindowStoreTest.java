@@ -0,0 +1,133 @@
+package net.redborder.samza.store;
+
+import net.redborder.samza.util.testing.MockKeyValueStore;
+import org.apache.samza.config.Config;
+import org.apache.samza.config.ConfigException;
+import org.apache.samza.config.MapConfig;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WindowStoreTest {
+
+    private static class VersionedWindowStore extends WindowStore {
+        private Integer version;
+        private int updates = 0;
+        private boolean failing = false;
+
+        VersionedWindowStore(Config config, Integer version) {
+            super("sensors", config, new MockKeyValueStore());
+            this.version = version;
+        }
+
+        @Override
+        public void prepare(Config config) {
+        }
+
+        @Override
+        public Map<String, Map<String, Object>> update() {
+            updates++;
+            if (failing) {
+                return null;
+            }
+
+            Map<String, Object> value = new HashMap<>();
+            value.put("sensor_name", "sensor" + version);
+            Map<String, Map<String, Object>> data = new HashMap<>();
+            data.put("AP", value);
+            return data;
+        }
+
+        @Override
+        protected Object probeVersion() {
+            return version;
+        }
+    }
+
+    private Config config(long interval) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.stores.window.sensors.refresh.ms", String.valueOf(interval));
+        properties.put("redborder.stores.window.sensors.refresh.jitter.ms", "0");
+        return new MapConfig(properties);
+    }
+
+    @Test
+    public void skipsTheUpdateWhileTheVersionDoesNotChange() {
+        VersionedWindowStore windowStore = new VersionedWindowStore(config(0), 1);
+
+        assertTrue(windowStore.refreshIfDue());
+        assertFalse(windowStore.refreshIfDue());
+        assertEquals(1, windowStore.updates);
+        assertEquals(1L, windowStore.getSkippedRefreshes());
+
+        windowStore.version = 2;
+        assertTrue(windowStore.refreshIfDue());
+        assertEquals("sensor2", windowStore.getData("AP").get("sensor_name"));
+    }
+
+    @Test
+    public void alwaysUpdatesWithoutVersion() {
+        VersionedWindowStore windowStore = new VersionedWindowStore(config(0), null);
+
+        assertTrue(windowStore.refreshIfDue());
+        assertTrue(windowStore.refreshIfDue());
+        assertEquals(2, windowStore.updates);
+    }
+
+    @Test
+    public void waitsForTheRefreshInterval() {
+        VersionedWindowStore windowStore = new VersionedWindowStore(config(60000), null);
+
+        assertTrue(windowStore.refreshIfDue());
+        assertFalse(windowStore.refreshIfDue());
+        assertFalse(windowStore.isRefreshDue(System.currentTimeMillis()));
+        assertTrue(windowStore.isRefreshDue(System.currentTimeMillis() + 60000));
+        assertEquals(1, windowStore.updates);
+    }
+
+    @Test
+    public void retriesFailedUpdatesOnTheNextWindow() {
+        VersionedWindowStore windowStore = new VersionedWindowStore(config(60000), 1);
+        windowStore.failing = true;
+
+        assertFalse(windowStore.refreshIfDue());
+        assertTrue(windowStore.isRefreshDue(System.currentTimeMillis()));
+
+        windowStore.failing = false;
+        assertTrue(windowStore.refreshIfDue());
+        assertEquals(2, windowStore.updates);
+        assertFalse(windowStore.isRefreshDue(System.currentTimeMillis()));
+        assertEquals("sensor1", windowStore.getData("AP").get("sensor_name"));
+    }
+
+    @Test
+    public void retriesFailedSnapshotsOnTheNextWindow() throws IOException {
+        // A regular file as the snapshot directory, so the snapshot can't be written
+        File notADirectory = File.createTempFile("window", ".dir");
+        notADirectory.deleteOnExit();
+
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.stores.window.sensors.snapshot", "true");
+        properties.put("redborder.stores.window.sensors.snapshot.dir", notADirectory.getPath());
+        VersionedWindowStore windowStore = new VersionedWindowStore(new MapConfig(properties), 1);
+
+        assertFalse(windowStore.refreshIfDue());
+        assertFalse(windowStore.refreshIfDue());
+        assertEquals(2, windowStore.updates);
+        assertEquals(0L, windowStore.getSkippedRefreshes());
+    }
+
+    @Test(expected = ConfigException.class)
+    public void requiresTheSnapshotDirectory() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.stores.window.sensors.snapshot", "true");
+        new VersionedWindowStore(new MapConfig(properties), 1);
+    }
+}
@@ -0,0 +1,62 @@
+package net.redborder.samza.store.cache;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ClockIndexTest {
+
+    @Test
+    public void evictsUnreferencedEntries() {
+        ClockIndex index = new ClockIndex(3, 0);
+        index.add("a", 10);
+        index.add("b", 10);
+        index.add("c", 10);
+        assertFalse(index.isOverLimits());
+
+        index.touch("a");
+        index.add("d", 10);
+        assertTrue(index.isOverLimits());
+
+        assertEquals(Collections.singletonList("b"), index.evict(10));
+        assertEquals(3, index.size());
+        assertFalse(index.isOverLimits());
+    }
+
+    @Test
+    public void boundsBytesInBatches() {
+        ClockIndex index = new ClockIndex(0, 100);
+        for (int i = 0; i < 10; i++) {
+            index.add("key" + i, 20);
+        }
+
+        assertEquals(200, index.bytes());
+
+        List<String> evicted = index.evict(2);
+        assertEquals(Arrays.asList("key0", "key1"), evicted);
+        assertTrue(index.isOverLimits());
+
+        assertEquals(3, index.evict(100).size());
+        assertEquals(100, index.bytes());
+        assertFalse(index.isOverLimits());
+        assertTrue(index.evict(100).isEmpty());
+    }
+
+    @Test
+    public void reusesRemovedSlots() {
+        ClockIndex index = new ClockIndex(2, 0);
+        index.add("a", 1);
+        index.add("b", 1);
+        index.remove("a");
+        index.add("c", 1);
+        index.add("b", 5);
+
+        assertEquals(2, index.size());
+        assertEquals(6, index.bytes());
+        assertFalse(index.isOverLimits());
+    }
+}
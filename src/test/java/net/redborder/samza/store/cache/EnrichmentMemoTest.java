@@ -0,0 +1,81 @@
+package net.redborder.samza.store.cache;
+
+import net.redborder.samza.store.ObservableKeyValueStore;
+import net.redborder.samza.util.testing.MockKeyValueStore;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class EnrichmentMemoTest {
+
+    private EnrichmentMemo.Delta delta(String dependency) {
+        Map<String, Object> overwritten = new HashMap<>();
+        overwritten.put("campus", "A");
+        Map<String, Object> defaults = new HashMap<>();
+        defaults.put("building", "B");
+
+        return new EnrichmentMemo.Delta(overwritten, defaults, Collections.singletonList(dependency));
+    }
+
+    @Test
+    public void appliesDelta() {
+        Map<String, Object> message = new HashMap<>();
+        message.put("client_mac", "00:00:00:00:00:01");
+        message.put("campus", "old");
+        message.put("building", "old");
+
+        Map<String, Object> result = delta("location").applyTo(message);
+        assertEquals("A", result.get("campus"));
+        assertEquals("old", result.get("building"));
+        assertEquals("00:00:00:00:00:01", result.get("client_mac"));
+
+        message.remove("building");
+        assertEquals("B", delta("location").applyTo(message).get("building"));
+        assertEquals("old", message.get("campus"));
+    }
+
+    @Test
+    public void invalidatesOnStoreWrites() {
+        EnrichmentMemo memo = new EnrichmentMemo(100, 60000);
+        ObservableKeyValueStore store = new ObservableKeyValueStore("location", new MockKeyValueStore(), memo);
+
+        memo.put("k1", delta(EnrichmentMemo.dependency("location", "mac1")));
+        memo.put("k2", delta(EnrichmentMemo.dependency("location", "mac2")));
+        assertNotNull(memo.get("k1"));
+
+        store.put("mac3", new HashMap<String, Object>());
+        assertNotNull(memo.get("k1"));
+        assertNotNull(memo.get("k2"));
+
+        store.put("mac1", new HashMap<String, Object>());
+        assertNull(memo.get("k1"));
+        assertNotNull(memo.get("k2"));
+
+        store.delete("mac2");
+        assertNull(memo.get("k2"));
+        assertEquals(0, memo.size());
+        assertEquals(2, memo.invalidations());
+    }
+
+    @Test
+    public void boundsSizeAndAge() {
+        EnrichmentMemo memo = new EnrichmentMemo(2, 60000);
+        memo.put("k1", delta("d1"));
+        memo.put("k2", delta("d2"));
+        memo.get("k1");
+        memo.put("k3", delta("d3"));
+
+        assertEquals(2, memo.size());
+        assertNotNull(memo.get("k1"));
+        assertNull(memo.get("k2"));
+
+        EnrichmentMemo expired = new EnrichmentMemo(2, -1);
+        expired.put("k1", delta("d1"));
+        assertNull(expired.get("k1"));
+        assertEquals(0, expired.size());
+    }
+}
@@ -0,0 +1,98 @@
+package net.redborder.samza.store.cache;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class OffHeapCacheTest {
+
+    private Map<String, Object> value(int id) {
+        Map<String, Object> value = new HashMap<>();
+        value.put("id", id);
+        value.put("name", "value" + id);
+        return value;
+    }
+
+    @Test
+    public void putsAndGets() {
+        OffHeapCache cache = new OffHeapCache(1024 * 1024, 4096);
+
+        cache.put("a", value(1));
+        cache.put("b", value(2));
+
+        assertEquals(value(1), cache.get("a"));
+        assertEquals(value(2), cache.get("b"));
+        assertNull(cache.get("c"));
+        assertEquals(2, cache.size());
+
+        cache.put("a", value(3));
+        assertEquals(value(3), cache.get("a"));
+        assertEquals(2, cache.size());
+
+        cache.remove("a");
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedWithinBudget() {
+        // Only one page of 4 chunks of 64 bytes can be allocated
+        OffHeapCache cache = new OffHeapCache(256, 256);
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(cache.put("key" + i, value(i)));
+        }
+
+        cache.get("key0");
+        cache.put("key4", value(4));
+
+        assertEquals(256, cache.allocatedBytes());
+        assertEquals(4, cache.size());
+        assertEquals(1, cache.evictions());
+        assertNotNull(cache.get("key0"));
+        assertNull(cache.get("key1"));
+        assertEquals(value(4), cache.get("key4"));
+    }
+
+    @Test
+    public void skipsValuesBiggerThanPages() {
+        OffHeapCache cache = new OffHeapCache(1024, 64);
+        Map<String, Object> big = new HashMap<>();
+        big.put("data", new String(new char[128]).replace('\0', 'x'));
+
+        assertFalse(cache.put("big", big));
+        assertNull(cache.get("big"));
+    }
+
+    @Test
+    public void movesPagesToNewSizeClasses() {
+        // The budget is spent by the small values before any big value arrives
+        OffHeapCache cache = new OffHeapCache(512, 256);
+
+        for (int i = 0; i < 8; i++) {
+            assertTrue(cache.put("key" + i, value(i)));
+        }
+
+        Map<String, Object> big = new HashMap<>();
+        big.put("data", new String(new char[100]).replace('\0', 'x'));
+
+        assertTrue(cache.put("big", big));
+        assertEquals(big, cache.get("big"));
+        assertEquals(1, cache.pageMoves());
+        assertEquals(512, cache.allocatedBytes());
+
+        // The entries of the moved page are evicted, and the others are kept
+        assertEquals(5, cache.size());
+        assertEquals(4, cache.evictions());
+        assertEquals(value(0), cache.get("key0"));
+        assertNull(cache.get("key7"));
+
+        // The small values keep working on the page they have left
+        assertTrue(cache.put("key8", value(8)));
+        assertEquals(value(8), cache.get("key8"));
+        assertEquals(big, cache.get("big"));
+    }
+}
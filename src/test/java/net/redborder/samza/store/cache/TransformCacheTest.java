@@ -0,0 +1,94 @@
+package net.redborder.samza.store.cache;
+
+import net.redborder.samza.store.ObservableKeyValueStore;
+import net.redborder.samza.store.Store;
+import net.redborder.samza.store.TransformProcess;
+import net.redborder.samza.util.testing.MockKeyValueStore;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TransformCacheTest {
+
+    private static class CountingTransform implements TransformProcess {
+        int calls = 0;
+
+        @Override
+        public Map<String, Object> transform(Map<String, Object> cacheData) {
+            calls++;
+            Map<String, Object> transformed = new HashMap<>();
+            transformed.put("name", String.valueOf(cacheData.get("name")).toUpperCase());
+            return transformed;
+        }
+    }
+
+    private Map<String, Object> value(String name) {
+        Map<String, Object> value = new HashMap<>();
+        value.put("name", name);
+        return value;
+    }
+
+    @Test
+    public void reusesTransformsWhileValueIsEqual() {
+        MockKeyValueStore keyValueStore = new MockKeyValueStore();
+        CountingTransform transform = new CountingTransform();
+        Store store = new Store();
+        store.setKeys(Collections.singletonList("client_mac"));
+        store.setTransformProcess(transform);
+        store.setTransformCache(new TransformCache(10));
+        store.setStore(keyValueStore);
+
+        Map<String, Object> message = new HashMap<>();
+        message.put("client_mac", "mac1");
+        keyValueStore.put("mac1", value("a"));
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(value("A"), store.lookupTransformed(message));
+        }
+        assertEquals(1, transform.calls);
+
+        // A changed value is never served from the cache, even without an invalidation
+        keyValueStore.put("mac1", value("b"));
+        assertEquals(value("B"), store.lookupTransformed(message));
+        assertEquals(2, transform.calls);
+    }
+
+    @Test
+    public void invalidatesOnWrites() {
+        CountingTransform transform = new CountingTransform();
+        Store store = new Store();
+        store.setKeys(Collections.singletonList("client_mac"));
+        store.setTransformProcess(transform);
+        store.setTransformCache(new TransformCache(10));
+        ObservableKeyValueStore keyValueStore = new ObservableKeyValueStore("location", new MockKeyValueStore(), store);
+        store.setStore(keyValueStore);
+
+        keyValueStore.put("mac1", value("a"));
+        store.transform("mac1", keyValueStore.get("mac1"));
+        assertEquals(1, store.getTransformCache().size());
+
+        keyValueStore.put("mac1", value("a"));
+        assertEquals(0, store.getTransformCache().size());
+
+        store.transform("mac1", keyValueStore.get("mac1"));
+        store.onRefresh();
+        assertEquals(0, store.getTransformCache().size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        TransformCache cache = new TransformCache(2);
+        cache.put("k1", value("a"), value("A"));
+        cache.put("k2", value("b"), value("B"));
+        cache.get("k1", value("a"));
+        cache.put("k3", value("c"), value("C"));
+
+        assertEquals(value("A"), cache.get("k1", value("a")));
+        assertNull(cache.get("k2", value("b")));
+        assertNull(cache.get("k3", value("d")));
+    }
+}
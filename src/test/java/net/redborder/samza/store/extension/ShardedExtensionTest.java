@@ -0,0 +1,143 @@
+package net.redborder.samza.store.extension;
+
+import net.redborder.samza.util.testing.MockStoreExtension;
+import org.apache.samza.config.MapConfig;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ShardedExtensionTest {
+    private static final String MOCK_CLASS = MockStoreExtension.class.getName();
+
+    private Map<String, String> properties() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.stores.extension.sharded.shards", "shard0,shard1,shard2");
+        properties.put("redborder.stores.extension.shard0.class", MOCK_CLASS);
+        properties.put("redborder.stores.extension.shard1.class", MOCK_CLASS);
+        properties.put("redborder.stores.extension.shard2.class", MOCK_CLASS);
+        properties.put("redborder.stores.extension.shard2.weight", "2");
+        return properties;
+    }
+
+    private Map<String, Object> value(int i) {
+        Map<String, Object> value = new HashMap<>();
+        value.put("value", i);
+        return value;
+    }
+
+    @Test
+    public void spreadsKeysByWeight() {
+        ShardedExtension extension = new ShardedExtension("sharded", new MapConfig(properties()), null);
+
+        for (int i = 0; i < 4000; i++) {
+            Map<String, Object> value = value(i);
+            extension.put("ns", "set", "key" + i, value.keySet(), value.values());
+        }
+
+        for (int i = 0; i < 4000; i++) {
+            assertEquals(value(i), extension.get("ns", "set", "key" + i));
+        }
+
+        int shard0 = ((MockStoreExtension) extension.getDelegate("shard0")).size();
+        int shard1 = ((MockStoreExtension) extension.getDelegate("shard1")).size();
+        int shard2 = ((MockStoreExtension) extension.getDelegate("shard2")).size();
+
+        assertEquals(4000, shard0 + shard1 + shard2);
+        assertTrue(shard0 > 700 && shard0 < 1300);
+        assertTrue(shard1 > 700 && shard1 < 1300);
+        assertTrue(shard2 > 1600 && shard2 < 2400);
+    }
+
+    @Test
+    public void isolatesFailingShards() {
+        ShardedExtension extension = new ShardedExtension("sharded", new MapConfig(properties()), null);
+
+        for (int i = 0; i < 100; i++) {
+            Map<String, Object> value = value(i);
+            extension.put("ns", "set", "key" + i, value.keySet(), value.values());
+        }
+
+        MockStoreExtension failing = (MockStoreExtension) extension.getDelegate("shard1");
+        failing.setFailing(true);
+
+        for (int i = 0; i < 100; i++) {
+            Map<String, Object> result = extension.get("ns", "set", "key" + i);
+
+            if (extension.getShard("ns", "set", "key" + i) == failing) {
+                assertNull(result);
+            } else {
+                assertEquals(value(i), result);
+            }
+        }
+
+        // After the failures limit the shard isn't queried anymore
+        int reads = failing.getReads();
+        for (int i = 0; i < 100; i++) {
+            extension.get("ns", "set", "key" + i);
+        }
+        assertEquals(reads, failing.getReads());
+    }
+
+    @Test
+    public void hedgesSlowReads() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.stores.extension.sharded.shards", "primary");
+        properties.put("redborder.stores.extension.sharded.replicas.primary", "replica");
+        properties.put("redborder.stores.extension.sharded.hedge.ms", "10");
+        properties.put("redborder.stores.extension.primary.class", MOCK_CLASS);
+        properties.put("redborder.stores.extension.primary.delay.ms", "500");
+        properties.put("redborder.stores.extension.replica.class", MOCK_CLASS);
+
+        ShardedExtension extension = new ShardedExtension("sharded", new MapConfig(properties), null);
+        Map<String, Object> value = value(1);
+        extension.put("ns", "set", "key", value.keySet(), value.values());
+        extension.getDelegate("replica").put("ns", "set", "key", value.keySet(), value.values());
+
+        long start = System.currentTimeMillis();
+        assertEquals(value, extension.get("ns", "set", "key"));
+        assertTrue(System.currentTimeMillis() - start < 400);
+    }
+
+    @Test
+    public void timesOutHungShards() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.stores.extension.sharded.shards", "hung");
+        properties.put("redborder.stores.extension.sharded.timeout.ms", "20");
+        properties.put("redborder.stores.extension.sharded.failures.max", "2");
+        properties.put("redborder.stores.extension.hung.class", MOCK_CLASS);
+        properties.put("redborder.stores.extension.hung.delay.ms", "5000");
+
+        ShardedExtension extension = new ShardedExtension("sharded", new MapConfig(properties), null);
+        MockStoreExtension hung = (MockStoreExtension) extension.getDelegate("hung");
+
+        long start = System.currentTimeMillis();
+        assertNull(extension.get("ns", "set", "key"));
+        assertNull(extension.get("ns", "set", "key"));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(2, hung.getReads());
+
+        // The timeouts reached the failures limit, so the shard is skipped
+        assertNull(extension.get("ns", "set", "key"));
+        assertEquals(2, hung.getReads());
+    }
+
+    @Test
+    public void countsDroppedWrites() {
+        Map<String, String> properties = properties();
+        properties.put("redborder.stores.extension.sharded.shards", "shard0");
+        properties.put("redborder.stores.extension.sharded.failures.max", "2");
+
+        ShardedExtension extension = new ShardedExtension("sharded", new MapConfig(properties), null);
+        ((MockStoreExtension) extension.getDelegate("shard0")).setFailing(true);
+
+        for (int i = 0; i < 5; i++) {
+            Map<String, Object> value = value(i);
+            extension.put("ns", "set", "key" + i, value.keySet(), value.values());
+        }
+
+        assertEquals(5L, extension.getDroppedWrites());
+    }
+}
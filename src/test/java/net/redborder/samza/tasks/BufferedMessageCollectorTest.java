@@ -0,0 +1,159 @@
+package net.redborder.samza.tasks;
+
+import net.redborder.samza.util.testing.MockTaskContext;
+import org.apache.samza.config.ConfigException;
+import org.apache.samza.config.MapConfig;
+import org.apache.samza.system.OutgoingMessageEnvelope;
+import org.apache.samza.system.SystemStream;
+import org.apache.samza.task.MessageCollector;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BufferedMessageCollectorTest {
+    private static final SystemStream OUTPUT = new SystemStream("kafka", "rb_out");
+
+    private static class EnvelopeCollector implements MessageCollector {
+        private List<OutgoingMessageEnvelope> envelopes = new ArrayList<>();
+
+        @Override
+        public void send(OutgoingMessageEnvelope envelope) {
+            envelopes.add(envelope);
+        }
+    }
+
+    private BufferedMessageCollector createCollector(EnvelopeCollector collector, Map<String, String> properties) {
+        properties.put("redborder.collector.buffer.size", "3");
+        BufferedMessageCollector bufferedCollector = new BufferedMessageCollector(new MapConfig(properties));
+        bufferedCollector.setCollector(collector);
+        return bufferedCollector;
+    }
+
+    private Map<String, Object> message(String... keyValues) {
+        Map<String, Object> message = new HashMap<>();
+
+        for (int i = 0; i < keyValues.length; i += 2) {
+            message.put(keyValues[i], keyValues[i + 1]);
+        }
+
+        return message;
+    }
+
+    @Test
+    public void flushesWhenTheBufferIsFull() {
+        EnvelopeCollector collector = new EnvelopeCollector();
+        BufferedMessageCollector bufferedCollector = createCollector(collector, new HashMap<String, String>());
+
+        bufferedCollector.send(new OutgoingMessageEnvelope(OUTPUT, message("a", "1")));
+        bufferedCollector.send(new OutgoingMessageEnvelope(OUTPUT, message("a", "2")));
+        assertEquals(0, collector.envelopes.size());
+        assertEquals(2, bufferedCollector.buffered());
+
+        bufferedCollector.send(new OutgoingMessageEnvelope(OUTPUT, message("a", "3")));
+        assertEquals(3, collector.envelopes.size());
+        assertEquals(0, bufferedCollector.buffered());
+
+        bufferedCollector.send(new OutgoingMessageEnvelope(OUTPUT, message("a", "4")));
+        bufferedCollector.flush();
+        assertEquals(4, collector.envelopes.size());
+        assertEquals(message("a", "4"), collector.envelopes.get(3).getMessage());
+    }
+
+    @Test
+    public void mergesMessagesWithTheSameKey() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.collector.mergeKeys.rb_out", "client_mac,namespace");
+        EnvelopeCollector collector = new EnvelopeCollector();
+        BufferedMessageCollector bufferedCollector = createCollector(collector, properties);
+
+        bufferedCollector.send(new OutgoingMessageEnvelope(OUTPUT, message("client_mac", "aa", "namespace", "n1", "floor", "1")));
+        bufferedCollector.send(new OutgoingMessageEnvelope(OUTPUT, message("client_mac", "aa", "namespace", "n1", "zone", "z")));
+        bufferedCollector.send(new OutgoingMessageEnvelope(OUTPUT, message("client_mac", "aa", "namespace", "n2")));
+        bufferedCollector.flush();
+
+        assertEquals(2, collector.envelopes.size());
+        assertEquals(message("client_mac", "aa", "namespace", "n1", "floor", "1", "zone", "z"),
+                collector.envelopes.get(0).getMessage());
+        assertEquals(message("client_mac", "aa", "namespace", "n2"), collector.envelopes.get(1).getMessage());
+    }
+
+    @Test
+    public void sendsTheMergedMessageAfterTheMessagesBetweenThem() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.collector.mergeKeys.rb_out", "client_mac");
+        properties.put("redborder.collector.buffer.size", "10");
+        EnvelopeCollector collector = new EnvelopeCollector();
+        BufferedMessageCollector bufferedCollector = new BufferedMessageCollector(new MapConfig(properties));
+        bufferedCollector.setCollector(collector);
+
+        bufferedCollector.send(new OutgoingMessageEnvelope(OUTPUT, message("client_mac", "aa", "floor", "1")));
+        bufferedCollector.send(new OutgoingMessageEnvelope(OUTPUT, message("client_mac", "bb", "floor", "1")));
+        bufferedCollector.send(new OutgoingMessageEnvelope(OUTPUT, message("client_mac", "aa", "floor", "2")));
+        bufferedCollector.flush();
+
+        assertEquals(2, collector.envelopes.size());
+        assertEquals(message("client_mac", "bb", "floor", "1"), collector.envelopes.get(0).getMessage());
+        assertEquals(message("client_mac", "aa", "floor", "2"), collector.envelopes.get(1).getMessage());
+    }
+
+    @Test
+    public void doesNotMergeMessagesWithoutTheKeyFields() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.collector.mergeKeys.rb_out", "client_mac,namespace");
+        EnvelopeCollector collector = new EnvelopeCollector();
+        BufferedMessageCollector bufferedCollector = createCollector(collector, properties);
+
+        bufferedCollector.send(new OutgoingMessageEnvelope(OUTPUT, message("floor", "1")));
+        bufferedCollector.send(new OutgoingMessageEnvelope(OUTPUT, message("floor", "2")));
+        bufferedCollector.flush();
+        bufferedCollector.send(new OutgoingMessageEnvelope(OUTPUT, message("client_mac", "aa", "floor", "3")));
+        bufferedCollector.send(new OutgoingMessageEnvelope(OUTPUT, message("client_mac", "aa", "floor", "4")));
+        bufferedCollector.flush();
+
+        assertEquals(4, collector.envelopes.size());
+        assertEquals(message("floor", "2"), collector.envelopes.get(1).getMessage());
+        assertEquals(message("client_mac", "aa", "floor", "4"), collector.envelopes.get(3).getMessage());
+    }
+
+    @Test
+    public void setsThePartitionKeyAndKeepsTheMessageKey() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.collector.partitionKeys.rb_out", "client_mac,namespace");
+        EnvelopeCollector collector = new EnvelopeCollector();
+        BufferedMessageCollector bufferedCollector = createCollector(collector, properties);
+
+        bufferedCollector.send(new OutgoingMessageEnvelope(OUTPUT, "key", message("client_mac", "aa", "namespace", "n1")));
+        bufferedCollector.send(new OutgoingMessageEnvelope(OUTPUT, message("client_mac", "aa")));
+        bufferedCollector.send(new OutgoingMessageEnvelope(OUTPUT, "partition", "key", message("client_mac", "bb")));
+
+        assertEquals(3, collector.envelopes.size());
+        assertEquals("aa:n1:", collector.envelopes.get(0).getPartitionKey());
+        assertEquals("key", collector.envelopes.get(0).getKey());
+        assertEquals("aa::", collector.envelopes.get(1).getPartitionKey());
+        assertNull(collector.envelopes.get(1).getKey());
+        // A partition key set by the processor is kept
+        assertEquals("partition", collector.envelopes.get(2).getPartitionKey());
+
+        String key = "key";
+        bufferedCollector.send(new BufferedMessageCollector.PartitionedEnvelope(OUTPUT, key, key, message("client_mac", "cc")));
+        bufferedCollector.flush();
+        assertEquals("key", collector.envelopes.get(3).getPartitionKey());
+    }
+
+    @Test(expected = ConfigException.class)
+    public void requiresCommitsOnlyAfterFlushing() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.collector.buffer.enabled", "true");
+        properties.put("task.window.ms", "1000");
+        properties.put("redborder.recorder.jmx", "false");
+        properties.put("redborder.footprint.enabled", "false");
+
+        new StreamProcessor().init(new MapConfig(properties), new MockTaskContext());
+    }
+}
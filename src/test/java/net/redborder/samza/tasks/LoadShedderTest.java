@@ -0,0 +1,112 @@
+package net.redborder.samza.tasks;
+
+import net.redborder.samza.processors.DummyProcessor;
+import net.redborder.samza.processors.Processor;
+import net.redborder.samza.util.testing.MockTaskContext;
+import org.apache.samza.config.MapConfig;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LoadShedderTest {
+
+    private LoadShedder createShedder() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("redborder.shedding.lag.high.ms", "60000");
+        properties.put("redborder.shedding.lag.low.ms", "10000");
+        return new LoadShedder(new MapConfig(properties), new MockTaskContext());
+    }
+
+    private Processor processor(int priority, Processor.Degradation degradation) {
+        Processor processor = new DummyProcessor();
+        processor.setPriority(priority);
+        processor.setDegradation(degradation);
+        return processor;
+    }
+
+    // The lag is smoothed, so it is observed until it converges
+    private void observeLag(LoadShedder shedder, long lagSeconds) {
+        Map<String, Object> message = new HashMap<>();
+        message.put("timestamp", System.currentTimeMillis() / 1000 - lagSeconds);
+
+        for (int i = 0; i < 2000; i++) {
+            shedder.observe(message);
+        }
+    }
+
+    @Test
+    public void degradesTheLowPriorityProcessorsWhileLagging() {
+        LoadShedder shedder = createShedder();
+        Processor sampled = processor(0, Processor.Degradation.SAMPLE);
+        Processor important = processor(5, Processor.Degradation.SAMPLE);
+        Processor undegradable = processor(0, Processor.Degradation.NONE);
+
+        shedder.window();
+        assertFalse(shedder.isDegraded(sampled));
+
+        observeLag(shedder, 120);
+        shedder.window();
+        assertTrue(shedder.isDegraded(sampled));
+        assertFalse(shedder.isDegraded(important));
+        assertFalse(shedder.isDegraded(undegradable));
+
+        // Each window over the high lag degrades the next priority
+        for (int i = 0; i < 5; i++) {
+            shedder.window();
+        }
+        assertTrue(shedder.isDegraded(important));
+    }
+
+    @Test
+    public void recoversWhenTheLagGoesAway() {
+        LoadShedder shedder = createShedder();
+        Processor sampled = processor(0, Processor.Degradation.SAMPLE);
+
+        observeLag(shedder, 120);
+        shedder.window();
+        assertTrue(shedder.isDegraded(sampled));
+
+        // Between the low and the high lag the level is kept
+        observeLag(shedder, 30);
+        shedder.window();
+        assertTrue(shedder.isDegraded(sampled));
+
+        observeLag(shedder, 0);
+        shedder.window();
+        assertFalse(shedder.isDegraded(sampled));
+        assertEquals(1.0, shedder.getSampleWeight(), 0.0);
+    }
+
+    @Test
+    public void weightsTheSampledMessages() {
+        LoadShedder shedder = createShedder();
+        assertEquals(1.0, shedder.getSampleWeight(), 0.0);
+
+        // The sample rate is the low lag over the lag, about 10000 / 100000
+        observeLag(shedder, 100);
+        shedder.window();
+        assertEquals(10.0, shedder.getSampleWeight(), 0.5);
+
+        int sampled = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (shedder.sample()) {
+                sampled++;
+            }
+        }
+
+        assertTrue(sampled > 700 && sampled < 1300);
+
+        Map<String, Object> message = new HashMap<>();
+        shedder.weigh(message);
+        assertEquals(shedder.getSampleWeight(), (Double) message.get(shedder.getWeightField()), 0.0);
+
+        message.put(shedder.getWeightField(), 2);
+        shedder.weigh(message);
+        assertEquals(2 * shedder.getSampleWeight(), (Double) message.get(shedder.getWeightField()), 0.0);
+    }
+}
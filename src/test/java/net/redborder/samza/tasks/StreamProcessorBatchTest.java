@@ -0,0 +1,136 @@
+package net.redborder.samza.tasks;
+
+import net.redborder.samza.enrichments.EnrichManager;
+import net.redborder.samza.processors.Processor;
+import net.redborder.samza.store.StoreManager;
+import net.redborder.samza.util.testing.MockMessageCollector;
+import net.redborder.samza.util.testing.MockTaskContext;
+import org.apache.samza.Partition;
+import org.apache.samza.config.Config;
+import org.apache.samza.config.ConfigException;
+import org.apache.samza.config.MapConfig;
+import org.apache.samza.system.IncomingMessageEnvelope;
+import org.apache.samza.system.OutgoingMessageEnvelope;
+import org.apache.samza.system.SystemStream;
+import org.apache.samza.system.SystemStreamPartition;
+import org.apache.samza.task.MessageCollector;
+import org.apache.samza.task.TaskContext;
+import org.apache.samza.task.TaskCoordinator;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StreamProcessorBatchTest {
+    private static List<Integer> batchSizes = new ArrayList<>();
+
+    public static class BatchRecorderProcessor extends Processor {
+        public BatchRecorderProcessor(StoreManager storeManager, EnrichManager enrichManager, Config config, TaskContext context) {
+            super(storeManager, enrichManager, config, context);
+        }
+
+        @Override
+        public void process(Map<String, Object> message, MessageCollector collector) {
+            batchSizes.add(1);
+        }
+
+        @Override
+        public void processBatch(List<Map<String, Object>> messages, MessageCollector collector) {
+            batchSizes.add(messages.size());
+            collector.send(new OutgoingMessageEnvelope(new SystemStream("kafka", "rb_batch_out"), messages.get(0)));
+        }
+
+        @Override
+        public String getName() {
+            return "batch_recorder";
+        }
+    }
+
+    private static class CountingCoordinator implements TaskCoordinator {
+        private int commits = 0;
+
+        @Override
+        public void commit(RequestScope requestScope) {
+            commits++;
+        }
+
+        @Override
+        public void shutdown(RequestScope requestScope) {
+        }
+    }
+
+    private IncomingMessageEnvelope envelope(int offset) {
+        SystemStreamPartition partition = new SystemStreamPartition("kafka", "rb_batch", new Partition(0));
+        return new IncomingMessageEnvelope(partition, String.valueOf(offset), null, new HashMap<String, Object>());
+    }
+
+    private Map<String, String> batchProperties() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("task.inputs", "kafka.rb_batch");
+        properties.put("task.commit.ms", "-1");
+        properties.put("task.window.ms", "1000");
+        properties.put("redborder.processors.rb_batch", "batch_recorder");
+        properties.put("redborder.processors.types.batch_recorder.class", BatchRecorderProcessor.class.getName());
+        properties.put("redborder.batch.enabled", "true");
+        properties.put("redborder.batch.size", "3");
+        properties.put("redborder.batch.latency.ms", "60000");
+        properties.put("redborder.recorder.jmx", "false");
+        properties.put("redborder.footprint.enabled", "false");
+        return properties;
+    }
+
+    @Test
+    public void dispatchesBatchesBySizeAndOnWindow() throws Exception {
+        Map<String, String> properties = batchProperties();
+        StreamProcessor task = new StreamProcessor();
+        task.init(new MapConfig(properties), new MockTaskContext());
+        MockMessageCollector collector = new MockMessageCollector();
+        CountingCoordinator coordinator = new CountingCoordinator();
+        batchSizes.clear();
+
+        for (int i = 0; i < 5; i++) {
+            task.process(envelope(i), collector, coordinator);
+        }
+
+        assertEquals(Collections.singletonList(3), batchSizes);
+        assertEquals(0, coordinator.commits);
+
+        task.window(collector, coordinator);
+        assertEquals(Arrays.asList(3, 2), batchSizes);
+        assertEquals(1, coordinator.commits);
+    }
+
+    @Test
+    public void dispatchesAndFlushesThePendingWorkOnClose() throws Exception {
+        Map<String, String> properties = batchProperties();
+        properties.put("redborder.collector.buffer.enabled", "true");
+        StreamProcessor task = new StreamProcessor();
+        task.init(new MapConfig(properties), new MockTaskContext());
+        MockMessageCollector collector = new MockMessageCollector();
+        batchSizes.clear();
+
+        task.process(envelope(0), collector, new CountingCoordinator());
+        task.process(envelope(1), collector, new CountingCoordinator());
+        assertTrue(batchSizes.isEmpty());
+
+        task.close();
+        assertEquals(Collections.singletonList(2), batchSizes);
+        assertEquals(1, collector.getResult().size());
+    }
+
+    @Test(expected = ConfigException.class)
+    public void requiresCommitsOnlyAfterDispatching() throws Exception {
+        Map<String, String> properties = batchProperties();
+        properties.remove("task.commit.ms");
+        new StreamProcessor().init(new MapConfig(properties), new MockTaskContext());
+    }
+
+    @Test(expected = ConfigException.class)
+    public void requiresTheWindow() throws Exception {
+        Map<String, String> properties = batchProperties();
+        properties.remove("task.window.ms");
+        new StreamProcessor().init(new MapConfig(properties), new MockTaskContext());
+    }
+}
@@ -0,0 +1,49 @@
+package net.redborder.samza.tasks;
+
+import net.redborder.samza.processors.AggregationProcessor;
+import net.redborder.samza.processors.Processor;
+import net.redborder.samza.util.testing.MockTaskContext;
+import org.apache.samza.config.MapConfig;
+import org.apache.samza.task.TaskContext;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StreamProcessorWarmUpTest {
+
+    private Map<String, String> properties(long timeout) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("task.inputs", "kafka.rb_warm,kafka.rb_unconfigured");
+        properties.put("redborder.warmup.timeout.ms", String.valueOf(timeout));
+        properties.put("redborder.processors.rb_warm", "warm_agg");
+        properties.put("redborder.processors.types.warm_agg.class", AggregationProcessor.class.getName());
+        properties.put("redborder.processors.types.warm_agg.output", "kafka.rb_warm_agg");
+        return properties;
+    }
+
+    @Test
+    public void createsTheProcessorsOnInit() throws Exception {
+        StreamProcessor streamProcessor = new StreamProcessor();
+        TaskContext context = new MockTaskContext();
+        streamProcessor.init(new MapConfig(properties(30000)), context);
+
+        assertEquals(1, Processor.getAllProcessors(context).size());
+        assertTrue(Processor.getAllProcessors(context).get(0) instanceof AggregationProcessor);
+        streamProcessor.close();
+    }
+
+    @Test
+    public void stopsWhenTheTimeBudgetIsExhausted() throws Exception {
+        StreamProcessor streamProcessor = new StreamProcessor();
+        TaskContext context = new MockTaskContext();
+        streamProcessor.init(new MapConfig(properties(0)), context);
+
+        // The processors are created when their first message arrives
+        assertTrue(Processor.getAllProcessors(context).isEmpty());
+        streamProcessor.close();
+    }
+}